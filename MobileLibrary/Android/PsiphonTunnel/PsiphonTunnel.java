@@ -20,15 +20,28 @@
 package ca.psiphon;
 
 import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.net.VpnService;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.PersistableBundle;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.Base64;
 
@@ -41,6 +54,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
@@ -57,11 +71,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import psi.Psi;
@@ -79,6 +96,7 @@ public class PsiphonTunnel {
         default public Object newVpnServiceBuilder() {return null;} // Object must be a VpnService.Builder (Android < 4 cannot reference this class name)
         default public void onDiagnosticMessage(String message) {}
         default public void onAvailableEgressRegions(List<String> regions) {}
+        default public void onEgressRegionsRanked(List<String> rankedRegions) {}
         default public void onSocksProxyPortInUse(int port) {}
         default public void onHttpProxyPortInUse(int port) {}
         default public void onListeningSocksProxyPort(int port) {}
@@ -96,6 +114,10 @@ public class PsiphonTunnel {
         default public void onStartedWaitingForNetworkConnectivity() {}
         default public void onStoppedWaitingForNetworkConnectivity() {}
         default public void onActiveAuthorizationIDs(List<String> authorizations) {}
+        default public void onDynamicConfigApplied(List<String> activeAuthorizationIDs, long latencyMillis) {}
+        default public void onTunnelStallRecovered(long stallMillis, long recoveryMillis) {}
+        default public void onFeedbackUploaded() {}
+        default public void onFeedbackUploadFailed(Exception e) {}
         default public void onApplicationParameter(String key, Object value) {}
         default public void onExiting() {}
     }
@@ -105,7 +127,48 @@ public class PsiphonTunnel {
     private PrivateAddress mPrivateAddress;
     private AtomicReference<ParcelFileDescriptor> mTunFd;
     private AtomicInteger mLocalSocksProxyPort;
+    private AtomicInteger mLocalHttpProxyPort;
+    private AtomicInteger mDnsCacheSize;
+    private AtomicBoolean mBypassVpnForHostApp;
+    private AtomicBoolean mHostAppExcludedFromVpn;
+    private AtomicBoolean mRaceNetworks;
+    private final PsiphonTunnelNetworkRacer mNetworkRacer;
+    private AtomicBoolean mReconnectOnNetworkChange;
+    private AtomicReference<ConnectivityManager.NetworkCallback> mNetworkHandoverCallback;
+    private AtomicReference<Network> mUnderlyingNetwork;
+    private AtomicReference<String> mUnderlyingNetworkDnsServer;
+    private AtomicReference<String> mLastNetworkID;
+    private AtomicLong mHandoverStartMillis;
+    private AtomicLong mLastHandoverReconnectMillis;
+    private AtomicBoolean mIsConnected;
+    private AtomicBoolean mSuspended;
+    private AtomicReference<ParcelFileDescriptor> mSuspendedVpnFd;
+    private AtomicLong mResumeStartMillis;
+    private AtomicLong mLastResumeMillis;
+    private final EstablishmentPacing mEstablishmentPacing;
+    private AtomicReference<BroadcastReceiver> mPowerStateReceiver;
+    private AtomicReference<String> mSponsorId;
+    private AtomicReference<String> mDynamicSponsorId;
+    private AtomicReference<List<String>> mDynamicAuthorizations;
+    private AtomicReference<List<String>> mActiveAuthorizationIDs;
+    private AtomicLong mDynamicConfigStartMillis;
+    private AtomicReference<String> mEgressRegion;
+    private AtomicReference<String> mDynamicEgressRegion;
+    private final PsiphonTunnelEgressRegionProber mEgressRegionProber;
+    private final PsiphonTunnelNetworkProtocolHistory mNetworkProtocolHistory;
+    private final PsiphonTunnelWatchdog mTunnelWatchdog;
+    private final PsiphonTunnelMetrics mMetrics;
+    private final PsiphonTunnelHttpClient mHttpClient;
+    private final PsiphonTunnelSocksPool mSocksPool;
+    private final PsiphonTunnelDiagnostics mDiagnostics;
+    private final PsiphonTunnelStorageManager mStorageManager;
+    private AtomicBoolean mUsingRotatingNotices;
+    private AtomicLong mRotatingNoticesFileSize;
+    private AtomicLong mRotatingNoticesSyncFrequency;
     private AtomicBoolean mRoutingThroughTunnel;
+    private AtomicBoolean mActiveTunnelIsTCS;
+    private final Object mUdpGwKeepaliveLock;
+    private Boolean mUdpGwKeepaliveEnabled;
     private Thread mTun2SocksThread;
     private AtomicBoolean mIsWaitingForNetworkConnectivity;
     private AtomicReference<String> mClientPlatformPrefix;
@@ -140,7 +203,49 @@ public class PsiphonTunnel {
         mVpnMode = new AtomicBoolean(false);
         mTunFd = new AtomicReference<ParcelFileDescriptor>();
         mLocalSocksProxyPort = new AtomicInteger(0);
+        mLocalHttpProxyPort = new AtomicInteger(0);
+        mDnsCacheSize = new AtomicInteger(0);
+        mBypassVpnForHostApp = new AtomicBoolean(false);
+        mHostAppExcludedFromVpn = new AtomicBoolean(false);
+        mRaceNetworks = new AtomicBoolean(false);
+        mNetworkRacer = new PsiphonTunnelNetworkRacer();
+        mReconnectOnNetworkChange = new AtomicBoolean(true);
+        mNetworkHandoverCallback = new AtomicReference<ConnectivityManager.NetworkCallback>();
+        mUnderlyingNetwork = new AtomicReference<Network>();
+        mUnderlyingNetworkDnsServer = new AtomicReference<String>();
+        mLastNetworkID = new AtomicReference<String>();
+        mHandoverStartMillis = new AtomicLong(0);
+        mLastHandoverReconnectMillis = new AtomicLong(-1);
+        mIsConnected = new AtomicBoolean(false);
+        mSuspended = new AtomicBoolean(false);
+        mSuspendedVpnFd = new AtomicReference<ParcelFileDescriptor>();
+        mResumeStartMillis = new AtomicLong(0);
+        mLastResumeMillis = new AtomicLong(-1);
+        mEstablishmentPacing = new EstablishmentPacing();
+        mPowerStateReceiver = new AtomicReference<BroadcastReceiver>();
+        mSponsorId = new AtomicReference<String>();
+        mDynamicSponsorId = new AtomicReference<String>();
+        mDynamicAuthorizations = new AtomicReference<List<String>>();
+        mActiveAuthorizationIDs = new AtomicReference<List<String>>();
+        mDynamicConfigStartMillis = new AtomicLong(0);
+        mEgressRegion = new AtomicReference<String>("");
+        mDynamicEgressRegion = new AtomicReference<String>();
+        mNetworkProtocolHistory = new PsiphonTunnelNetworkProtocolHistory(mHostService);
+        mMetrics = new PsiphonTunnelMetrics();
+        mTunnelWatchdog = new PsiphonTunnelWatchdog(
+                mHostService, mMetrics, mLocalSocksProxyPort, mLocalHttpProxyPort);
+        mEgressRegionProber = new PsiphonTunnelEgressRegionProber(
+                mHostService, mEgressRegion, mLocalSocksProxyPort, mMetrics);
+        mHttpClient = new PsiphonTunnelHttpClient();
+        mSocksPool = new PsiphonTunnelSocksPool();
+        mDiagnostics = new PsiphonTunnelDiagnostics();
+        mStorageManager = new PsiphonTunnelStorageManager(mHostService);
+        mUsingRotatingNotices = new AtomicBoolean(false);
+        mRotatingNoticesFileSize = new AtomicLong(0);
+        mRotatingNoticesSyncFrequency = new AtomicLong(0);
         mRoutingThroughTunnel = new AtomicBoolean(false);
+        mActiveTunnelIsTCS = new AtomicBoolean(false);
+        mUdpGwKeepaliveLock = new Object();
         mIsWaitingForNetworkConnectivity = new AtomicBoolean(false);
         mClientPlatformPrefix = new AtomicReference<String>("");
         mClientPlatformSuffix = new AtomicReference<String>("");
@@ -196,6 +301,7 @@ public class PsiphonTunnel {
                 socksServerAddress,
                 udpgwServerAddress,
                 true);
+        applyUdpGwKeepalive();
 
         mHostService.onDiagnosticMessage("routing through tunnel");
 
@@ -218,9 +324,17 @@ public class PsiphonTunnel {
     // for stop().
     public synchronized void stop() {
         stopVpn();
+        closeSuspendedVpn();
+        mSuspended.set(false);
+        mMetrics.setSuspended(false);
+        mResumeStartMillis.set(0);
         stopPsiphon();
         mVpnMode.set(false);
         mLocalSocksProxyPort.set(0);
+        mHttpClient.setSocksProxyPort(0);
+        mHttpClient.setHttpProxyPort(0);
+        mSocksPool.setSocksProxyPort(0);
+        mMetrics.stop();
     }
 
     // Note: same deadlock note as stop().
@@ -260,6 +374,442 @@ public class PsiphonTunnel {
         restartPsiphon();
     }
 
+    // Suspends tunneling while keeping tunnel-core warm, as an alternative to stop() when, for
+    // example, the host app moves to the background. Any established tunnel is kept, but
+    // tunnel-core skips periodic keep alives and pauses establishment. In VPN mode, tun2socks
+    // is stopped and a dummy VPN interface is swapped in, so that traffic is blocked rather
+    // than leaked while suspended.
+    // Note: same deadlock note as stop().
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public synchronized void suspend() throws Exception {
+        if (!mSuspended.compareAndSet(false, true)) {
+            return;
+        }
+        mMetrics.setSuspended(true);
+        mResumeStartMillis.set(0);
+        Psi.setSuspended(true);
+        if (isVpnMode() && mRoutingThroughTunnel.get()) {
+            ParcelFileDescriptor dummyVpnFd = startDummyVpn(
+                    (VpnService.Builder) mHostService.newVpnServiceBuilder());
+            // When the dummy VPN can't be established, tun2socks is left running so that
+            // traffic isn't leaked.
+            if (dummyVpnFd != null) {
+                stopVpn();
+                mSuspendedVpnFd.set(dummyVpnFd);
+            }
+        }
+        mHostService.onDiagnosticMessage("suspended");
+    }
+
+    // Resumes after suspend(). When the tunnel is still connected, routing is restored
+    // immediately; otherwise establishment resumes and the resume completes when a tunnel
+    // is connected. Hosts that route manually must call routeThroughTunnel() after resume()
+    // returns. Returns false, as startRouting() does, when the VPN could not be re-established
+    // due to lack of prepare or revoked permissions.
+    // Note: same deadlock note as stop().
+    public synchronized boolean resume() throws Exception {
+        if (!mSuspended.compareAndSet(true, false)) {
+            return true;
+        }
+        mMetrics.setSuspended(false);
+        long resumeStartMillis = SystemClock.elapsedRealtime();
+        Psi.setSuspended(false);
+        if (mSuspendedVpnFd.get() != null) {
+            try {
+                // Swap the dummy VPN interface for a new Psiphon VPN interface.
+                if (!startVpn()) {
+                    return false;
+                }
+            } finally {
+                closeSuspendedVpn();
+            }
+            if (mIsConnected.get() && mShouldRouteThroughTunnelAutomatically) {
+                routeThroughTunnel();
+            }
+        }
+        if (mIsConnected.get()) {
+            reportResumed(resumeStartMillis);
+        } else {
+            mResumeStartMillis.set(resumeStartMillis);
+        }
+        return true;
+    }
+
+    // Returns the time, in milliseconds, from the most recent resume() call to a connected
+    // tunnel; or -1 when there's no completed resume.
+    public long getLastResumeMillis() {
+        return mLastResumeMillis.get();
+    }
+
+    // Returns a JSON object with, for each of the "full" and "throttled" establishment pacing
+    // modes, the time spent in the mode, the process CPU time, and the number of Psiphon
+    // library network upcalls, which correspond to dial wakeups; along with the current "mode".
+    // Establishment is throttled while the device is in Doze, or in battery saver mode with
+    // the screen off.
+    public JSONObject getEstablishmentPacingStats() {
+        return mEstablishmentPacing.getStats();
+    }
+
+    // Applies a new sponsor ID, when not empty, and authorizations to the running Psiphon
+    // library, as an alternative to restartPsiphon(). Null authorizations are treated as none.
+    // The IDs of the new authorizations are compared with the IDs last reported active by the
+    // server; when these match and the sponsor ID is unchanged, there's nothing to apply.
+    // Otherwise, as the server only accepts authorizations in its handshake, the active tunnel
+    // is reconnected while the local proxies and VPN routing stay up. When no tunnel has
+    // completed a handshake yet, the values are used by the next handshake, without a
+    // reconnect. The change is confirmed by the next ActiveAuthorizationIDs notice, with
+    // HostService.onDynamicConfigApplied. The values are also kept across any subsequent
+    // restart. Returns true when a reconnect was triggered.
+    public boolean setDynamicConfig(String sponsorId, List<String> authorizations) {
+        if (authorizations == null) {
+            authorizations = new ArrayList<String>();
+        }
+        mDynamicAuthorizations.set(new ArrayList<String>(authorizations));
+        String previousSponsorId = mSponsorId.get();
+        boolean sponsorChanged = sponsorId != null && sponsorId.length() > 0 &&
+                !sponsorId.equals(previousSponsorId);
+        if (sponsorChanged) {
+            mSponsorId.set(sponsorId);
+            mDynamicSponsorId.set(sponsorId);
+        }
+
+        List<String> activeAuthorizationIDs = mActiveAuthorizationIDs.get();
+        boolean authorizationsChanged = activeAuthorizationIDs != null &&
+                !new HashSet<String>(activeAuthorizationIDs).equals(getAuthorizationIDs(authorizations));
+        if (!sponsorChanged && !authorizationsChanged && activeAuthorizationIDs != null) {
+            mHostService.onDiagnosticMessage("dynamic config unchanged");
+            return false;
+        }
+
+        StringBuilder authorizationsList = new StringBuilder();
+        for (String authorization : authorizations) {
+            if (authorizationsList.length() > 0) {
+                authorizationsList.append(" ");
+            }
+            authorizationsList.append(authorization);
+        }
+        mDynamicConfigStartMillis.set(SystemClock.elapsedRealtime());
+        Psi.setDynamicConfig(sponsorChanged ? sponsorId : "", authorizationsList.toString());
+        if (!sponsorChanged && !authorizationsChanged) {
+            return false;
+        }
+        mMetrics.recordReconnect();
+        Psi.reconnectTunnel();
+        return true;
+    }
+
+    // Switches the egress region of the running Psiphon library, as an alternative to editing
+    // the config and calling restartPsiphon(). An empty region selects any region. When the
+    // region changes, the active tunnel is reconnected to a server in the new region while the
+    // local proxies and VPN routing stay up. The region is also kept across any subsequent
+    // restart, overriding the EgressRegion config value.
+    public void setEgressRegion(String region) {
+        if (region == null) {
+            region = "";
+        }
+        mDynamicEgressRegion.set(region);
+        mEgressRegion.set(region);
+        Psi.setEgressRegion(region);
+    }
+
+    // Probes each of the given egress regions, typically those reported by
+    // HostService.onAvailableEgressRegions, and reports the regions ranked fastest first via
+    // HostService.onEgressRegionsRanked. Each region is probed by switching to it and measuring
+    // the time to connect a tunnel and, when rttProbeHost is not null, the fastest of several
+    // connections to rttProbeHost:rttProbePort through the tunnel, which is one tunnel round
+    // trip plus the server's connection to the probe host. The egress region in effect before
+    // probing is restored afterwards. Tunneled traffic is interrupted as each region is probed.
+    // Rankings are cached per network ID; unless refresh is set, a cached ranking for the
+    // current network is reported immediately without probing. Requires a running tunnel.
+    public void probeEgressRegions(
+            List<String> regions, String rttProbeHost, int rttProbePort, boolean refresh) {
+        mEgressRegionProber.start(getNetworkID(), regions, rttProbeHost, rttProbePort, refresh);
+    }
+
+    // Returns a JSON object with the cached egress region probe results for the current
+    // network: a "regions" array, ranked fastest first, of objects with the "region",
+    // "connectMillis", and "rttMillis", where -1 indicates a failed or skipped measurement;
+    // or null when the current network has not been probed.
+    public JSONObject getEgressRegionProbeResults() {
+        return mEgressRegionProber.getResults(getNetworkID());
+    }
+
+    // Enables, when windowSeconds > 0, a watchdog which detects a stalled tunnel: one which is
+    // still reported as connected but on which bytes are sent with little or nothing received.
+    // Over a sliding window of windowSeconds, the tunnel is considered stalled when at least
+    // minSentBytes were sent and more than maxSentToReceivedRatio times the bytes received. A
+    // stalled tunnel is reconnected, and the stall duration and the time to recover are
+    // reported via HostService.onTunnelStallRecovered. May be called at any time.
+    public void setTunnelWatchdog(int windowSeconds, long minSentBytes, double maxSentToReceivedRatio) {
+        mTunnelWatchdog.configure(windowSeconds, minSentBytes, maxSentToReceivedRatio);
+    }
+
+    // Optionally, when probeUrl is not null, a suspected stall is first confirmed by an active
+    // probe of probeUrl through the tunnel, and the tunnel is reconnected only if the probe
+    // fails. The probe is an HTTP HEAD request through the local HTTP proxy or, when
+    // useSocksProxy is set, a connection to the URL host and port through the local SOCKS proxy.
+    public void setTunnelWatchdogProbe(String probeUrl, boolean useSocksProxy) {
+        mTunnelWatchdog.configureProbe(probeUrl, useSocksProxy);
+    }
+
+    // Returns a JSON object with the tunnel watchdog counters: stalls, probes, probeFailures,
+    // and the lastStallMillis and lastRecoveryMillis, which are -1 when there's no stall.
+    public JSONObject getTunnelWatchdogStats() {
+        return mTunnelWatchdog.getStats();
+    }
+
+    // Returns a companion HTTP client helper, which provides a ProxySelector and HttpURLConnection
+    // factory that tunnel through the local proxies and follow their port changes. See
+    // PsiphonTunnelHttpClient.
+    public PsiphonTunnelHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    // Sets the limit on the memory used by the compressed history of recent diagnostic notices,
+    // which is included in feedback uploads. When the limit is reached, the oldest notices are
+    // dropped. The default is 256KB.
+    public void setDiagnosticsHistoryMaxBytes(int maxBytes) {
+        mDiagnostics.setMaxBytes(maxBytes);
+    }
+
+    // Encrypts and uploads feedback in the background. The diagnostics JSON is feedback, for
+    // example with "Metadata" and "Feedback" fields, plus the recent diagnostic notices history
+    // in the "DiagnosticInfo"."DiagnosticHistory" array. When the rotating notices file is
+    // enabled, the history is read from the file instead, and includes all of the notices it
+    // holds, up to the history byte limit. The history is streamed to the upload in chunks.
+    // Failed uploads are retried by tunnel-core, with long delays, before
+    // HostService.onFeedbackUploadFailed is called. May be called whether or not the tunnel is
+    // running; the upload isn't tunneled.
+    public void sendFeedback(
+            final JSONObject feedback, final String b64EncodedPublicKey, final String uploadServer,
+            final String uploadPath, final String uploadServerHeaders) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String psiphonConfig = loadPsiphonConfig(mHostService.getContext());
+                    PsiphonTunnelDiagnostics.Snapshot diagnostics;
+                    if (mUsingRotatingNotices.get()) {
+                        diagnostics = mDiagnostics.snapshotNoticeFile(feedback, newNoticeReader());
+                    } else {
+                        diagnostics = mDiagnostics.snapshot(feedback);
+                    }
+                    Psi.sendFeedbackStream(
+                            psiphonConfig, diagnostics, b64EncodedPublicKey, uploadServer,
+                            uploadPath, uploadServerHeaders);
+                } catch (java.lang.Exception e) {
+                    mHostService.onDiagnosticMessage("feedback upload failed: " + e.getMessage());
+                    mHostService.onFeedbackUploadFailed(new Exception("feedback upload failed", e));
+                    return;
+                }
+                mHostService.onDiagnosticMessage("feedback uploaded");
+                mHostService.onFeedbackUploaded();
+            }
+        }).start();
+    }
+
+    // Enables tunnel-core's rotating notices file, to which tunnel-core writes all notices
+    // directly, in the app's private files directory. The file is rotated when its size exceeds
+    // maxFileSize bytes, keeping one older file, and is synced every syncFrequency notices. A
+    // value <= 0 selects the tunnel-core default, 1MB or 100 notices.
+    //
+    // While enabled, tunnel-core no longer sends diagnostic notices to the library, and
+    // notices are no longer forwarded to HostService.onDiagnosticMessage, except for
+    // InternalError notices, which report failures to write the file. This saves a JNI string
+    // and host app I/O per notice. Messages from this library are still sent to
+    // onDiagnosticMessage. Use newNoticeReader() to display the notices in the app. Feedback
+    // uploads read their diagnostics history from the file.
+    //
+    // Takes effect on the next start. tunnel-core's notice files are process-wide, so the file
+    // can't be disabled again until the process restarts.
+    public void setRotatingNoticesFile(int maxFileSize, int syncFrequency) {
+        mRotatingNoticesFileSize.set(maxFileSize);
+        mRotatingNoticesSyncFrequency.set(syncFrequency);
+        mUsingRotatingNotices.set(true);
+    }
+
+    // Returns a new reader which tails the rotating notices file. See setRotatingNoticesFile
+    // and PsiphonTunnelNoticeReader.
+    public PsiphonTunnelNoticeReader newNoticeReader() {
+        return new PsiphonTunnelNoticeReader(getRotatingNoticesFile(mHostService.getContext()));
+    }
+
+    // Returns a companion SocketChannel factory, which keeps pre-negotiated local SOCKS proxy
+    // sessions and pipelines the CONNECT request with the first payload bytes. See
+    // PsiphonTunnelSocksPool.
+    public PsiphonTunnelSocksPool getSocksPool() {
+        return mSocksPool;
+    }
+
+    // Returns, for the current network, the tunnel protocols which connected recently, each
+    // with its number of "connects", its moving average "connectMillis", and the "time" it last
+    // connected; or null when none have. On the next start on this network, establishment
+    // tries the fastest of these protocols first.
+    public JSONObject getNetworkProtocolStats() {
+        return mNetworkProtocolHistory.getStats(getNetworkID());
+    }
+
+    // Returns the storage manager, which bounds the disk space used by tunnel-core downloads and
+    // the data store. See PsiphonTunnelStorageManager.
+    public PsiphonTunnelStorageManager getStorageManager() {
+        return mStorageManager;
+    }
+
+    // Returns the tunnel-core data store backend, "bolt", "badger" or "files". The backend is
+    // selected when the library is built, with the make.bash build tags argument: "BADGER_DB"
+    // or "FILES_DB", or neither for bolt.
+    public static String getDataStoreBackend() {
+        return Psi.getDataStoreBackend();
+    }
+
+    // Schedules PsiphonTunnelMaintenanceJobService, which must be declared in the host app
+    // manifest, to check and compact the data store every intervalMillis while the device is
+    // idle and charging. jobId identifies the job among the host app's other JobScheduler jobs.
+    // Returns false when JobScheduler isn't available or the job can't be scheduled.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public boolean scheduleDataStoreMaintenance(int jobId, long intervalMillis) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        Context context = mHostService.getContext();
+        String dataStoreDirectory;
+        try {
+            dataStoreDirectory = new JSONObject(loadPsiphonConfig(context)).getString("DataStoreDirectory");
+        } catch (IOException | JSONException e) {
+            mHostService.onDiagnosticMessage("failed to schedule data store maintenance: " + e.getMessage());
+            return false;
+        }
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(PsiphonTunnelMaintenanceJobService.EXTRA_DATA_STORE_DIRECTORY, dataStoreDirectory);
+        JobInfo jobInfo = new JobInfo.Builder(
+                jobId, new ComponentName(context, PsiphonTunnelMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(intervalMillis)
+                .setExtras(extras)
+                .build();
+        JobScheduler jobScheduler = (JobScheduler)context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            mHostService.onDiagnosticMessage("failed to schedule data store maintenance");
+            return false;
+        }
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void cancelDataStoreMaintenance(int jobId) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler jobScheduler =
+                (JobScheduler)mHostService.getContext().getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(jobId);
+    }
+
+    // Returns the result of the latest PsiphonTunnelMaintenanceJobService run, or null if it
+    // hasn't run. The JSON object has the data store "Backend", its size in bytes
+    // "SizeBefore" and "SizeAfter" maintenance, the "CheckMilliseconds" and
+    // "CompactMilliseconds" taken, and the "Time" of the run; or, when maintenance failed or
+    // was skipped because the tunnel was running, the "Error" and "Time".
+    public JSONObject getLastDataStoreMaintenance() {
+        String result = mHostService.getContext()
+                .getSharedPreferences(PsiphonTunnelMaintenanceJobService.PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getString(PsiphonTunnelMaintenanceJobService.PREFERENCE_LAST_RESULT, null);
+        if (result == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(result);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    // Starts an opt-in metrics endpoint, listening on the loopback interface only, which serves
+    // a snapshot of connection state, bytes transferred and rates, tunnel count, library start
+    // and tunnel reconnect counts, PsiphonProvider upcall counts and timings, and tun2socks
+    // status, as Prometheus text at "/metrics" or as JSON at "/metrics.json". A port of 0
+    // selects any free port. Returns the listening port. For example, to scrape a device:
+    // "adb forward tcp:<port> tcp:<port>". The endpoint is stopped by stopMetricsServer() or
+    // stop().
+    public int startMetricsServer(int port) throws Exception {
+        try {
+            return mMetrics.start(port);
+        } catch (IOException e) {
+            throw new Exception("failed to start metrics server", e);
+        }
+    }
+
+    public void stopMetricsServer() {
+        mMetrics.stop();
+    }
+
+    // Enables, when maxEntries > 0, a TTL-respecting DNS response cache in the VPN path, so
+    // that repeated lookups from apps are answered locally instead of paying a tunnel round
+    // trip. The cache is LRU bounded to maxEntries responses, caches negative responses, and
+    // prefetches popular names near expiry. Must be called before startTunneling().
+    public void setDnsCacheSize(int maxEntries) {
+        mDnsCacheSize.set(maxEntries);
+    }
+
+    // Returns a JSON object with the DNS cache counters: entries, hits, negativeHits, misses,
+    // prefetches, and evictions; or null when the cache is not enabled or Psiphon is not running.
+    public JSONObject getDnsCacheStats() {
+        String stats = Psi.getDNSCacheStats();
+        if (stats == null || stats.length() == 0) {
+            return null;
+        }
+        try {
+            return new JSONObject(stats);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    // Excludes the host app from its own VPN, on Android 5.0+, so that sockets dialed by the
+    // Psiphon library bypass the tun interface at the OS level instead of each being passed to
+    // VpnService.protect() through a PsiphonProvider callback. Note that any other traffic the
+    // host app makes will then also bypass the tunnel. Must be called before startRouting().
+    public void setBypassVpnForHostApp(boolean enabled) {
+        mBypassVpnForHostApp.set(enabled);
+    }
+
+    // Returns the number of per-socket protect() callbacks avoided as a result of
+    // setBypassVpnForHostApp().
+    public long getProtectCallsAvoided() {
+        return Psi.getDeviceBinderBypassCount();
+    }
+
+    // Enables, on Android 6.0+, establishing over Wi-Fi and cellular concurrently. The cellular
+    // network is requested alongside Wi-Fi, establishment candidate dials alternate between the
+    // two networks, and the network that first carries an active tunnel is kept; when Wi-Fi
+    // wins, the cellular network is released. The race is run again when the underlying network
+    // changes or the tunnel is lost. Requires the CHANGE_NETWORK_STATE permission. Must be
+    // called before startTunneling().
+    public void setNetworkRacing(boolean enabled) {
+        mRaceNetworks.set(enabled);
+    }
+
+    // Returns a JSON object with, for each of "WIFI" and "CELLULAR", the number of candidate
+    // sockets bound to the network, the number of races won, and the last time-to-connect in
+    // milliseconds, along with the current "winner", if any.
+    public JSONObject getNetworkRaceStats() {
+        return mNetworkRacer.getStats();
+    }
+
+    // By default, on Android 5.0+, a change of network ID, as reported by getNetworkID, such
+    // as moving from Wi-Fi to cellular, immediately triggers a tunnel reconnect instead of
+    // waiting for tunnel-core to time out the dead tunnel. Must be called before startTunneling().
+    public void setReconnectOnNetworkChange(boolean enabled) {
+        mReconnectOnNetworkChange.set(enabled);
+    }
+
+    // Returns the time, in milliseconds, from the most recent network change to the
+    // subsequent tunnel reconnection; or -1 when there's no completed handover.
+    public long getLastHandoverReconnectMillis() {
+        return mLastHandoverReconnectMillis.get();
+    }
+
     public void setClientPlatformAffixes(String prefix, String suffix) {
         mClientPlatformPrefix.set(prefix);
         mClientPlatformSuffix.set(suffix);
@@ -311,15 +861,16 @@ public class PsiphonTunnel {
             int mtu = VPN_INTERFACE_MTU;
             String dnsResolver = mPrivateAddress.mRouter;
 
-            ParcelFileDescriptor tunFd =
+            VpnService.Builder vpnServiceBuilder =
                     ((VpnService.Builder) mHostService.newVpnServiceBuilder())
                             .setSession(mHostService.getAppName())
                             .setMtu(mtu)
                             .addAddress(mPrivateAddress.mIpAddress, mPrivateAddress.mPrefixLength)
                             .addRoute("0.0.0.0", 0)
                             .addRoute(mPrivateAddress.mSubnet, mPrivateAddress.mPrefixLength)
-                            .addDnsServer(dnsResolver)
-                            .establish();
+                            .addDnsServer(dnsResolver);
+            boolean hostAppExcluded = excludeHostAppFromVpn(vpnServiceBuilder);
+            ParcelFileDescriptor tunFd = vpnServiceBuilder.establish();
             if (tunFd == null) {
                 // As per http://developer.android.com/reference/android/net/VpnService.Builder.html#establish%28%29,
                 // this application is no longer prepared or was revoked.
@@ -327,6 +878,7 @@ public class PsiphonTunnel {
             }
             mTunFd.set(tunFd);
             mRoutingThroughTunnel.set(false);
+            mHostAppExcludedFromVpn.set(hostAppExcluded);
 
             mHostService.onDiagnosticMessage("VPN established");
 
@@ -359,14 +911,19 @@ public class PsiphonTunnel {
             int mtu = VPN_INTERFACE_MTU;
             String dnsResolver = privateAddress.mRouter;
 
-            tunFd = vpnServiceBuilder
+            vpnServiceBuilder
                             .setSession(mHostService.getAppName())
                             .setMtu(mtu)
                             .addAddress(privateAddress.mIpAddress, privateAddress.mPrefixLength)
                             .addRoute("0.0.0.0", 0)
                             .addRoute(privateAddress.mSubnet, privateAddress.mPrefixLength)
-                            .addDnsServer(dnsResolver)
-                            .establish();
+                            .addDnsServer(dnsResolver);
+            // The running Psiphon library may be using the device binder bypass, so the
+            // exclusion must be carried over to the restarted VPN.
+            if (mHostAppExcludedFromVpn.get()) {
+                excludeHostAppFromVpn(vpnServiceBuilder);
+            }
+            tunFd = vpnServiceBuilder.establish();
         } catch(IllegalArgumentException e) {
             throw new Exception(errorMessage, e);
         } catch(IllegalStateException e) {
@@ -381,6 +938,22 @@ public class PsiphonTunnel {
         return tunFd;
     }
 
+    // Returns true when the host app was added as a disallowed application. When this
+    // succeeds, sockets created by the Psiphon library don't need to be protected.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean excludeHostAppFromVpn(VpnService.Builder vpnServiceBuilder) {
+        if (!mBypassVpnForHostApp.get() || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            vpnServiceBuilder.addDisallowedApplication(mHostService.getContext().getPackageName());
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            mHostService.onDiagnosticMessage("failed to exclude host app from VPN: " + e.getMessage());
+            return false;
+        }
+    }
+
     private boolean isVpnMode() {
         return mVpnMode.get();
     }
@@ -389,8 +962,26 @@ public class PsiphonTunnel {
         mLocalSocksProxyPort.set(port);
     }
 
+    private void closeSuspendedVpn() {
+        ParcelFileDescriptor dummyVpnFd = mSuspendedVpnFd.getAndSet(null);
+        if (dummyVpnFd != null) {
+            try {
+                dummyVpnFd.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void reportResumed(long resumeStartMillis) {
+        long resumeMillis = SystemClock.elapsedRealtime() - resumeStartMillis;
+        mLastResumeMillis.set(resumeMillis);
+        mHostService.onDiagnosticMessage(
+                String.format(Locale.US, "resumed in %d ms", resumeMillis));
+    }
+
     private void stopVpn() {
         stopTun2Socks();
+        mHostAppExcludedFromVpn.set(false);
         ParcelFileDescriptor tunFd = mTunFd.getAndSet(null);
         if (tunFd != null) {
             try {
@@ -419,37 +1010,72 @@ public class PsiphonTunnel {
 
         @Override
         public void notice(String noticeJSON) {
-            mPsiphonTunnel.notice(noticeJSON);
+            long startNanos = System.nanoTime();
+            try {
+                mPsiphonTunnel.notice(noticeJSON);
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_NOTICE, startNanos);
+            }
         }
 
         @Override
         public String bindToDevice(long fileDescriptor) throws Exception {
-            return mPsiphonTunnel.bindToDevice(fileDescriptor);
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.bindToDevice(fileDescriptor);
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_BIND_TO_DEVICE, startNanos);
+            }
         }
 
         @Override
         public long hasNetworkConnectivity() {
-            return mPsiphonTunnel.hasNetworkConnectivity();
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.hasNetworkConnectivity();
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_HAS_NETWORK_CONNECTIVITY, startNanos);
+            }
         }
 
         @Override
         public String getPrimaryDnsServer() {
-            return mPsiphonTunnel.getPrimaryDnsServer();
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.getPrimaryDnsServer();
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_GET_PRIMARY_DNS_SERVER, startNanos);
+            }
         }
 
         @Override
         public String getSecondaryDnsServer() {
-            return mPsiphonTunnel.getSecondaryDnsServer();
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.getSecondaryDnsServer();
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_GET_SECONDARY_DNS_SERVER, startNanos);
+            }
         }
 
         @Override
         public String iPv6Synthesize(String IPv4Addr) {
-            return mPsiphonTunnel.iPv6Synthesize(IPv4Addr);
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.iPv6Synthesize(IPv4Addr);
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_IPV6_SYNTHESIZE, startNanos);
+            }
         }
 
         @Override
         public String getNetworkID() {
-            return mPsiphonTunnel.getNetworkID();
+            long startNanos = System.nanoTime();
+            try {
+                return mPsiphonTunnel.getNetworkID();
+            } finally {
+                mPsiphonTunnel.mMetrics.recordUpcall(PsiphonTunnelMetrics.UPCALL_GET_NETWORK_ID, startNanos);
+            }
         }
     }
 
@@ -459,14 +1085,24 @@ public class PsiphonTunnel {
 
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     private String bindToDevice(long fileDescriptor) throws Exception {
-        if (!((VpnService)mHostService.getVpnService()).protect((int)fileDescriptor)) {
+        mEstablishmentPacing.recordUpcall();
+        if (isVpnMode() && !((VpnService)mHostService.getVpnService()).protect((int)fileDescriptor)) {
             throw new Exception("protect socket failed");
         }
+        if (mNetworkRacer.isStarted()) {
+            try {
+                mNetworkRacer.bind((int)fileDescriptor);
+            } catch (IOException e) {
+                throw new Exception("bind socket to network failed", e);
+            }
+        }
         return "";
     }
 
     private long hasNetworkConnectivity() {
-        boolean hasConnectivity = hasNetworkConnectivity(mHostService.getContext());
+        mEstablishmentPacing.recordUpcall();
+        boolean hasConnectivity = hasNetworkConnectivity(mHostService.getContext()) ||
+                mNetworkRacer.hasAvailableNetwork();
         boolean wasWaitingForNetworkConnectivity = mIsWaitingForNetworkConnectivity.getAndSet(!hasConnectivity);
         // HasNetworkConnectivity may be called many times, but only invoke
         // callbacks once per loss or resumption of connectivity, so, e.g.,
@@ -481,6 +1117,12 @@ public class PsiphonTunnel {
     }
 
     private String getPrimaryDnsServer() {
+        // Prefer the resolver reported with the current underlying network, which is updated
+        // immediately on handover.
+        String underlyingNetworkDnsServer = mUnderlyingNetworkDnsServer.get();
+        if (underlyingNetworkDnsServer != null) {
+            return underlyingNetworkDnsServer;
+        }
         String dnsResolver = null;
         try {
             dnsResolver = getFirstActiveNetworkDnsResolver(mHostService.getContext());
@@ -522,7 +1164,11 @@ public class PsiphonTunnel {
             // proceed and use tactics, but with "UNKNOWN" as the sole network ID.
         }
 
-        if (activeNetworkInfo != null && activeNetworkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+        // When establishment raced over Wi-Fi and cellular and cellular won, the tunnel
+        // is on cellular even though Wi-Fi remains the active network.
+        boolean cellularWon = PsiphonTunnelNetworkRacer.CELLULAR.equals(mNetworkRacer.getWinner());
+
+        if (!cellularWon && activeNetworkInfo != null && activeNetworkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
 
             networkID = "WIFI";
 
@@ -545,7 +1191,7 @@ public class PsiphonTunnel {
                 // Fall through and use just "WIFI"
             }
 
-        } else if (activeNetworkInfo != null && activeNetworkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+        } else if (cellularWon || (activeNetworkInfo != null && activeNetworkInfo.getType() == ConnectivityManager.TYPE_MOBILE)) {
 
             networkID = "MOBILE";
 
@@ -571,28 +1217,327 @@ public class PsiphonTunnel {
         stopPsiphon();
         mIsWaitingForNetworkConnectivity.set(false);
         mHostService.onDiagnosticMessage("starting Psiphon library");
+        mMetrics.recordLibraryStart();
         try {
+            // Network racing binds each socket to a network in bindToDevice, so it requires
+            // the device binder upcall even when not in VPN mode.
+            boolean raceNetworks = mRaceNetworks.get() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            if (raceNetworks) {
+                mNetworkRacer.start(mHostService.getContext());
+            }
+            // When the host app is excluded from the VPN, dialed sockets already bypass the
+            // tun interface and the per-socket BindToDevice/protect upcall is skipped.
+            Psi.setDeviceBinderBypass(isVpnMode() && mHostAppExcludedFromVpn.get() && !raceNetworks);
+            if (mUsingRotatingNotices.get()) {
+                Psi.setNoticeFiles(
+                        "",
+                        getRotatingNoticesFile(mHostService.getContext()).getAbsolutePath(),
+                        mRotatingNoticesFileSize.get(),
+                        mRotatingNoticesSyncFrequency.get());
+            }
+            JSONObject psiphonConfig = new JSONObject(loadPsiphonConfig(mHostService.getContext()));
+            mStorageManager.checkOnStart(mHostService.getContext(), psiphonConfig);
+            mNetworkProtocolHistory.applyPreferences(psiphonConfig, getNetworkID());
+            mNetworkProtocolHistory.onEstablishing();
+            // Set before starting, so that a restart while suspended, for example via
+            // restartPsiphon(), doesn't dial any candidates before it's suspended again.
+            Psi.setSuspended(mSuspended.get());
             Psi.start(
-                    loadPsiphonConfig(mHostService.getContext()),
+                    psiphonConfig.toString(),
                     embeddedServerEntries,
                     "",
                     new PsiphonProviderShim(this),
-                    isVpnMode(),
+                    isVpnMode() || raceNetworks,
                     false        // Do not use IPv6 synthesizer for android
                     );
         } catch (java.lang.Exception e) {
             throw new Exception("failed to start Psiphon library", e);
         }
 
+        startNetworkHandoverMonitor();
+        startPowerStateMonitor();
+
         mHostService.onDiagnosticMessage("Psiphon library started");
     }
 
     private void stopPsiphon() {
         mHostService.onDiagnosticMessage("stopping Psiphon library");
+        stopNetworkHandoverMonitor();
+        stopPowerStateMonitor();
+        mEgressRegionProber.stop();
         Psi.stop();
+        // The local SOCKS proxy is gone, and a restart may select another port.
+        mSocksPool.setSocksProxyPort(0);
+        mHostService.onDiagnosticMessage(mSocksPool.getStatsSummary());
+        mTunnelWatchdog.reset();
+        mActiveAuthorizationIDs.set(null);
+        mIsConnected.set(false);
+        mMetrics.setTunnels(0);
+        mNetworkRacer.stop();
         mHostService.onDiagnosticMessage("Psiphon library stopped");
     }
 
+    // The network handover monitor tracks the underlying, non-VPN, network. When the network
+    // ID changes, the active tunnel, which is most likely dead, is immediately reconnected and
+    // the new network's DNS resolver is used for subsequent tunnel-core lookups.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startNetworkHandoverMonitor() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        final ConnectivityManager connectivityManager =
+                (ConnectivityManager)mHostService.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return;
+        }
+
+        mLastNetworkID.set(getNetworkID());
+        mHandoverStartMillis.set(0);
+
+        ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                mUnderlyingNetwork.set(network);
+                setUnderlyingNetworkDnsServer(connectivityManager.getLinkProperties(network));
+                onUnderlyingNetworkChanged();
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                if (network.equals(mUnderlyingNetwork.get())) {
+                    setUnderlyingNetworkDnsServer(linkProperties);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                if (mUnderlyingNetwork.compareAndSet(network, null)) {
+                    mUnderlyingNetworkDnsServer.set(null);
+                }
+                onUnderlyingNetworkChanged();
+            }
+        };
+
+        // requestNetwork, unlike registerNetworkCallback, calls back only for the single best
+        // network that satisfies the request, which, with the VPN excluded, is the default
+        // underlying network; registerNetworkCallback follows every connected network. This
+        // also works where registerDefaultNetworkCallback isn't available, before Android 7.0,
+        // and where it would report this app's own VPN as the default network.
+        NetworkRequest networkRequest = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        try {
+            connectivityManager.requestNetwork(networkRequest, callback);
+        } catch (SecurityException e) {
+            // Missing the ACCESS_NETWORK_STATE permission.
+            mHostService.onDiagnosticMessage("failed to start network handover monitor: " + e.getMessage());
+            return;
+        }
+        mNetworkHandoverCallback.set(callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopNetworkHandoverMonitor() {
+        ConnectivityManager.NetworkCallback callback = mNetworkHandoverCallback.getAndSet(null);
+        if (callback != null) {
+            ConnectivityManager connectivityManager =
+                    (ConnectivityManager)mHostService.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+            try {
+                connectivityManager.unregisterNetworkCallback(callback);
+            } catch (IllegalArgumentException e) {
+                // Not registered.
+            }
+        }
+        mUnderlyingNetwork.set(null);
+        mUnderlyingNetworkDnsServer.set(null);
+        mHandoverStartMillis.set(0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void setUnderlyingNetworkDnsServer(LinkProperties linkProperties) {
+        String dnsServer = null;
+        if (linkProperties != null) {
+            for (InetAddress dns : linkProperties.getDnsServers()) {
+                // Prefer IPv4, for consistency with getFirstActiveNetworkDnsResolver.
+                if (dns instanceof Inet4Address) {
+                    dnsServer = dns.getHostAddress();
+                    break;
+                }
+            }
+        }
+        mUnderlyingNetworkDnsServer.set(dnsServer);
+    }
+
+    private void onUnderlyingNetworkChanged() {
+        // A decided race is re-run on the new network, which also stops a cellular winner from
+        // masking a return to Wi-Fi in getNetworkID.
+        if (mNetworkRacer.restart()) {
+            mHostService.onDiagnosticMessage("network race restarted: network changed");
+        }
+
+        String networkID = getNetworkID();
+
+        // Transitions through no network, "UNKNOWN", are ignored, so that a brief loss and
+        // return of the same network doesn't force a reconnect of a tunnel that may have
+        // survived.
+        if (networkID.equals("UNKNOWN")) {
+            return;
+        }
+        String previousNetworkID = mLastNetworkID.getAndSet(networkID);
+        if (previousNetworkID == null || previousNetworkID.equals("UNKNOWN") ||
+                networkID.equals(previousNetworkID)) {
+            return;
+        }
+
+        mHostService.onDiagnosticMessage("network handover detected");
+        if (!mReconnectOnNetworkChange.get()) {
+            return;
+        }
+        mHandoverStartMillis.set(SystemClock.elapsedRealtime());
+        mMetrics.recordReconnect();
+        Psi.reconnectTunnel();
+    }
+
+    // Establishment is throttled while the device is in Doze, or in battery saver mode with
+    // no user interaction, so that an idle device without connectivity doesn't keep cycling
+    // dials and provider upcalls. Full pacing is restored as soon as the user interacts.
+    private void startPowerStateMonitor() {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                applyEstablishmentPacing(false);
+                if (isVpnMode() && mRoutingThroughTunnel.get()) {
+                    applyUdpGwKeepalive();
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        }
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        mHostService.getContext().registerReceiver(receiver, filter);
+        mPowerStateReceiver.set(receiver);
+
+        mEstablishmentPacing.start();
+        applyEstablishmentPacing(true);
+    }
+
+    private void stopPowerStateMonitor() {
+        BroadcastReceiver receiver = mPowerStateReceiver.getAndSet(null);
+        if (receiver != null) {
+            try {
+                mHostService.getContext().unregisterReceiver(receiver);
+            } catch (IllegalArgumentException e) {
+                // Not registered.
+            }
+        }
+    }
+
+    // When force is set, the pacing mode is applied to the Psiphon library even if unchanged,
+    // as is required after the library is (re)started.
+    private void applyEstablishmentPacing(boolean force) {
+        boolean throttled = shouldThrottleEstablishment(mHostService.getContext());
+        boolean changed = mEstablishmentPacing.setThrottled(throttled);
+        if (changed || force) {
+            Psi.setEstablishmentThrottled(throttled);
+        }
+        if (changed) {
+            mHostService.onDiagnosticMessage(
+                    "establishment pacing: " + (throttled ? "throttled" : "full"));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean shouldThrottleEstablishment(Context context) {
+        PowerManager powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && powerManager.isDeviceIdleMode()) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && powerManager.isPowerSaveMode()) {
+            return !powerManager.isInteractive();
+        }
+        return false;
+    }
+
+    // EstablishmentPacing accounts, for each of the full and throttled establishment pacing
+    // modes, the time spent in the mode, the process CPU time, and the number of provider
+    // upcalls, which correspond to dial wakeups.
+    private static class EstablishmentPacing {
+        private static final int FULL = 0;
+        private static final int THROTTLED = 1;
+        private static final String[] MODE_NAMES = {"full", "throttled"};
+
+        private boolean mThrottled;
+        private long mModeStartMillis;
+        private long mModeStartCpuMillis;
+        private final long[] mDurationMillis = new long[2];
+        private final long[] mCpuMillis = new long[2];
+        private final long[] mUpcalls = new long[2];
+
+        synchronized void start() {
+            mModeStartMillis = SystemClock.elapsedRealtime();
+            mModeStartCpuMillis = android.os.Process.getElapsedCpuTime();
+        }
+
+        // Returns true when the mode changed.
+        synchronized boolean setThrottled(boolean throttled) {
+            if (throttled == mThrottled) {
+                return false;
+            }
+            accountCurrentMode();
+            mThrottled = throttled;
+            return true;
+        }
+
+        synchronized void recordUpcall() {
+            mUpcalls[mThrottled ? THROTTLED : FULL]++;
+        }
+
+        synchronized JSONObject getStats() {
+            accountCurrentMode();
+            JSONObject json = new JSONObject();
+            try {
+                for (int mode = FULL; mode <= THROTTLED; mode++) {
+                    JSONObject modeJson = new JSONObject();
+                    modeJson.put("durationMillis", mDurationMillis[mode]);
+                    modeJson.put("cpuMillis", mCpuMillis[mode]);
+                    modeJson.put("upcalls", mUpcalls[mode]);
+                    json.put(MODE_NAMES[mode], modeJson);
+                }
+                json.put("mode", MODE_NAMES[mThrottled ? THROTTLED : FULL]);
+            } catch (JSONException e) {
+                return null;
+            }
+            return json;
+        }
+
+        private void accountCurrentMode() {
+            long now = SystemClock.elapsedRealtime();
+            long nowCpu = android.os.Process.getElapsedCpuTime();
+            int mode = mThrottled ? THROTTLED : FULL;
+            if (mModeStartMillis != 0) {
+                mDurationMillis[mode] += now - mModeStartMillis;
+                mCpuMillis[mode] += nowCpu - mModeStartCpuMillis;
+            }
+            mModeStartMillis = now;
+            mModeStartCpuMillis = nowCpu;
+        }
+    }
+
+    private static File getRotatingNoticesFile(Context context) {
+        return new File(context.getFilesDir(), "rotating_notices");
+    }
+
     private String loadPsiphonConfig(Context context)
             throws IOException, JSONException {
 
@@ -600,6 +1545,22 @@ public class PsiphonTunnel {
         // update as necessary. Then write JSON to disk for the Go client.
         JSONObject json = new JSONObject(mHostService.getPsiphonConfig());
 
+        // Values set with setDynamicConfig override the host config.
+        String dynamicSponsorId = mDynamicSponsorId.get();
+        if (dynamicSponsorId != null) {
+            json.put("SponsorId", dynamicSponsorId);
+        }
+        mSponsorId.set(json.optString("SponsorId"));
+        List<String> dynamicAuthorizations = mDynamicAuthorizations.get();
+        if (dynamicAuthorizations != null) {
+            json.put("Authorizations", new JSONArray(dynamicAuthorizations));
+        }
+        String dynamicEgressRegion = mDynamicEgressRegion.get();
+        if (dynamicEgressRegion != null) {
+            json.put("EgressRegion", dynamicEgressRegion);
+        }
+        mEgressRegion.set(json.optString("EgressRegion"));
+
         // On Android, this directory must be set to the app private storage area.
         // The Psiphon library won't be able to use its current working directory
         // and the standard temporary directories do not exist.
@@ -644,6 +1605,10 @@ public class PsiphonTunnel {
             json.put("LocalSocksProxyPort", mLocalSocksProxyPort);
         }
 
+        if (isVpnMode() && mDnsCacheSize.get() > 0 && !json.has("UdpgwDNSCacheSize")) {
+            json.put("UdpgwDNSCacheSize", mDnsCacheSize.get());
+        }
+
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             try {
                 json.put(
@@ -689,12 +1654,30 @@ public class PsiphonTunnel {
 
             if (noticeType.equals("Tunnels")) {
                 int count = notice.getJSONObject("data").getInt("count");
+                mIsConnected.set(count > 0);
+                mTunnelWatchdog.onTunnels(count);
+                mMetrics.setTunnels(count);
                 if (count > 0) {
+                    long resumeStartMillis = mResumeStartMillis.getAndSet(0);
+                    if (resumeStartMillis != 0) {
+                        reportResumed(resumeStartMillis);
+                    }
+                    long handoverStartMillis = mHandoverStartMillis.getAndSet(0);
+                    if (handoverStartMillis != 0) {
+                        long reconnectMillis = SystemClock.elapsedRealtime() - handoverStartMillis;
+                        mLastHandoverReconnectMillis.set(reconnectMillis);
+                        mHostService.onDiagnosticMessage(
+                                String.format(Locale.US, "network handover: reconnected in %d ms", reconnectMillis));
+                    }
                     if (isVpnMode() && mShouldRouteThroughTunnelAutomatically) {
                         routeThroughTunnel();
                     }
                     mHostService.onConnected();
                 } else {
+                    mNetworkProtocolHistory.onEstablishing();
+                    if (mNetworkRacer.restart()) {
+                        mHostService.onDiagnosticMessage("network race restarted: tunnel lost");
+                    }
                     mHostService.onConnecting();
                 }
 
@@ -712,9 +1695,13 @@ public class PsiphonTunnel {
             } else if (noticeType.equals("ListeningSocksProxyPort")) {
                 int port = notice.getJSONObject("data").getInt("port");
                 setLocalSocksProxyPort(port);
+                mHttpClient.setSocksProxyPort(port);
+                mSocksPool.setSocksProxyPort(port);
                 mHostService.onListeningSocksProxyPort(port);
             } else if (noticeType.equals("ListeningHttpProxyPort")) {
                 int port = notice.getJSONObject("data").getInt("port");
+                mLocalHttpProxyPort.set(port);
+                mHttpClient.setHttpProxyPort(port);
                 mHostService.onListeningHttpProxyPort(port);
             } else if (noticeType.equals("UpstreamProxyError")) {
                 mHostService.onUpstreamProxyError(notice.getJSONObject("data").getString("message"));
@@ -734,21 +1721,41 @@ public class PsiphonTunnel {
                 diagnostic = false;
                 JSONObject data = notice.getJSONObject("data");
                 mHostService.onBytesTransferred(data.getLong("sent"), data.getLong("received"));
+                mMetrics.addBytesTransferred(data.getLong("sent"), data.getLong("received"));
+                if (mIsConnected.get() && !mSuspended.get()) {
+                    mTunnelWatchdog.onBytesTransferred(data.getLong("sent"), data.getLong("received"));
+                }
             }  else if (noticeType.equals("ActiveAuthorizationIDs")) {
                 JSONArray activeAuthorizationIDs = notice.getJSONObject("data").getJSONArray("IDs");
                 ArrayList<String> authorizations = new ArrayList<String>();
                 for (int i=0; i<activeAuthorizationIDs.length(); i++) {
                     authorizations.add(activeAuthorizationIDs.getString(i));
                 }
+                mActiveAuthorizationIDs.set(authorizations);
                 mHostService.onActiveAuthorizationIDs(authorizations);
+                long dynamicConfigStartMillis = mDynamicConfigStartMillis.getAndSet(0);
+                if (dynamicConfigStartMillis != 0) {
+                    long latencyMillis = SystemClock.elapsedRealtime() - dynamicConfigStartMillis;
+                    mHostService.onDiagnosticMessage(String.format(Locale.US,
+                            "dynamic config applied in %d ms: %d active authorizations",
+                            latencyMillis, authorizations.size()));
+                    mHostService.onDynamicConfigApplied(authorizations, latencyMillis);
+                }
             } else if (noticeType.equals("Exiting")) {
                 mHostService.onExiting();
-            } else if (noticeType.equals("ActiveTunnel")) {
+            } else if (noticeType.equals("ActiveTunnelProperties")) {
+                mEgressRegionProber.onActiveTunnel(notice.getJSONObject("data").getString("region"));
                 if (isVpnMode()) {
-                    if (notice.getJSONObject("data").getBoolean("isTCS")) {
-                      disableUdpGwKeepalive();
-                    } else {
-                      enableUdpGwKeepalive();
+                    mActiveTunnelIsTCS.set(notice.getJSONObject("data").getBoolean("isTCS"));
+                    resetUdpGwKeepalive();
+                    applyUdpGwKeepalive();
+                }
+                mNetworkProtocolHistory.onActiveTunnel(
+                        getNetworkID(), notice.getJSONObject("data").getString("protocol"));
+                if (mNetworkRacer.isStarted()) {
+                    String winner = mNetworkRacer.onTunnelEstablished();
+                    if (winner != null) {
+                        mHostService.onDiagnosticMessage("network race won by " + winner);
                     }
                 }
             } else if (noticeType.equals("ApplicationParameter")) {
@@ -758,6 +1765,13 @@ public class PsiphonTunnel {
             }
 
             if (diagnostic) {
+                mDiagnostics.add(noticeJSON);
+            }
+
+            // When tunnel-core writes the rotating notices file, the notices are already
+            // persisted, so only errors writing the file are forwarded.
+            if (diagnostic &&
+                    (!mUsingRotatingNotices.get() || noticeType.equals("InternalError"))) {
                 String diagnosticMessage = noticeType + ": " + notice.getJSONObject("data").toString();
                 mHostService.onDiagnosticMessage(diagnosticMessage);
             }
@@ -903,6 +1917,8 @@ public class PsiphonTunnel {
             }
         });
         mTun2SocksThread.start();
+        resetUdpGwKeepalive();
+        mMetrics.setTun2SocksRunning(true);
         mHostService.onDiagnosticMessage("tun2socks started");
     }
 
@@ -915,10 +1931,48 @@ public class PsiphonTunnel {
                 Thread.currentThread().interrupt();
             }
             mTun2SocksThread = null;
+            resetUdpGwKeepalive();
+            mMetrics.setTun2SocksRunning(false);
             mHostService.onDiagnosticMessage("tun2socks stopped");
         }
     }
 
+    // Disables the UDPgw keepalive for TCS tunnels, which don't require it, and while the
+    // device is idle, when network access is deferred in any case. Called for each new active
+    // tunnel, when tun2socks starts, and on device idle mode changes.
+    private void applyUdpGwKeepalive() {
+        boolean enable = !mActiveTunnelIsTCS.get() && !isDeviceIdle(mHostService.getContext());
+        synchronized (mUdpGwKeepaliveLock) {
+            if (mUdpGwKeepaliveEnabled != null && mUdpGwKeepaliveEnabled == enable) {
+                return;
+            }
+            if (enable) {
+                enableUdpGwKeepalive();
+            } else {
+                disableUdpGwKeepalive();
+            }
+            mUdpGwKeepaliveEnabled = enable;
+        }
+        mHostService.onDiagnosticMessage("UDPgw keepalive " + (enable ? "enabled" : "disabled"));
+    }
+
+    // Forgets the applied keepalive setting, so that the next applyUdpGwKeepalive() call
+    // always sets it; tun2socks may have been restarted with its default setting.
+    private void resetUdpGwKeepalive() {
+        synchronized (mUdpGwKeepaliveLock) {
+            mUdpGwKeepaliveEnabled = null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean isDeviceIdle(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        PowerManager powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isDeviceIdleMode();
+    }
+
     public static void logTun2Socks(String level, String channel, String msg) {
         String logMsg = "tun2socks: " + level + "(" + channel + "): " + msg;
         mPsiphonTunnel.mHostService.onDiagnosticMessage(logMsg);
@@ -942,6 +1996,24 @@ public class PsiphonTunnel {
     // Implementation: Network Utils
     //----------------------------------------------------------------------------------------------
 
+    // Returns the IDs, as reported in ActiveAuthorizationIDs notices, of the given encoded
+    // authorizations. An authorization is base64 encoded JSON in which the ID is a base64
+    // encoded field of the signed "Authorization" object. Malformed authorizations are skipped.
+    private static Set<String> getAuthorizationIDs(List<String> authorizations) {
+        Set<String> IDs = new HashSet<String>();
+        for (String authorization : authorizations) {
+            try {
+                JSONObject signedAuthorization = new JSONObject(
+                        new String(Base64.decode(authorization, Base64.DEFAULT), "UTF-8"));
+                IDs.add(signedAuthorization.getJSONObject("Authorization").getString("ID"));
+            } catch (IllegalArgumentException e) {
+            } catch (UnsupportedEncodingException e) {
+            } catch (JSONException e) {
+            }
+        }
+        return IDs;
+    }
+
     private static boolean hasNetworkConnectivity(Context context) {
         ConnectivityManager connectivityManager =
                 (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
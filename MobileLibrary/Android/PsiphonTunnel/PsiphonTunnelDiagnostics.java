@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import psi.FeedbackDiagnostics;
+
+// PsiphonTunnelDiagnostics keeps a bounded history of recent diagnostic notices for feedback
+// uploads. Notices are appended to an open block of comma separated JSON, and each full block
+// is deflated. The oldest compressed blocks are dropped to keep the history within its byte
+// limit, however long the tunnel runs.
+//
+// For an upload, a snapshot of the history is streamed to tunnel-core in chunks, decompressing
+// one block at a time, so the history is never expanded into a single string.
+class PsiphonTunnelDiagnostics {
+
+    private static final int BLOCK_SIZE = 32 * 1024;
+    static final int DEFAULT_MAX_BYTES = 8 * BLOCK_SIZE;
+    private static final int MIN_MAX_BYTES = 2 * BLOCK_SIZE;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Block {
+        final byte[] mCompressed;
+        final int mLength;
+        final int mNoticeCount;
+
+        Block(byte[] compressed, int length, int noticeCount) {
+            mCompressed = compressed;
+            mLength = length;
+            mNoticeCount = noticeCount;
+        }
+    }
+
+    // All guarded by this.
+    private final ArrayDeque<Block> mBlocks = new ArrayDeque<Block>();
+    private final ByteArrayOutputStream mOpenBlock = new ByteArrayOutputStream(BLOCK_SIZE);
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final byte[] mDeflateBuffer = new byte[CHUNK_SIZE];
+    private int mOpenNoticeCount;
+    private long mCompressedBytes;
+    private int mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mDroppedNoticeCount;
+
+    synchronized void add(String noticeJSON) {
+        byte[] notice = noticeJSON.getBytes(UTF8);
+        if (mOpenBlock.size() > 0) {
+            mOpenBlock.write(',');
+        }
+        mOpenBlock.write(notice, 0, notice.length);
+        mOpenNoticeCount++;
+        if (mOpenBlock.size() >= BLOCK_SIZE) {
+            sealOpenBlock();
+        }
+    }
+
+    // Sets the limit on the memory used by the history. The open block, which is at most about
+    // BLOCK_SIZE bytes, counts towards the limit.
+    synchronized void setMaxBytes(int maxBytes) {
+        mMaxBytes = Math.max(maxBytes, MIN_MAX_BYTES);
+        trim();
+    }
+
+    // Returns a snapshot of the current history, framed as feedback diagnostics JSON: the
+    // fields of feedback, with the notices, oldest first, in the array at
+    // "DiagnosticInfo"."DiagnosticHistory". Any other "DiagnosticInfo" fields in feedback are
+    // kept. Notices added after the snapshot is taken aren't included.
+    Snapshot snapshot(JSONObject feedback) throws JSONException {
+        Block[] blocks;
+        int noticeCount = 0;
+        long droppedNoticeCount;
+        synchronized (this) {
+            sealOpenBlock();
+            blocks = mBlocks.toArray(new Block[mBlocks.size()]);
+            droppedNoticeCount = mDroppedNoticeCount;
+        }
+        for (Block block : blocks) {
+            noticeCount += block.mNoticeCount;
+        }
+
+        JSONObject fields = new JSONObject(feedback.toString());
+        JSONObject diagnosticInfo = fields.optJSONObject("DiagnosticInfo");
+        fields.remove("DiagnosticInfo");
+        if (diagnosticInfo == null) {
+            diagnosticInfo = new JSONObject();
+        }
+        diagnosticInfo.put("DiagnosticHistoryCount", noticeCount);
+        diagnosticInfo.put("DiagnosticHistoryDroppedCount", droppedNoticeCount);
+
+        String prefix = openObject(fields) + "\"DiagnosticInfo\":" + openObject(diagnosticInfo) +
+                "\"DiagnosticHistory\":[";
+        return new Snapshot(prefix.getBytes(UTF8), "]}}".getBytes(UTF8), blocks);
+    }
+
+    // Returns a snapshot, as for snapshot(), of the notices in the rotating notices file rather
+    // than of this history, which is empty while tunnel-core writes diagnostic notices to the
+    // file instead of sending them to the library. The notices are compressed into a temporary
+    // history, with the same byte limit as this history, so the most recent notices are kept.
+    Snapshot snapshotNoticeFile(JSONObject feedback, PsiphonTunnelNoticeReader reader)
+            throws IOException, JSONException {
+        PsiphonTunnelDiagnostics history = new PsiphonTunnelDiagnostics();
+        synchronized (this) {
+            history.setMaxBytes(mMaxBytes);
+        }
+        try {
+            List<JSONObject> notices = reader.readNotices();
+            for (JSONObject notice : notices) {
+                history.add(notice.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return history.snapshot(feedback);
+    }
+
+    // Returns the JSON for object, without its closing brace, ready for another field.
+    private static String openObject(JSONObject object) {
+        String json = object.toString();
+        return json.substring(0, json.length() - 1) + (object.length() > 0 ? "," : "");
+    }
+
+    private void sealOpenBlock() {
+        if (mOpenNoticeCount == 0) {
+            return;
+        }
+        byte[] input = mOpenBlock.toByteArray();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4);
+        mDeflater.reset();
+        mDeflater.setInput(input);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int length = mDeflater.deflate(mDeflateBuffer);
+            output.write(mDeflateBuffer, 0, length);
+        }
+        Block block = new Block(output.toByteArray(), input.length, mOpenNoticeCount);
+        mBlocks.addLast(block);
+        mCompressedBytes += block.mCompressed.length;
+        mOpenBlock.reset();
+        mOpenNoticeCount = 0;
+        trim();
+    }
+
+    private void trim() {
+        while (!mBlocks.isEmpty() && mCompressedBytes + mOpenBlock.size() > mMaxBytes) {
+            Block block = mBlocks.removeFirst();
+            mCompressedBytes -= block.mCompressed.length;
+            mDroppedNoticeCount += block.mNoticeCount;
+        }
+    }
+
+    // Snapshot streams the feedback diagnostics JSON for psi.sendFeedbackStream. Not safe for
+    // concurrent use; tunnel-core reads one upload attempt at a time.
+    static class Snapshot implements FeedbackDiagnostics {
+        private final byte[] mPrefix;
+        private final byte[] mSuffix;
+        private final Block[] mBlocks;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private boolean mPrefixRead;
+        private int mBlockIndex;
+        private Inflater mInflater;
+        private boolean mSuffixRead;
+
+        private Snapshot(byte[] prefix, byte[] suffix, Block[] blocks) {
+            mPrefix = prefix;
+            mSuffix = suffix;
+            mBlocks = blocks;
+        }
+
+        @Override
+        public long rewind() {
+            endInflater();
+            mPrefixRead = false;
+            mBlockIndex = 0;
+            mSuffixRead = false;
+            long length = mPrefix.length + mSuffix.length + Math.max(0, mBlocks.length - 1);
+            for (Block block : mBlocks) {
+                length += block.mLength;
+            }
+            return length;
+        }
+
+        @Override
+        public byte[] readChunk() throws Exception {
+            if (!mPrefixRead) {
+                mPrefixRead = true;
+                return mPrefix;
+            }
+            while (mBlockIndex < mBlocks.length) {
+                if (mInflater == null) {
+                    mInflater = new Inflater();
+                    mInflater.setInput(mBlocks[mBlockIndex].mCompressed);
+                    if (mBlockIndex > 0) {
+                        return new byte[]{','};
+                    }
+                }
+                int length = inflate();
+                if (length > 0) {
+                    return Arrays.copyOf(mChunk, length);
+                }
+                endInflater();
+                mBlockIndex++;
+            }
+            if (!mSuffixRead) {
+                mSuffixRead = true;
+                return mSuffix;
+            }
+            return new byte[0];
+        }
+
+        // Returns the number of bytes inflated into mChunk, or 0 at the end of the block.
+        private int inflate() throws Exception {
+            try {
+                int length = mInflater.inflate(mChunk);
+                if (length == 0 && !mInflater.finished()) {
+                    throw new Exception("truncated diagnostics block");
+                }
+                return length;
+            } catch (DataFormatException e) {
+                throw new Exception("invalid diagnostics block", e);
+            }
+        }
+
+        private void endInflater() {
+            if (mInflater != null) {
+                mInflater.end();
+                mInflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import psi.Psi;
+
+// PsiphonTunnelEgressRegionProber switches through a list of egress regions on a background
+// thread and measures, for each region, the time to connect a tunnel and the round trip time
+// of connections through the tunnel. Rankings are cached per network ID, as a region that's
+// fast on one network may not be on another. A region's tunnel is recognized by the
+// non-diagnostic ActiveTunnelProperties notice.
+class PsiphonTunnelEgressRegionProber {
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int RTT_PROBE_COUNT = 3;
+    private static final int RTT_PROBE_TIMEOUT_MILLIS = 10000;
+    private static final int MAX_CACHED_NETWORKS = 16;
+
+    private final Map<String, List<EgressRegionProbeResult>> mRankings =
+            new LinkedHashMap<String, List<EgressRegionProbeResult>>();
+    private final PsiphonTunnel.HostService mHostService;
+    private final AtomicReference<String> mEgressRegion;
+    private final AtomicInteger mLocalSocksProxyPort;
+    private final PsiphonTunnelMetrics mMetrics;
+    private Thread mThread;
+    private String mProbeRegion;
+    private boolean mTunnelConnected;
+
+    // egressRegion is the selected region, which is restored after probing, and
+    // localSocksProxyPort is the port of the local SOCKS proxy used to measure round trips.
+    PsiphonTunnelEgressRegionProber(
+            PsiphonTunnel.HostService hostService,
+            AtomicReference<String> egressRegion,
+            AtomicInteger localSocksProxyPort,
+            PsiphonTunnelMetrics metrics) {
+        mHostService = hostService;
+        mEgressRegion = egressRegion;
+        mLocalSocksProxyPort = localSocksProxyPort;
+        mMetrics = metrics;
+    }
+
+    synchronized void start(
+            final String networkID, final List<String> regions, final String rttProbeHost,
+            final int rttProbePort, boolean refresh) {
+        List<EgressRegionProbeResult> ranking = mRankings.get(networkID);
+        if (!refresh && ranking != null) {
+            report(ranking);
+            return;
+        }
+        if (mThread != null) {
+            mHostService.onDiagnosticMessage("egress region probe already in progress");
+            return;
+        }
+        final List<String> probeRegions = new ArrayList<String>(regions);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe(networkID, probeRegions, rttProbeHost, rttProbePort);
+                } finally {
+                    synchronized (PsiphonTunnelEgressRegionProber.this) {
+                        mThread = null;
+                        mProbeRegion = null;
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Called for each new active tunnel. Only a tunnel to a server in the probed region
+    // counts, as the tunnel being replaced may still be reported first.
+    synchronized void onActiveTunnel(String region) {
+        if (mProbeRegion != null && mProbeRegion.equals(region)) {
+            mTunnelConnected = true;
+            notifyAll();
+        }
+    }
+
+    synchronized JSONObject getResults(String networkID) {
+        List<EgressRegionProbeResult> ranking = mRankings.get(networkID);
+        if (ranking == null) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        try {
+            JSONArray regions = new JSONArray();
+            for (EgressRegionProbeResult result : ranking) {
+                JSONObject regionJson = new JSONObject();
+                regionJson.put("region", result.mRegion);
+                regionJson.put("connectMillis", result.mConnectMillis);
+                regionJson.put("rttMillis", result.mRttMillis);
+                regions.put(regionJson);
+            }
+            json.put("regions", regions);
+        } catch (JSONException e) {
+            return null;
+        }
+        return json;
+    }
+
+    private void probe(
+            String networkID, List<String> regions, String rttProbeHost, int rttProbePort) {
+        String currentRegion = mEgressRegion.get();
+        List<EgressRegionProbeResult> ranking = new ArrayList<EgressRegionProbeResult>();
+        try {
+            for (String region : regions) {
+                if (region.length() == 0) {
+                    continue;
+                }
+                ranking.add(probeRegion(region, currentRegion, rttProbeHost, rttProbePort));
+                currentRegion = region;
+            }
+        } catch (InterruptedException e) {
+            mHostService.onDiagnosticMessage("egress region probe interrupted");
+            return;
+        } finally {
+            // Restore the selected region; this is a no-op when it's the last probed region.
+            Psi.setEgressRegion(mEgressRegion.get());
+        }
+
+        Collections.sort(ranking);
+        synchronized (this) {
+            mRankings.remove(networkID);
+            if (mRankings.size() >= MAX_CACHED_NETWORKS) {
+                mRankings.remove(mRankings.keySet().iterator().next());
+            }
+            mRankings.put(networkID, ranking);
+        }
+        report(ranking);
+    }
+
+    private EgressRegionProbeResult probeRegion(
+            String region, String currentRegion, String rttProbeHost, int rttProbePort)
+            throws InterruptedException {
+        EgressRegionProbeResult result = new EgressRegionProbeResult(region);
+        long startMillis = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            mProbeRegion = region;
+            mTunnelConnected = false;
+        }
+
+        // When already in the region, reconnect so that the connect time is measured too.
+        mMetrics.recordReconnect();
+        if (region.equals(currentRegion)) {
+            Psi.reconnectTunnel();
+        } else {
+            Psi.setEgressRegion(region);
+        }
+
+        synchronized (this) {
+            long deadline = startMillis + CONNECT_TIMEOUT_MILLIS;
+            while (!mTunnelConnected) {
+                long remainingMillis = deadline - SystemClock.elapsedRealtime();
+                if (remainingMillis <= 0) {
+                    mHostService.onDiagnosticMessage("egress region probe timed out: " + region);
+                    return result;
+                }
+                wait(remainingMillis);
+            }
+        }
+        result.mConnectMillis = SystemClock.elapsedRealtime() - startMillis;
+
+        if (rttProbeHost != null) {
+            result.mRttMillis = measureRttMillis(rttProbeHost, rttProbePort);
+        }
+        return result;
+    }
+
+    // Returns the fastest of several connections through the local SOCKS proxy, or -1 when
+    // all failed. The SOCKS connect completes once the server has connected to the host.
+    private long measureRttMillis(String host, int port) throws InterruptedException {
+        Proxy proxy = new Proxy(Proxy.Type.SOCKS,
+                new InetSocketAddress("127.0.0.1", mLocalSocksProxyPort.get()));
+        long minRttMillis = -1;
+        for (int i = 0; i < RTT_PROBE_COUNT; i++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Socket socket = new Socket(proxy);
+            long startMillis = SystemClock.elapsedRealtime();
+            try {
+                socket.connect(InetSocketAddress.createUnresolved(host, port), RTT_PROBE_TIMEOUT_MILLIS);
+                long rttMillis = SystemClock.elapsedRealtime() - startMillis;
+                if (minRttMillis == -1 || rttMillis < minRttMillis) {
+                    minRttMillis = rttMillis;
+                }
+            } catch (IOException e) {
+                // Skip this sample
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return minRttMillis;
+    }
+
+    private void report(List<EgressRegionProbeResult> ranking) {
+        ArrayList<String> rankedRegions = new ArrayList<String>();
+        StringBuilder message = new StringBuilder("egress regions ranked:");
+        for (EgressRegionProbeResult result : ranking) {
+            rankedRegions.add(result.mRegion);
+            message.append(String.format(Locale.US, " %s (connect %d ms, rtt %d ms)",
+                    result.mRegion, result.mConnectMillis, result.mRttMillis));
+        }
+        mHostService.onDiagnosticMessage(message.toString());
+        mHostService.onEgressRegionsRanked(rankedRegions);
+    }
+
+    // Regions which connected rank before those that didn't, then by round trip time when
+    // measured, and otherwise by connect time.
+    private static class EgressRegionProbeResult implements Comparable<EgressRegionProbeResult> {
+        final String mRegion;
+        long mConnectMillis = -1;
+        long mRttMillis = -1;
+
+        EgressRegionProbeResult(String region) {
+            mRegion = region;
+        }
+
+        @Override
+        public int compareTo(EgressRegionProbeResult other) {
+            if ((mConnectMillis < 0) != (other.mConnectMillis < 0)) {
+                return mConnectMillis < 0 ? 1 : -1;
+            }
+            if ((mRttMillis < 0) != (other.mRttMillis < 0)) {
+                return mRttMillis < 0 ? 1 : -1;
+            }
+            if (mRttMillis != other.mRttMillis) {
+                return mRttMillis < other.mRttMillis ? -1 : 1;
+            }
+            if (mConnectMillis != other.mConnectMillis) {
+                return mConnectMillis < other.mConnectMillis ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
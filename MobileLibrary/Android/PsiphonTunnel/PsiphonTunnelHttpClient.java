@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+// PsiphonTunnelHttpClient tunnels app HTTP traffic through the Psiphon local proxies without the
+// host app wiring onListeningHttpProxyPort and onListeningSocksProxyPort into its HTTP stack by
+// hand. Get the instance from PsiphonTunnel.getHttpClient(); it follows the local proxy ports
+// as tunnel-core reports them, including after a restart.
+//
+// For HttpURLConnection, use openConnection(). For OkHttp, or any other client which accepts a
+// java.net.ProxySelector, use getProxySelector(), for example:
+//
+//   new OkHttpClient.Builder().proxySelector(psiphonTunnel.getHttpClient().getProxySelector())
+//
+// HTTP and HTTPS requests use the local HTTP proxy. Plain HTTP requests benefit from its pool
+// of upstream connections through the tunnel, so repeated requests to an origin skip the
+// connection set up round trip. HTTPS requests use HTTP CONNECT, which always sends the
+// origin host name to the proxy, so the name is resolved by the Psiphon server. With a SOCKS
+// proxy, HttpURLConnection may instead resolve the host name locally, outside of the tunnel.
+// Requests for other schemes, such as the "socket" URIs used for plain Sockets, use the
+// local SOCKS proxy.
+//
+// Until the required local proxy is listening, requests are directed to an unusable proxy
+// address and fail, rather than leaking outside of the tunnel.
+public class PsiphonTunnelHttpClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    // The latest local proxy endpoints. Each port is reported by its own notice and updated
+    // separately, so while tunnel-core restarts the two may belong to different instances;
+    // this is harmless, as each request uses only one of the proxies.
+    private static class Proxies {
+        final Proxy mSocksProxy;
+        final Proxy mHttpProxy;
+
+        Proxies(Proxy socksProxy, Proxy httpProxy) {
+            mSocksProxy = socksProxy;
+            mHttpProxy = httpProxy;
+        }
+    }
+
+    private static final Proxy UNUSABLE_PROXY =
+            new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 0));
+
+    private final AtomicReference<Proxies> mProxies =
+            new AtomicReference<Proxies>(new Proxies(null, null));
+
+    private final ProxySelector mProxySelector = new ProxySelector() {
+        @Override
+        public List<Proxy> select(URI uri) {
+            return Collections.singletonList(selectProxy(uri.getScheme()));
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress socketAddress, IOException e) {
+            // There's no alternative route to fail over to.
+        }
+    };
+
+    PsiphonTunnelHttpClient() {
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Public API
+    //----------------------------------------------------------------------------------------------
+
+    public ProxySelector getProxySelector() {
+        return mProxySelector;
+    }
+
+    // Returns a connection to url through the local HTTP proxy, with timeouts suited to a
+    // tunneled connection and keep-alive enabled, so that the connection to the local proxy,
+    // and for HTTPS the tunneled TLS session, is reused by subsequent requests to the same
+    // origin. Read the response fully and close its stream to return the connection to the pool.
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        Proxy httpProxy = mProxies.get().mHttpProxy;
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection(
+                httpProxy != null ? httpProxy : UNUSABLE_PROXY);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    // Returns true when a local proxy is listening.
+    public boolean isReady() {
+        Proxies proxies = mProxies.get();
+        return proxies.mSocksProxy != null || proxies.mHttpProxy != null;
+    }
+
+    // Fetches originUrl requestCount times through each of the local SOCKS and HTTP proxies, and
+    // returns a JSON object with, for each of "socks" and "http", the "firstMillis" time to the
+    // end of the first response, which includes connection set up, the "reusedAverageMillis"
+    // average for the remaining requests, which may reuse connections, and the number of
+    // "failures". Point originUrl at a stand-in origin under test control, reachable from the
+    // Psiphon server, for comparable runs. Use an IP address literal in originUrl, as the SOCKS
+    // run may resolve a host name locally. Blocks; do not call on the main thread.
+    public JSONObject benchmark(URL originUrl, int requestCount) {
+        Proxies proxies = mProxies.get();
+        JSONObject json = new JSONObject();
+        try {
+            json.put("socks", benchmarkProxy(proxies.mSocksProxy, originUrl, requestCount));
+            json.put("http", benchmarkProxy(proxies.mHttpProxy, originUrl, requestCount));
+        } catch (JSONException e) {
+            return null;
+        }
+        return json;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Implementation
+    //----------------------------------------------------------------------------------------------
+
+    void setSocksProxyPort(int port) {
+        while (true) {
+            Proxies proxies = mProxies.get();
+            Proxy socksProxy = port == 0 ? null :
+                    new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", port));
+            if (mProxies.compareAndSet(proxies, new Proxies(socksProxy, proxies.mHttpProxy))) {
+                return;
+            }
+        }
+    }
+
+    void setHttpProxyPort(int port) {
+        while (true) {
+            Proxies proxies = mProxies.get();
+            Proxy httpProxy = port == 0 ? null :
+                    new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", port));
+            if (mProxies.compareAndSet(proxies, new Proxies(proxies.mSocksProxy, httpProxy))) {
+                return;
+            }
+        }
+    }
+
+    private Proxy selectProxy(String scheme) {
+        Proxies proxies = mProxies.get();
+        Proxy proxy = "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme) ?
+                proxies.mHttpProxy : proxies.mSocksProxy;
+        return proxy != null ? proxy : UNUSABLE_PROXY;
+    }
+
+    private JSONObject benchmarkProxy(Proxy proxy, URL originUrl, int requestCount)
+            throws JSONException {
+        JSONObject json = new JSONObject();
+        long firstMillis = -1;
+        long reusedTotalMillis = 0;
+        int reusedCount = 0;
+        int failures = 0;
+        byte[] buffer = new byte[16384];
+        for (int i = 0; i < requestCount && proxy != null; i++) {
+            long startMillis = SystemClock.elapsedRealtime();
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection)originUrl.openConnection(proxy);
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+                InputStream inputStream = connection.getInputStream();
+                while (inputStream.read(buffer) != -1) {
+                }
+                inputStream.close();
+            } catch (IOException e) {
+                failures++;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                continue;
+            }
+            long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+            if (i == 0) {
+                firstMillis = elapsedMillis;
+            } else {
+                reusedTotalMillis += elapsedMillis;
+                reusedCount++;
+            }
+        }
+        json.put("firstMillis", firstMillis);
+        json.put("reusedAverageMillis", reusedCount > 0 ? reusedTotalMillis / reusedCount : -1);
+        json.put("failures", failures);
+        return json;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.Context;
+import android.os.Build;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import psi.Psi;
+
+// PsiphonTunnelMaintenanceJobService runs tunnel-core data store maintenance, an integrity check
+// with recovery and a compaction, from JobScheduler while the device is idle and charging, so
+// that this I/O doesn't land in the middle of tunnel establishment. Schedule it with
+// PsiphonTunnel.scheduleDataStoreMaintenance().
+//
+// To use, declare the service in the host app manifest, in the same process as the tunnel:
+//
+//   <service android:name="ca.psiphon.PsiphonTunnelMaintenanceJobService"
+//            android:permission="android.permission.BIND_JOB_SERVICE"
+//            android:exported="false"/>
+//
+// Maintenance is skipped while the tunnel is running. If the tunnel is started while
+// maintenance is running, the start waits for maintenance to complete. The result of the
+// latest run is available from PsiphonTunnel.getLastDataStoreMaintenance().
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PsiphonTunnelMaintenanceJobService extends JobService {
+
+    static final String EXTRA_DATA_STORE_DIRECTORY = "dataStoreDirectory";
+
+    static final String PREFERENCES_NAME = "ca.psiphon.PsiphonTunnelMaintenance";
+    static final String PREFERENCE_LAST_RESULT = "lastResult";
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final String dataStoreDirectory = params.getExtras().getString(EXTRA_DATA_STORE_DIRECTORY);
+        if (dataStoreDirectory == null) {
+            return false;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                saveResult(maintainDataStore(dataStoreDirectory));
+                jobFinished(params, false);
+            }
+        }).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // tunnel-core can't interrupt maintenance once it's started, and the job will run again
+        // in the next period.
+        return false;
+    }
+
+    // Returns the maintenance result JSON, with "Backend", "SizeBefore" and "SizeAfter" in
+    // bytes, and "CheckMilliseconds" and "CompactMilliseconds", or with "Error" if maintenance
+    // failed or was skipped. Both include the "Time" the run completed.
+    private static JSONObject maintainDataStore(String dataStoreDirectory) {
+        JSONObject result;
+        try {
+            result = new JSONObject(Psi.maintainDataStore(dataStoreDirectory, true));
+        } catch (java.lang.Exception e) {
+            result = new JSONObject();
+            try {
+                result.put("Error", e.getMessage());
+            } catch (JSONException je) {
+            }
+        }
+        try {
+            result.put("Time", System.currentTimeMillis());
+        } catch (JSONException e) {
+        }
+        return result;
+    }
+
+    private void saveResult(JSONObject result) {
+        getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString(PREFERENCE_LAST_RESULT, result.toString())
+                .apply();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// PsiphonTunnelMetrics holds the PsiphonTunnel counters and, when started, serves a snapshot of
+// them from a loopback-only HTTP endpoint, for scraping over "adb forward". "/metrics" returns
+// the Prometheus text format and "/metrics.json" returns JSON.
+//
+// The counters are preallocated atomics, which are cheap to update from PsiphonProvider
+// callbacks, and a snapshot is rendered into a reused buffer and encoded into a reused byte
+// array, so that scraping doesn't add allocation churn during load tests.
+class PsiphonTunnelMetrics {
+
+    static final int UPCALL_BIND_TO_DEVICE = 0;
+    static final int UPCALL_HAS_NETWORK_CONNECTIVITY = 1;
+    static final int UPCALL_GET_PRIMARY_DNS_SERVER = 2;
+    static final int UPCALL_GET_SECONDARY_DNS_SERVER = 3;
+    static final int UPCALL_IPV6_SYNTHESIZE = 4;
+    static final int UPCALL_GET_NETWORK_ID = 5;
+    static final int UPCALL_NOTICE = 6;
+    private static final String[] UPCALL_NAMES = {
+            "bind_to_device",
+            "has_network_connectivity",
+            "get_primary_dns_server",
+            "get_secondary_dns_server",
+            "ipv6_synthesize",
+            "get_network_id",
+            "notice"};
+
+    private static final int MAX_REQUEST_LINE_LENGTH = 1024;
+    private static final int CLIENT_TIMEOUT_MILLIS = 5000;
+    private static final long RATE_STALE_MILLIS = 2000;
+
+    private final AtomicBoolean mConnected = new AtomicBoolean(false);
+    private final AtomicBoolean mSuspended = new AtomicBoolean(false);
+    private final AtomicInteger mTunnels = new AtomicInteger(0);
+    private final AtomicLong mBytesSent = new AtomicLong(0);
+    private final AtomicLong mBytesReceived = new AtomicLong(0);
+    private final AtomicLong mSendRate = new AtomicLong(0);
+    private final AtomicLong mReceiveRate = new AtomicLong(0);
+    private final AtomicLong mLastBytesTransferredMillis = new AtomicLong(0);
+    private final AtomicLong mLibraryStarts = new AtomicLong(0);
+    private final AtomicLong mReconnects = new AtomicLong(0);
+    private final AtomicBoolean mTun2SocksRunning = new AtomicBoolean(false);
+    private final AtomicLong mTun2SocksStarts = new AtomicLong(0);
+    private final AtomicLongArray mUpcalls = new AtomicLongArray(UPCALL_NAMES.length);
+    private final AtomicLongArray mUpcallNanos = new AtomicLongArray(UPCALL_NAMES.length);
+    private final AtomicLongArray mUpcallMaxNanos = new AtomicLongArray(UPCALL_NAMES.length);
+    private final AtomicReference<ServerSocket> mServerSocket = new AtomicReference<ServerSocket>();
+
+    // Only accessed while synchronized on mBuffer.
+    private final StringBuilder mBuffer = new StringBuilder(4096);
+    private byte[] mEncodedBuffer = new byte[4096];
+    private final byte[] mRequestLine = new byte[MAX_REQUEST_LINE_LENGTH];
+
+    //----------------------------------------------------------------------------------------------
+    // Counters
+    //----------------------------------------------------------------------------------------------
+
+    void setTunnels(int count) {
+        mTunnels.set(count);
+        mConnected.set(count > 0);
+    }
+
+    void setSuspended(boolean suspended) {
+        mSuspended.set(suspended);
+    }
+
+    // Called with the bytes transferred since the previous BytesTransferred notice.
+    void addBytesTransferred(long sent, long received) {
+        long now = SystemClock.elapsedRealtime();
+        long previous = mLastBytesTransferredMillis.getAndSet(now);
+        mBytesSent.addAndGet(sent);
+        mBytesReceived.addAndGet(received);
+        long elapsedMillis = previous == 0 ? 1000 : Math.max(now - previous, 1);
+        mSendRate.set(sent * 1000 / elapsedMillis);
+        mReceiveRate.set(received * 1000 / elapsedMillis);
+    }
+
+    void recordLibraryStart() {
+        mLibraryStarts.incrementAndGet();
+    }
+
+    void recordReconnect() {
+        mReconnects.incrementAndGet();
+    }
+
+    void setTun2SocksRunning(boolean running) {
+        if (running && !mTun2SocksRunning.get()) {
+            mTun2SocksStarts.incrementAndGet();
+        }
+        mTun2SocksRunning.set(running);
+    }
+
+    void recordUpcall(int upcall, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        mUpcalls.incrementAndGet(upcall);
+        mUpcallNanos.addAndGet(upcall, nanos);
+        long max = mUpcallMaxNanos.get(upcall);
+        while (nanos > max && !mUpcallMaxNanos.compareAndSet(upcall, max, nanos)) {
+            max = mUpcallMaxNanos.get(upcall);
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Endpoint
+    //----------------------------------------------------------------------------------------------
+
+    // Listens on the loopback interface only; port 0 selects any free port. Returns the
+    // listening port.
+    int start(int port) throws IOException {
+        stop();
+        final ServerSocket serverSocket = new ServerSocket(port, 4, InetAddress.getByName("127.0.0.1"));
+        mServerSocket.set(serverSocket);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Scrapes are served one at a time; a scraper that stalls is dropped after
+                // CLIENT_TIMEOUT_MILLIS.
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            serve(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        // Continue until closed
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    void stop() {
+        ServerSocket serverSocket = mServerSocket.getAndSet(null);
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(CLIENT_TIMEOUT_MILLIS);
+        InputStream inputStream = socket.getInputStream();
+        OutputStream outputStream = socket.getOutputStream();
+        synchronized (mBuffer) {
+            String path = readRequestPath(inputStream);
+            String status = "200 OK";
+            String contentType;
+            mBuffer.setLength(0);
+            if ("/metrics".equals(path)) {
+                contentType = "text/plain; version=0.0.4";
+                renderPrometheus();
+            } else if ("/metrics.json".equals(path)) {
+                contentType = "application/json";
+                renderJson();
+            } else {
+                status = "404 Not Found";
+                contentType = "text/plain";
+            }
+            // The body is encoded first, for its length, and the header after it.
+            int bodyLength = encodeBuffer(0);
+            mBuffer.setLength(0);
+            mBuffer.append("HTTP/1.1 ").append(status)
+                    .append("\r\nContent-Type: ").append(contentType)
+                    .append("\r\nContent-Length: ").append(bodyLength)
+                    .append("\r\nConnection: close\r\n\r\n");
+            int end = encodeBuffer(bodyLength);
+            outputStream.write(mEncodedBuffer, bodyLength, end - bodyLength);
+            outputStream.write(mEncodedBuffer, 0, bodyLength);
+            outputStream.flush();
+        }
+    }
+
+    // Encodes mBuffer into mEncodedBuffer at offset, growing it when necessary, and returns the
+    // end offset. The rendered output is ASCII only, as it consists of fixed names and numbers,
+    // so each char is one byte.
+    private int encodeBuffer(int offset) {
+        int length = mBuffer.length();
+        if (offset + length > mEncodedBuffer.length) {
+            mEncodedBuffer = Arrays.copyOf(
+                    mEncodedBuffer, Math.max(2 * mEncodedBuffer.length, offset + length));
+        }
+        for (int i = 0; i < length; i++) {
+            mEncodedBuffer[offset + i] = (byte)mBuffer.charAt(i);
+        }
+        return offset + length;
+    }
+
+    // Returns the path of a GET request line, without any query, or null.
+    private String readRequestPath(InputStream inputStream) throws IOException {
+        int length = 0;
+        while (length < mRequestLine.length) {
+            int b = inputStream.read();
+            if (b == -1 || b == '\n') {
+                break;
+            }
+            mRequestLine[length++] = (byte)b;
+        }
+        String requestLine = new String(mRequestLine, 0, length, "US-ASCII").trim();
+        String[] fields = requestLine.split(" ");
+        if (fields.length < 2 || !fields[0].equals("GET")) {
+            return null;
+        }
+        int queryIndex = fields[1].indexOf('?');
+        return queryIndex == -1 ? fields[1] : fields[1].substring(0, queryIndex);
+    }
+
+    private boolean ratesAreStale() {
+        long last = mLastBytesTransferredMillis.get();
+        return last == 0 || SystemClock.elapsedRealtime() - last > RATE_STALE_MILLIS;
+    }
+
+    private void renderPrometheus() {
+        // BytesTransferred notices are only emitted while the tunnel is not idle.
+        boolean stale = ratesAreStale();
+        appendMetric("psiphon_connected", "gauge", mConnected.get() ? 1 : 0);
+        appendMetric("psiphon_suspended", "gauge", mSuspended.get() ? 1 : 0);
+        appendMetric("psiphon_tunnels", "gauge", mTunnels.get());
+        appendMetric("psiphon_bytes_sent_total", "counter", mBytesSent.get());
+        appendMetric("psiphon_bytes_received_total", "counter", mBytesReceived.get());
+        appendMetric("psiphon_send_bytes_per_second", "gauge", stale ? 0 : mSendRate.get());
+        appendMetric("psiphon_receive_bytes_per_second", "gauge", stale ? 0 : mReceiveRate.get());
+        appendMetric("psiphon_library_starts_total", "counter", mLibraryStarts.get());
+        appendMetric("psiphon_tunnel_reconnects_total", "counter", mReconnects.get());
+        appendMetric("psiphon_tun2socks_running", "gauge", mTun2SocksRunning.get() ? 1 : 0);
+        appendMetric("psiphon_tun2socks_starts_total", "counter", mTun2SocksStarts.get());
+        appendUpcallMetric("psiphon_upcalls_total", "counter", mUpcalls, 1);
+        appendUpcallMetric("psiphon_upcall_duration_microseconds_total", "counter", mUpcallNanos, 1000);
+        appendUpcallMetric("psiphon_upcall_max_duration_microseconds", "gauge", mUpcallMaxNanos, 1000);
+    }
+
+    private void appendMetric(String name, String type, long value) {
+        mBuffer.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        mBuffer.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void appendUpcallMetric(String name, String type, AtomicLongArray values, long divisor) {
+        mBuffer.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (int i = 0; i < UPCALL_NAMES.length; i++) {
+            mBuffer.append(name).append("{upcall=\"").append(UPCALL_NAMES[i]).append("\"} ")
+                    .append(values.get(i) / divisor).append('\n');
+        }
+    }
+
+    private void renderJson() {
+        boolean stale = ratesAreStale();
+        mBuffer.append('{');
+        appendJsonField("connected", mConnected.get()).append(',');
+        appendJsonField("suspended", mSuspended.get()).append(',');
+        appendJsonField("tunnels", mTunnels.get()).append(',');
+        appendJsonField("bytesSent", mBytesSent.get()).append(',');
+        appendJsonField("bytesReceived", mBytesReceived.get()).append(',');
+        appendJsonField("sendBytesPerSecond", stale ? 0 : mSendRate.get()).append(',');
+        appendJsonField("receiveBytesPerSecond", stale ? 0 : mReceiveRate.get()).append(',');
+        appendJsonField("libraryStarts", mLibraryStarts.get()).append(',');
+        appendJsonField("tunnelReconnects", mReconnects.get()).append(',');
+        appendJsonField("tun2socksRunning", mTun2SocksRunning.get()).append(',');
+        appendJsonField("tun2socksStarts", mTun2SocksStarts.get()).append(',');
+        mBuffer.append("\"upcalls\":{");
+        for (int i = 0; i < UPCALL_NAMES.length; i++) {
+            if (i > 0) {
+                mBuffer.append(',');
+            }
+            mBuffer.append('"').append(UPCALL_NAMES[i]).append("\":{");
+            appendJsonField("count", mUpcalls.get(i)).append(',');
+            appendJsonField("totalMicroseconds", mUpcallNanos.get(i) / 1000).append(',');
+            appendJsonField("maxMicroseconds", mUpcallMaxNanos.get(i) / 1000);
+            mBuffer.append('}');
+        }
+        mBuffer.append("}}");
+    }
+
+    private StringBuilder appendJsonField(String name, long value) {
+        return mBuffer.append('"').append(name).append("\":").append(value);
+    }
+
+    private StringBuilder appendJsonField(String name, boolean value) {
+        return mBuffer.append('"').append(name).append("\":").append(value);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// PsiphonTunnelNetworkProtocolHistory records, per network ID, the tunnel protocols which
+// connected and their time to connect, and prefers the fastest of them when establishing on
+// that network again. The history is an LRU of the networks most recently started on or
+// connected on, persisted in SharedPreferences, and is loaded on first use. The active tunnel
+// protocol is reported by the non-diagnostic ActiveTunnelProperties notice.
+//
+// The preferred protocols are applied with InitialLimitTunnelProtocols, so only the first
+// establishment candidates are limited to them, and all of the protocols allowed by
+// LimitTunnelProtocols are still tried when the network no longer allows the preferred
+// ones. This complements tunnel-core's per-network dial parameters replay, which prefers the
+// last successful server.
+class PsiphonTunnelNetworkProtocolHistory {
+    private static final String PREFERENCES_NAME = "ca.psiphon.PsiphonTunnelNetworkHistory";
+    private static final String PREFERENCE_HISTORY = "history";
+    private static final int MAX_NETWORKS = 32;
+    private static final int MAX_PREFERRED_PROTOCOLS = 3;
+    private static final int INITIAL_LIMIT_CANDIDATE_COUNT = 10;
+    private static final long MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    // The weight of a new sample in the moving average connect time.
+    private static final double CONNECT_MILLIS_WEIGHT = 0.3;
+
+    // Network ID -> protocol -> {"connects", "connectMillis", "time"}, in access order.
+    private LinkedHashMap<String, JSONObject> mNetworks;
+    private long mEstablishStartMillis;
+    private final PsiphonTunnel.HostService mHostService;
+
+    PsiphonTunnelNetworkProtocolHistory(PsiphonTunnel.HostService hostService) {
+        mHostService = hostService;
+    }
+
+    // Called when establishment starts, on a start or when the tunnel is lost.
+    synchronized void onEstablishing() {
+        mEstablishStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onActiveTunnel(String networkID, String protocol) {
+        if (mEstablishStartMillis == 0) {
+            return;
+        }
+        long connectMillis = SystemClock.elapsedRealtime() - mEstablishStartMillis;
+        mEstablishStartMillis = 0;
+        load();
+        JSONObject protocols = mNetworks.remove(networkID);
+        if (protocols == null) {
+            protocols = new JSONObject();
+        }
+        try {
+            JSONObject stats = protocols.optJSONObject(protocol);
+            if (stats == null) {
+                stats = new JSONObject();
+                stats.put("connectMillis", connectMillis);
+            } else {
+                stats.put("connectMillis", Math.round(
+                        CONNECT_MILLIS_WEIGHT * connectMillis +
+                        (1 - CONNECT_MILLIS_WEIGHT) * stats.getLong("connectMillis")));
+            }
+            stats.put("connects", stats.optLong("connects") + 1);
+            stats.put("time", System.currentTimeMillis());
+            protocols.put(protocol, stats);
+        } catch (JSONException e) {
+            return;
+        }
+        if (mNetworks.size() >= MAX_NETWORKS) {
+            mNetworks.remove(mNetworks.keySet().iterator().next());
+        }
+        mNetworks.put(networkID, protocols);
+        save();
+    }
+
+    // Sets InitialLimitTunnelProtocols in config to the fastest protocols recently connected
+    // on the current network, unless the host config sets its own initial limit or a single
+    // TunnelProtocol. Preferred protocols excluded by LimitTunnelProtocols are skipped. Starting
+    // on a known network makes it the most recently used.
+    void applyPreferences(JSONObject config, String networkID) throws JSONException {
+        if (config.has("InitialLimitTunnelProtocols") || config.optString("TunnelProtocol").length() > 0) {
+            return;
+        }
+        List<String> preferred = getPreferredProtocols(networkID);
+        JSONArray limit = config.optJSONArray("LimitTunnelProtocols");
+        if (limit != null && limit.length() > 0) {
+            List<String> allowed = new ArrayList<String>();
+            for (int i = 0; i < limit.length(); i++) {
+                allowed.add(limit.getString(i));
+            }
+            preferred.retainAll(allowed);
+        }
+        if (preferred.isEmpty()) {
+            return;
+        }
+        config.put("InitialLimitTunnelProtocols", new JSONArray(preferred));
+        config.put("InitialLimitTunnelProtocolsCandidateCount", INITIAL_LIMIT_CANDIDATE_COUNT);
+        mHostService.onDiagnosticMessage("preferring tunnel protocols for this network: " + preferred);
+    }
+
+    synchronized JSONObject getStats(String networkID) {
+        load();
+        JSONObject protocols = mNetworks.get(networkID);
+        if (protocols == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(protocols.toString());
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private synchronized List<String> getPreferredProtocols(String networkID) {
+        load();
+        final JSONObject protocols = mNetworks.remove(networkID);
+        List<String> preferred = new ArrayList<String>();
+        if (protocols == null) {
+            return preferred;
+        }
+        mNetworks.put(networkID, protocols);
+        save();
+        long now = System.currentTimeMillis();
+        Iterator<String> keys = protocols.keys();
+        while (keys.hasNext()) {
+            String protocol = keys.next();
+            JSONObject stats = protocols.optJSONObject(protocol);
+            if (stats != null && now - stats.optLong("time") < MAX_AGE_MILLIS) {
+                preferred.add(protocol);
+            }
+        }
+        Collections.sort(preferred, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long aMillis = protocols.optJSONObject(a).optLong("connectMillis");
+                long bMillis = protocols.optJSONObject(b).optLong("connectMillis");
+                return aMillis < bMillis ? -1 : (aMillis == bMillis ? 0 : 1);
+            }
+        });
+        if (preferred.size() > MAX_PREFERRED_PROTOCOLS) {
+            preferred = new ArrayList<String>(preferred.subList(0, MAX_PREFERRED_PROTOCOLS));
+        }
+        return preferred;
+    }
+
+    private void load() {
+        if (mNetworks != null) {
+            return;
+        }
+        mNetworks = new LinkedHashMap<String, JSONObject>();
+        String history = getPreferences().getString(PREFERENCE_HISTORY, null);
+        if (history == null) {
+            return;
+        }
+        try {
+            // Stored in LRU order, least recently used first.
+            JSONArray networks = new JSONArray(history);
+            for (int i = 0; i < networks.length(); i++) {
+                JSONObject network = networks.getJSONObject(i);
+                mNetworks.put(network.getString("networkID"), network.getJSONObject("protocols"));
+            }
+        } catch (JSONException e) {
+            mNetworks.clear();
+        }
+    }
+
+    private void save() {
+        JSONArray networks = new JSONArray();
+        try {
+            for (Map.Entry<String, JSONObject> entry : mNetworks.entrySet()) {
+                JSONObject network = new JSONObject();
+                network.put("networkID", entry.getKey());
+                network.put("protocols", entry.getValue());
+                networks.put(network);
+            }
+        } catch (JSONException e) {
+            return;
+        }
+        getPreferences().edit().putString(PREFERENCE_HISTORY, networks.toString()).apply();
+    }
+
+    private SharedPreferences getPreferences() {
+        return mHostService.getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
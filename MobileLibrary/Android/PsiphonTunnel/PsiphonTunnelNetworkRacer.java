@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+// PsiphonTunnelNetworkRacer requests the cellular network alongside Wi-Fi and alternates
+// binding establishment candidate sockets between the two, so that establishment races over
+// both networks. The network carrying the first active tunnel wins: later sockets are bound to
+// it and, when Wi-Fi wins, the cellular network request is released. A cellular winner keeps
+// the request, as the tunnel depends on it, until the next race.
+//
+// A new race starts, and cellular is requested again if necessary, when the underlying network
+// changes, when the active tunnel is lost, or when the winning network is lost.
+@TargetApi(Build.VERSION_CODES.M)
+class PsiphonTunnelNetworkRacer {
+    static final String WIFI = "WIFI";
+    static final String CELLULAR = "CELLULAR";
+    private static final int MAX_BOUND_SOCKETS = 256;
+
+    private static class BoundSocket {
+        final int mFileDescriptor;
+        final String mNetworkLabel;
+        BoundSocket(int fileDescriptor, String networkLabel) {
+            mFileDescriptor = fileDescriptor;
+            mNetworkLabel = networkLabel;
+        }
+    }
+
+    private static class NetworkStats {
+        long mCandidates;
+        long mWins;
+        long mLastTimeToConnectMillis = -1;
+    }
+
+    private ConnectivityManager mConnectivityManager;
+    private ConnectivityManager.NetworkCallback mWifiCallback;
+    private ConnectivityManager.NetworkCallback mCellularCallback;
+    private Network mWifiNetwork;
+    private Network mCellularNetwork;
+    private String mWinner;
+    private long mRaceStartMillis;
+    private long mBindCount;
+    private final ArrayDeque<BoundSocket> mBoundSockets = new ArrayDeque<BoundSocket>();
+    private final Map<String, NetworkStats> mStats = new HashMap<String, NetworkStats>();
+
+    PsiphonTunnelNetworkRacer() {
+        mStats.put(WIFI, new NetworkStats());
+        mStats.put(CELLULAR, new NetworkStats());
+    }
+
+    synchronized void start(Context context) {
+        if (mConnectivityManager != null) {
+            return;
+        }
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return;
+        }
+        mConnectivityManager = connectivityManager;
+        mWinner = null;
+        resetRace();
+
+        // The Wi-Fi network is only tracked, while the cellular network is requested so
+        // that the system brings it up even when Wi-Fi is the default network.
+        mWifiCallback = newNetworkCallback(WIFI);
+        try {
+            mConnectivityManager.registerNetworkCallback(
+                    newNetworkRequest(NetworkCapabilities.TRANSPORT_WIFI), mWifiCallback);
+            requestCellular();
+        } catch (SecurityException e) {
+            // Missing the CHANGE_NETWORK_STATE permission. Sockets are then left unbound.
+            stop();
+        }
+    }
+
+    // Starts a new race when the previous one was decided. Returns true when a race started.
+    synchronized boolean restart() {
+        if (mConnectivityManager == null || mWinner == null) {
+            return false;
+        }
+        mWinner = null;
+        resetRace();
+        if (mCellularCallback == null) {
+            try {
+                requestCellular();
+            } catch (SecurityException e) {
+                // Sockets are then bound to Wi-Fi only.
+            }
+        }
+        return true;
+    }
+
+    synchronized void stop() {
+        if (mConnectivityManager == null) {
+            return;
+        }
+        releaseCallback(mWifiCallback);
+        releaseCallback(mCellularCallback);
+        mWifiCallback = null;
+        mCellularCallback = null;
+        mWifiNetwork = null;
+        mCellularNetwork = null;
+        mWinner = null;
+        mBoundSockets.clear();
+        mConnectivityManager = null;
+    }
+
+    synchronized boolean isStarted() {
+        return mConnectivityManager != null;
+    }
+
+    synchronized boolean hasAvailableNetwork() {
+        return mWifiNetwork != null || mCellularNetwork != null;
+    }
+
+    synchronized String getWinner() {
+        return mWinner;
+    }
+
+    // Binds the socket to the winning network or, while racing, alternately to Wi-Fi and
+    // cellular. Sockets are left unbound when no network is available.
+    void bind(int fileDescriptor) throws IOException {
+        Network network;
+        String networkLabel;
+        synchronized (this) {
+            if (mWinner != null) {
+                networkLabel = mWinner;
+            } else if (mWifiNetwork != null && mCellularNetwork != null) {
+                networkLabel = (mBindCount++ % 2 == 0) ? WIFI : CELLULAR;
+            } else if (mWifiNetwork != null) {
+                networkLabel = WIFI;
+            } else {
+                networkLabel = CELLULAR;
+            }
+            network = networkLabel.equals(WIFI) ? mWifiNetwork : mCellularNetwork;
+            if (network == null) {
+                return;
+            }
+            if (mWinner == null) {
+                if (mBoundSockets.size() >= MAX_BOUND_SOCKETS) {
+                    mBoundSockets.removeFirst();
+                }
+                mBoundSockets.addLast(new BoundSocket(fileDescriptor, networkLabel));
+            }
+            mStats.get(networkLabel).mCandidates++;
+        }
+
+        // Network.bindSocket applies to the socket, so binding a dup of the
+        // tunnel-core owned file descriptor is sufficient.
+        ParcelFileDescriptor socketFd = ParcelFileDescriptor.fromFd(fileDescriptor);
+        try {
+            network.bindSocket(socketFd.getFileDescriptor());
+        } finally {
+            socketFd.close();
+        }
+    }
+
+    // Called when a tunnel is established. Returns the label of the winning network, or
+    // null when the race was already decided or the tunnel socket can't be identified.
+    synchronized String onTunnelEstablished() {
+        if (mConnectivityManager == null || mWinner != null) {
+            return null;
+        }
+
+        // The tunnel socket is the most recently bound candidate socket that is still
+        // connected and whose local address belongs to the network it was bound to. Losing
+        // candidates have been closed by this point, and the address check guards against
+        // file descriptor reuse.
+        Iterator<BoundSocket> iterator = mBoundSockets.descendingIterator();
+        while (iterator.hasNext()) {
+            BoundSocket boundSocket = iterator.next();
+            Network network = boundSocket.mNetworkLabel.equals(WIFI) ? mWifiNetwork : mCellularNetwork;
+            if (network != null && isConnectedOnNetwork(boundSocket.mFileDescriptor, network)) {
+                mWinner = boundSocket.mNetworkLabel;
+                break;
+            }
+        }
+        mBoundSockets.clear();
+        if (mWinner == null) {
+            return null;
+        }
+
+        NetworkStats stats = mStats.get(mWinner);
+        stats.mWins++;
+        stats.mLastTimeToConnectMillis = SystemClock.elapsedRealtime() - mRaceStartMillis;
+
+        if (mWinner.equals(WIFI)) {
+            releaseCallback(mCellularCallback);
+            mCellularCallback = null;
+            mCellularNetwork = null;
+        }
+
+        return String.format(Locale.US, "%s in %d ms", mWinner, stats.mLastTimeToConnectMillis);
+    }
+
+    synchronized JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Map.Entry<String, NetworkStats> entry : mStats.entrySet()) {
+                JSONObject networkJson = new JSONObject();
+                networkJson.put("candidates", entry.getValue().mCandidates);
+                networkJson.put("wins", entry.getValue().mWins);
+                networkJson.put("lastTimeToConnectMillis", entry.getValue().mLastTimeToConnectMillis);
+                json.put(entry.getKey(), networkJson);
+            }
+            json.put("winner", mWinner == null ? "" : mWinner);
+        } catch (JSONException e) {
+            return null;
+        }
+        return json;
+    }
+
+    private boolean isConnectedOnNetwork(int fileDescriptor, Network network) {
+        LinkProperties linkProperties = mConnectivityManager.getLinkProperties(network);
+        if (linkProperties == null) {
+            return false;
+        }
+        ParcelFileDescriptor socketFd = null;
+        try {
+            socketFd = ParcelFileDescriptor.fromFd(fileDescriptor);
+            // Throws when the socket is not connected.
+            Os.getpeername(socketFd.getFileDescriptor());
+            SocketAddress localAddress = Os.getsockname(socketFd.getFileDescriptor());
+            if (!(localAddress instanceof InetSocketAddress)) {
+                return false;
+            }
+            InetAddress address = ((InetSocketAddress)localAddress).getAddress();
+            for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+                if (linkAddress.getAddress().equals(address)) {
+                    return true;
+                }
+            }
+        } catch (ErrnoException e) {
+        } catch (IOException e) {
+        } finally {
+            if (socketFd != null) {
+                try {
+                    socketFd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return false;
+    }
+
+    private static NetworkRequest newNetworkRequest(int transportType) {
+        return new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addTransportType(transportType)
+                .build();
+    }
+
+    private ConnectivityManager.NetworkCallback newNetworkCallback(final String networkLabel) {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                synchronized (PsiphonTunnelNetworkRacer.this) {
+                    setNetwork(networkLabel, network);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                synchronized (PsiphonTunnelNetworkRacer.this) {
+                    Network current = networkLabel.equals(WIFI) ? mWifiNetwork : mCellularNetwork;
+                    if (network.equals(current)) {
+                        setNetwork(networkLabel, null);
+                        // Subsequent sockets race over whichever networks remain.
+                        if (networkLabel.equals(mWinner)) {
+                            restart();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private void setNetwork(String networkLabel, Network network) {
+        if (networkLabel.equals(WIFI)) {
+            mWifiNetwork = network;
+        } else {
+            mCellularNetwork = network;
+        }
+    }
+
+    private void requestCellular() {
+        ConnectivityManager.NetworkCallback callback = newNetworkCallback(CELLULAR);
+        mConnectivityManager.requestNetwork(
+                newNetworkRequest(NetworkCapabilities.TRANSPORT_CELLULAR), callback);
+        mCellularCallback = callback;
+    }
+
+    private void resetRace() {
+        mBindCount = 0;
+        mBoundSockets.clear();
+        mRaceStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    private void releaseCallback(ConnectivityManager.NetworkCallback callback) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            mConnectivityManager.unregisterNetworkCallback(callback);
+        } catch (IllegalArgumentException e) {
+            // Not registered.
+        }
+    }
+}
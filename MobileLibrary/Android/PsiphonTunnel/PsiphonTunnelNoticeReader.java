@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// PsiphonTunnelNoticeReader tails the rotating notices file which tunnel-core writes when
+// PsiphonTunnel.setRotatingNoticesFile() is enabled, for in-app display of the logs. Get an
+// instance from PsiphonTunnel.newNoticeReader().
+//
+// Each readNotices() call returns only the notices written since the previous call. The
+// first call also returns the notices in the older, rotated file. When tunnel-core rotates
+// the file, the rest of the rotated file is read through the already open file before
+// switching to the new file, so no notices are skipped.
+//
+// Not safe for concurrent use. Call from a background thread.
+public class PsiphonTunnelNoticeReader {
+
+    private static final int BUFFER_SIZE = 16384;
+    private static final int MAX_IDENTITY_LENGTH = 4096;
+
+    private final File mFile;
+    private final File mOlderFile;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final ByteArrayOutputStream mPartialLine = new ByteArrayOutputStream();
+    private RandomAccessFile mInput;
+    private long mPosition;
+    // The first line of the open file, which identifies it across rotations. tunnel-core
+    // timestamps every notice, so a new file starts with a different line.
+    private byte[] mIdentity;
+    private boolean mStarted;
+
+    PsiphonTunnelNoticeReader(File file) {
+        mFile = file;
+        mOlderFile = new File(file.getPath() + ".1");
+    }
+
+    // Returns the notices written since the previous call, oldest first. Lines which aren't
+    // complete yet are returned by a later call; malformed lines are skipped.
+    public List<JSONObject> readNotices() throws IOException {
+        List<JSONObject> notices = new ArrayList<JSONObject>();
+        if (!mStarted) {
+            mStarted = true;
+            readOlderFile(notices);
+        }
+        if (mInput == null && !open()) {
+            return notices;
+        }
+        readAvailable(notices);
+        if (isRotated()) {
+            // The open file is now the rotated file, and was just read to its end.
+            close();
+            if (open()) {
+                readAvailable(notices);
+            }
+        }
+        return notices;
+    }
+
+    public void close() {
+        if (mInput != null) {
+            try {
+                mInput.close();
+            } catch (IOException e) {
+            }
+            mInput = null;
+        }
+    }
+
+    private void readOlderFile(List<JSONObject> notices) throws IOException {
+        if (!mOlderFile.exists()) {
+            return;
+        }
+        RandomAccessFile input = new RandomAccessFile(mOlderFile, "r");
+        try {
+            mPartialLine.reset();
+            while (true) {
+                int readCount = input.read(mBuffer);
+                if (readCount == -1) {
+                    break;
+                }
+                parseLines(readCount, notices);
+            }
+            mPartialLine.reset();
+        } finally {
+            input.close();
+        }
+    }
+
+    private boolean open() throws IOException {
+        if (!mFile.exists()) {
+            return false;
+        }
+        mInput = new RandomAccessFile(mFile, "r");
+        mPosition = 0;
+        mIdentity = null;
+        mPartialLine.reset();
+        return true;
+    }
+
+    private void readAvailable(List<JSONObject> notices) throws IOException {
+        mInput.seek(mPosition);
+        while (true) {
+            int readCount = mInput.read(mBuffer);
+            if (readCount == -1) {
+                return;
+            }
+            mPosition += readCount;
+            parseLines(readCount, notices);
+            if (!isCompleteIdentity(mIdentity)) {
+                mIdentity = readIdentity(mInput);
+                mInput.seek(mPosition);
+            }
+        }
+    }
+
+    // Returns true when the file at mFile is no longer the open file.
+    private boolean isRotated() throws IOException {
+        if (!mFile.exists()) {
+            return true;
+        }
+        if (mIdentity == null || mIdentity.length == 0) {
+            return mFile.length() < mPosition;
+        }
+        byte[] identity;
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        try {
+            identity = readIdentity(input);
+        } finally {
+            input.close();
+        }
+        // The open file only grows, so its identity can only be extended.
+        return identity.length < mIdentity.length ||
+                !Arrays.equals(Arrays.copyOf(identity, mIdentity.length), mIdentity);
+    }
+
+    private static boolean isCompleteIdentity(byte[] identity) {
+        return identity != null && identity.length > 0 &&
+                (identity[identity.length - 1] == '\n' || identity.length == MAX_IDENTITY_LENGTH);
+    }
+
+    // Returns the first line of input, including its newline, or as much of it as is written,
+    // up to MAX_IDENTITY_LENGTH bytes.
+    private static byte[] readIdentity(RandomAccessFile input) throws IOException {
+        byte[] buffer = new byte[MAX_IDENTITY_LENGTH];
+        input.seek(0);
+        int length = 0;
+        while (length < buffer.length) {
+            int readCount = input.read(buffer, length, buffer.length - length);
+            if (readCount == -1) {
+                break;
+            }
+            for (int i = length; i < length + readCount; i++) {
+                if (buffer[i] == '\n') {
+                    return Arrays.copyOf(buffer, i + 1);
+                }
+            }
+            length += readCount;
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void parseLines(int length, List<JSONObject> notices) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (mBuffer[i] != '\n') {
+                continue;
+            }
+            mPartialLine.write(mBuffer, lineStart, i - lineStart);
+            lineStart = i + 1;
+            try {
+                notices.add(new JSONObject(mPartialLine.toString("UTF-8")));
+            } catch (IOException | JSONException e) {
+                // Skip malformed lines
+            }
+            mPartialLine.reset();
+        }
+        mPartialLine.write(mBuffer, lineStart, length - lineStart);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// PsiphonTunnelRemoteService runs PsiphonTunnelService in a dedicated process, so that the
+// host app's UI allocation bursts and GC pauses don't share a heap and runtime with the
+// Psiphon Library notice callbacks and tun2socks upcalls.
+//
+// To use, declare the service in the host app manifest with its own process:
+//
+//   <service android:name="ca.psiphon.PsiphonTunnelRemoteService"
+//            android:process=":tunnel" android:exported="false"/>
+//
+// and control it from the host app process with PsiphonTunnelRemoteService.Client.
+//
+// The binder interface is hand-written, as the library is built with javac alone and AIDL
+// isn't available. Rather than one IPC per notice, updates to the client are batched: the
+// latest state, proxy ports, and byte counts are coalesced, diagnostic messages are queued,
+// and everything is sent in a single oneway transaction at most every UPDATE_BATCH_MILLIS.
+// A burst of diagnostic messages is sent in transactions of MAX_BATCHED_DIAGNOSTIC_MESSAGES,
+// without waiting for the batching delay. Messages are only dropped when more than
+// MAX_PENDING_DIAGNOSTIC_MESSAGES are waiting, for example before a client registers, and
+// the client then receives a message with the dropped count.
+//
+// To measure the effect of the dedicated process, compare the service's callback latency,
+// which Client reports with getServiceMeanCallbackLatencyMillis(), with
+// PsiphonTunnelService.getMeanCallbackLatencyMillis() when the service runs in the host app
+// process under the same UI load. The TunneledWebView sample's CallbackLatencyBenchmark does
+// this with a synthetic UI load.
+public class PsiphonTunnelRemoteService extends PsiphonTunnelService {
+
+    private static final String DESCRIPTOR = "ca.psiphon.PsiphonTunnelRemoteService";
+    private static final String CALLBACK_DESCRIPTOR = "ca.psiphon.PsiphonTunnelRemoteService.Callback";
+
+    private static final int TRANSACTION_START_TUNNEL = IBinder.FIRST_CALL_TRANSACTION;
+    private static final int TRANSACTION_STOP_TUNNEL = IBinder.FIRST_CALL_TRANSACTION + 1;
+    private static final int TRANSACTION_SUSPEND_TUNNEL = IBinder.FIRST_CALL_TRANSACTION + 2;
+    private static final int TRANSACTION_RESUME_TUNNEL = IBinder.FIRST_CALL_TRANSACTION + 3;
+    private static final int TRANSACTION_SET_CALLBACK = IBinder.FIRST_CALL_TRANSACTION + 4;
+    private static final int TRANSACTION_UPDATE = IBinder.FIRST_CALL_TRANSACTION;
+
+    private static final long UPDATE_BATCH_MILLIS = 250;
+    private static final int MAX_BATCHED_DIAGNOSTIC_MESSAGES = 100;
+    private static final int MAX_PENDING_DIAGNOSTIC_MESSAGES = 1000;
+
+    private final Object mUpdateLock = new Object();
+    private IBinder mCallback;
+    private ArrayList<String> mPendingDiagnosticMessages = new ArrayList<String>();
+    private int mDroppedDiagnosticMessages;
+    private long mBytesSent;
+    private long mBytesReceived;
+    // The time the oldest pending update was queued; 0 when no update is pending.
+    private long mFirstPendingUpdateMillis;
+    private Handler mUpdateHandler;
+
+    private final Runnable mSendUpdate = new Runnable() {
+        @Override
+        public void run() {
+            sendUpdate();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mUpdateHandler = new Handler(Looper.getMainLooper());
+        addListener(new Listener() {
+            @Override
+            public void onStateChanged(State state) {
+                queueUpdate(null);
+            }
+
+            @Override
+            public void onDiagnosticMessage(String message) {
+                queueUpdate(message);
+            }
+        });
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return new RemoteBinder();
+    }
+
+    @Override
+    public void onBytesTransferred(long sent, long received) {
+        synchronized (mUpdateLock) {
+            mBytesSent += sent;
+            mBytesReceived += received;
+        }
+        queueUpdate(null);
+    }
+
+    private void queueUpdate(String diagnosticMessage) {
+        synchronized (mUpdateLock) {
+            if (diagnosticMessage != null) {
+                if (mPendingDiagnosticMessages.size() < MAX_PENDING_DIAGNOSTIC_MESSAGES) {
+                    mPendingDiagnosticMessages.add(diagnosticMessage);
+                } else {
+                    mDroppedDiagnosticMessages++;
+                }
+            }
+            if (mFirstPendingUpdateMillis == 0) {
+                mFirstPendingUpdateMillis = SystemClock.elapsedRealtime();
+                mUpdateHandler.postDelayed(mSendUpdate, UPDATE_BATCH_MILLIS);
+            }
+            // Send a full batch now rather than after the batching delay.
+            if (mCallback != null &&
+                    mPendingDiagnosticMessages.size() == MAX_BATCHED_DIAGNOSTIC_MESSAGES) {
+                mUpdateHandler.removeCallbacks(mSendUpdate);
+                mUpdateHandler.post(mSendUpdate);
+            }
+        }
+    }
+
+    private void sendUpdate() {
+        IBinder callback;
+        ArrayList<String> diagnosticMessages;
+        int droppedDiagnosticMessages;
+        long bytesSent;
+        long bytesReceived;
+        long firstPendingUpdateMillis;
+        synchronized (mUpdateLock) {
+            callback = mCallback;
+            if (callback == null) {
+                // Keep pending state until a client registers.
+                return;
+            }
+            List<String> batch = mPendingDiagnosticMessages.subList(
+                    0, Math.min(mPendingDiagnosticMessages.size(), MAX_BATCHED_DIAGNOSTIC_MESSAGES));
+            diagnosticMessages = new ArrayList<String>(batch);
+            batch.clear();
+            droppedDiagnosticMessages = mDroppedDiagnosticMessages;
+            mDroppedDiagnosticMessages = 0;
+            bytesSent = mBytesSent;
+            bytesReceived = mBytesReceived;
+            firstPendingUpdateMillis = mFirstPendingUpdateMillis;
+            mFirstPendingUpdateMillis = 0;
+            // Send the rest of a burst in further transactions, without delay.
+            if (!mPendingDiagnosticMessages.isEmpty()) {
+                mFirstPendingUpdateMillis = SystemClock.elapsedRealtime();
+                mUpdateHandler.post(mSendUpdate);
+            }
+        }
+
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(CALLBACK_DESCRIPTOR);
+            data.writeInt(getState().ordinal());
+            data.writeInt(getLocalSocksProxyPort());
+            data.writeInt(getLocalHttpProxyPort());
+            data.writeLong(bytesSent);
+            data.writeLong(bytesReceived);
+            data.writeLong(firstPendingUpdateMillis);
+            data.writeStringList(diagnosticMessages);
+            data.writeInt(droppedDiagnosticMessages);
+            data.writeLong(getMeanCallbackLatencyMillis());
+            data.writeLong(getMaxCallbackLatencyMillis());
+            callback.transact(TRANSACTION_UPDATE, data, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            // The client process is gone.
+            synchronized (mUpdateLock) {
+                if (mCallback == callback) {
+                    mCallback = null;
+                }
+            }
+        } finally {
+            data.recycle();
+        }
+    }
+
+    private class RemoteBinder extends Binder {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            switch (code) {
+                case TRANSACTION_START_TUNNEL: {
+                    data.enforceInterface(DESCRIPTOR);
+                    String psiphonConfig = data.readString();
+                    String embeddedServerEntries = data.readString();
+                    startTunnel(psiphonConfig, embeddedServerEntries);
+                    break;
+                }
+                case TRANSACTION_STOP_TUNNEL:
+                    data.enforceInterface(DESCRIPTOR);
+                    stopTunnel();
+                    break;
+                case TRANSACTION_SUSPEND_TUNNEL:
+                    data.enforceInterface(DESCRIPTOR);
+                    suspendTunnel();
+                    break;
+                case TRANSACTION_RESUME_TUNNEL:
+                    data.enforceInterface(DESCRIPTOR);
+                    resumeTunnel();
+                    break;
+                case TRANSACTION_SET_CALLBACK:
+                    data.enforceInterface(DESCRIPTOR);
+                    synchronized (mUpdateLock) {
+                        mCallback = data.readStrongBinder();
+                    }
+                    // Send the current state to the new client.
+                    queueUpdate(null);
+                    mUpdateHandler.post(mSendUpdate);
+                    break;
+                default:
+                    return super.onTransact(code, data, reply, flags);
+            }
+            if (reply != null) {
+                reply.writeNoException();
+            }
+            return true;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Client
+    //----------------------------------------------------------------------------------------------
+
+    // Client binds to PsiphonTunnelRemoteService from the host app process. Listener callbacks
+    // are invoked on the main thread. A startTunnel() call made before the service is connected
+    // is sent once it connects.
+    public static class Client {
+
+        public interface Listener {
+            public void onUpdate(State state, int localSocksProxyPort, int localHttpProxyPort,
+                                 long bytesSent, long bytesReceived);
+            default public void onDiagnosticMessages(List<String> messages) {}
+        }
+
+        private final Context mContext;
+        private final Listener mListener;
+        private final Handler mMainHandler;
+        private final IBinder mCallbackBinder;
+        private IBinder mService;
+        private String[] mPendingStart;
+        private boolean mBound;
+
+        // Delivery latency of updates, from the time the first event in a batch occurred
+        // in the tunnel process to the time the listener is called in this process.
+        private long mUpdateCount;
+        private long mTotalUpdateLatencyMillis;
+        private long mMaxUpdateLatencyMillis;
+
+        // The service's callback latency in the tunnel process, as last reported.
+        private long mServiceMeanCallbackLatencyMillis = -1;
+        private long mServiceMaxCallbackLatencyMillis = -1;
+
+        private final ServiceConnection mServiceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                String[] pendingStart;
+                synchronized (Client.this) {
+                    mService = service;
+                    pendingStart = mPendingStart;
+                    mPendingStart = null;
+                }
+                try {
+                    Parcel data = Parcel.obtain();
+                    try {
+                        data.writeInterfaceToken(DESCRIPTOR);
+                        data.writeStrongBinder(mCallbackBinder);
+                        service.transact(TRANSACTION_SET_CALLBACK, data, null, IBinder.FLAG_ONEWAY);
+                    } finally {
+                        data.recycle();
+                    }
+                    if (pendingStart != null) {
+                        startTunnel(pendingStart[0], pendingStart[1]);
+                    }
+                } catch (RemoteException e) {
+                    // The tunnel process is gone; onServiceDisconnected follows.
+                }
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                synchronized (Client.this) {
+                    mService = null;
+                }
+            }
+        };
+
+        public Client(Context context, Listener listener) {
+            mContext = context.getApplicationContext();
+            mListener = listener;
+            mMainHandler = new Handler(Looper.getMainLooper());
+            mCallbackBinder = new CallbackBinder();
+        }
+
+        public synchronized void bind() {
+            if (mBound) {
+                return;
+            }
+            mBound = mContext.bindService(
+                    new Intent(mContext, PsiphonTunnelRemoteService.class),
+                    mServiceConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+
+        // Unbinding doesn't stop a started tunnel; call stopTunnel() first to stop it.
+        public synchronized void unbind() {
+            if (!mBound) {
+                return;
+            }
+            mContext.unbindService(mServiceConnection);
+            mBound = false;
+            mService = null;
+        }
+
+        public void startTunnel(String psiphonConfig, String embeddedServerEntries) throws RemoteException {
+            IBinder service;
+            synchronized (this) {
+                service = mService;
+                if (service == null) {
+                    mPendingStart = new String[] {psiphonConfig, embeddedServerEntries};
+                    return;
+                }
+            }
+            Parcel data = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                data.writeString(psiphonConfig);
+                data.writeString(embeddedServerEntries);
+                service.transact(TRANSACTION_START_TUNNEL, data, null, IBinder.FLAG_ONEWAY);
+            } finally {
+                data.recycle();
+            }
+        }
+
+        public void stopTunnel() throws RemoteException {
+            synchronized (this) {
+                mPendingStart = null;
+            }
+            call(TRANSACTION_STOP_TUNNEL);
+        }
+
+        public void suspendTunnel() throws RemoteException {
+            call(TRANSACTION_SUSPEND_TUNNEL);
+        }
+
+        public void resumeTunnel() throws RemoteException {
+            call(TRANSACTION_RESUME_TUNNEL);
+        }
+
+        public synchronized long getMeanUpdateLatencyMillis() {
+            return mUpdateCount == 0 ? -1 : mTotalUpdateLatencyMillis / mUpdateCount;
+        }
+
+        public synchronized long getMaxUpdateLatencyMillis() {
+            return mUpdateCount == 0 ? -1 : mMaxUpdateLatencyMillis;
+        }
+
+        // Returns the service's callback latency in the tunnel process. See
+        // PsiphonTunnelService.getMeanCallbackLatencyMillis().
+        public synchronized long getServiceMeanCallbackLatencyMillis() {
+            return mServiceMeanCallbackLatencyMillis;
+        }
+
+        public synchronized long getServiceMaxCallbackLatencyMillis() {
+            return mServiceMaxCallbackLatencyMillis;
+        }
+
+        private void call(int code) throws RemoteException {
+            IBinder service;
+            synchronized (this) {
+                service = mService;
+            }
+            if (service == null) {
+                throw new RemoteException("not connected");
+            }
+            Parcel data = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                service.transact(code, data, null, IBinder.FLAG_ONEWAY);
+            } finally {
+                data.recycle();
+            }
+        }
+
+        private synchronized void recordServiceCallbackLatency(long meanMillis, long maxMillis) {
+            mServiceMeanCallbackLatencyMillis = meanMillis;
+            mServiceMaxCallbackLatencyMillis = maxMillis;
+        }
+
+        private synchronized void recordUpdateLatency(long firstPendingUpdateMillis) {
+            long latencyMillis = SystemClock.elapsedRealtime() - firstPendingUpdateMillis;
+            mUpdateCount++;
+            mTotalUpdateLatencyMillis += latencyMillis;
+            if (latencyMillis > mMaxUpdateLatencyMillis) {
+                mMaxUpdateLatencyMillis = latencyMillis;
+            }
+        }
+
+        private class CallbackBinder extends Binder {
+            @Override
+            protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+                if (code != TRANSACTION_UPDATE) {
+                    return super.onTransact(code, data, reply, flags);
+                }
+                data.enforceInterface(CALLBACK_DESCRIPTOR);
+                final State state = State.values()[data.readInt()];
+                final int localSocksProxyPort = data.readInt();
+                final int localHttpProxyPort = data.readInt();
+                final long bytesSent = data.readLong();
+                final long bytesReceived = data.readLong();
+                final long firstPendingUpdateMillis = data.readLong();
+                final List<String> diagnosticMessages = data.createStringArrayList();
+                int droppedDiagnosticMessages = data.readInt();
+                recordServiceCallbackLatency(data.readLong(), data.readLong());
+                if (droppedDiagnosticMessages > 0) {
+                    diagnosticMessages.add(String.format(Locale.US,
+                            "%d diagnostic messages dropped", droppedDiagnosticMessages));
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // SystemClock.elapsedRealtime is system wide, so it's comparable across
+                        // processes. The latency includes the batching delay.
+                        recordUpdateLatency(firstPendingUpdateMillis);
+                        mListener.onUpdate(state, localSocksProxyPort, localHttpProxyPort,
+                                bytesSent, bytesReceived);
+                        if (!diagnosticMessages.isEmpty()) {
+                            mListener.onDiagnosticMessages(diagnosticMessages);
+                        }
+                    }
+                });
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// PsiphonTunnelService is an optional, ready-made Service which owns a PsiphonTunnel instance,
+// for host apps that tunnel through the local SOCKS or HTTP proxy and don't want to write their
+// own Service around PsiphonTunnel.HostService.
+//
+// All PsiphonTunnel calls are made on a dedicated handler thread, so the blocking stop() and
+// restart calls never run on the main thread and the HostService deadlock note doesn't apply.
+// Once startTunnel() is called, the service is a started service, so the tunnel stays warm
+// while Activities bind and unbind across their lifecycles, until stopTunnel() is called.
+//
+// To use, declare the service in the host app manifest:
+//
+//   <service android:name="ca.psiphon.PsiphonTunnelService" android:exported="false"/>
+//
+// then bind to it with Context.BIND_AUTO_CREATE. The IBinder passed to onServiceConnected is a
+// PsiphonTunnelService.LocalBinder. Listener callbacks are invoked on the main thread.
+// Diagnostic messages are queued and delivered together, with one main thread message per
+// burst rather than per notice. Messages are only dropped when more than
+// MAX_PENDING_DIAGNOSTIC_MESSAGES are waiting, and listeners then receive a message with the
+// dropped count.
+public class PsiphonTunnelService extends Service implements PsiphonTunnel.HostService {
+
+    public enum State {
+        STOPPED,
+        CONNECTING,
+        CONNECTED,
+        SUSPENDED
+    }
+
+    public interface Listener {
+        public void onStateChanged(State state);
+        default public void onDiagnosticMessage(String message) {}
+    }
+
+    // The PsiphonTunnel operations made by the service. Tests override newTunnel() to substitute
+    // their own implementation, as the native library isn't available on the JVM.
+    interface Tunnel {
+        void startTunneling(String embeddedServerEntries) throws PsiphonTunnel.Exception;
+        void suspend() throws PsiphonTunnel.Exception;
+        void resume() throws PsiphonTunnel.Exception;
+        void stop();
+    }
+
+    public class LocalBinder extends Binder {
+        public PsiphonTunnelService getService() {
+            return PsiphonTunnelService.this;
+        }
+    }
+
+    private static final int MAX_PENDING_DIAGNOSTIC_MESSAGES = 1000;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.STOPPED);
+    private final AtomicReference<String> mPsiphonConfig = new AtomicReference<String>("");
+    private final AtomicInteger mLocalSocksProxyPort = new AtomicInteger(0);
+    private final AtomicInteger mLocalHttpProxyPort = new AtomicInteger(0);
+    private final AtomicBoolean mIsConnected = new AtomicBoolean(false);
+    private HandlerThread mTunnelThread;
+    private Handler mTunnelHandler;
+    private Handler mMainHandler;
+
+    private final Object mDiagnosticMessagesLock = new Object();
+    private ArrayList<String> mPendingDiagnosticMessages = new ArrayList<String>();
+    private int mDroppedDiagnosticMessages;
+    // The time the oldest pending message was queued; 0 when no message is pending.
+    private long mFirstPendingDiagnosticMessageMillis;
+
+    private final Runnable mDeliverDiagnosticMessages = new Runnable() {
+        @Override
+        public void run() {
+            deliverDiagnosticMessages();
+        }
+    };
+
+    // Main thread dispatch latency of listener callbacks, guarded by this.
+    private long mCallbackCount;
+    private long mTotalCallbackLatencyMillis;
+    private long mMaxCallbackLatencyMillis;
+
+    // Only accessed on the tunnel thread.
+    private Tunnel mPsiphonTunnel;
+    private boolean mTunnelStarted;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mTunnelThread = new HandlerThread("PsiphonTunnelService");
+        mTunnelThread.start();
+        mTunnelHandler = new Handler(mTunnelThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public void onDestroy() {
+        // Pending tunnel thread work completes before the stop, and the thread exits after it.
+        mTunnelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopTunnelOnTunnelThread();
+                mTunnelThread.quit();
+            }
+        });
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The Psiphon config is supplied by startTunnel() and isn't persisted, so the service
+        // isn't restarted when its process is killed.
+        return START_NOT_STICKY;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Public API
+    //----------------------------------------------------------------------------------------------
+
+    // Starts tunneling with the given Psiphon config. When the tunnel is already started, for
+    // example by a previous Activity instance, the running tunnel is reused and resumed if it
+    // was suspended.
+    public void startTunnel(final String psiphonConfig, final String embeddedServerEntries) {
+        mPsiphonConfig.set(psiphonConfig);
+
+        // Become a started service, so that the tunnel outlives unbinding components.
+        startService(new Intent(this, PsiphonTunnelService.class));
+
+        mTunnelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPsiphonTunnel == null) {
+                    mPsiphonTunnel = newTunnel();
+                }
+                if (mTunnelStarted) {
+                    resumeTunnelOnTunnelThread();
+                    return;
+                }
+                setState(State.CONNECTING);
+                try {
+                    mPsiphonTunnel.startTunneling(embeddedServerEntries);
+                    mTunnelStarted = true;
+                } catch (PsiphonTunnel.Exception e) {
+                    onDiagnosticMessage("failed to start tunnel: " + e.getMessage());
+                    setState(State.STOPPED);
+                }
+            }
+        });
+    }
+
+    // Stops tunneling and stops the service once all clients have unbound.
+    public void stopTunnel() {
+        mTunnelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopTunnelOnTunnelThread();
+            }
+        });
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // See PsiphonTunnel.suspend().
+    public void suspendTunnel() {
+        mTunnelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mTunnelStarted) {
+                    return;
+                }
+                try {
+                    mPsiphonTunnel.suspend();
+                    setState(State.SUSPENDED);
+                } catch (PsiphonTunnel.Exception e) {
+                    onDiagnosticMessage("failed to suspend tunnel: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // See PsiphonTunnel.resume().
+    public void resumeTunnel() {
+        mTunnelHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                resumeTunnelOnTunnelThread();
+            }
+        });
+    }
+
+    // Optionally runs the service in the foreground, with the given notification, so that
+    // the tunnel is kept while the host app is in the background.
+    public void startForegroundTunnel(int notificationId, Notification notification) {
+        startForeground(notificationId, notification);
+    }
+
+    public State getState() {
+        return mState.get();
+    }
+
+    // Returns the local SOCKS proxy port, or 0 when not yet listening.
+    public int getLocalSocksProxyPort() {
+        return mLocalSocksProxyPort.get();
+    }
+
+    // Returns the local HTTP proxy port, or 0 when not yet listening.
+    public int getLocalHttpProxyPort() {
+        return mLocalHttpProxyPort.get();
+    }
+
+    // Adds a listener, which is immediately called with the current state.
+    public void addListener(final Listener listener) {
+        mListeners.add(listener);
+        final State state = mState.get();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onStateChanged(state);
+            }
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    // Returns the mean and max time, in milliseconds, from a state change or diagnostic message
+    // in the tunnel to the listener callbacks on the main thread, or -1 when there's no sample.
+    // Work on the main thread of the service's process, such as UI allocation bursts and GC
+    // pauses, delays the callbacks. Compare these when running in the host app process and in
+    // a dedicated process with PsiphonTunnelRemoteService.
+    public synchronized long getMeanCallbackLatencyMillis() {
+        return mCallbackCount == 0 ? -1 : mTotalCallbackLatencyMillis / mCallbackCount;
+    }
+
+    public synchronized long getMaxCallbackLatencyMillis() {
+        return mCallbackCount == 0 ? -1 : mMaxCallbackLatencyMillis;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Implementation
+    //----------------------------------------------------------------------------------------------
+
+    // Called on the tunnel thread.
+    Tunnel newTunnel() {
+        final PsiphonTunnel psiphonTunnel = PsiphonTunnel.newPsiphonTunnel(this);
+        return new Tunnel() {
+            @Override
+            public void startTunneling(String embeddedServerEntries) throws PsiphonTunnel.Exception {
+                psiphonTunnel.startTunneling(embeddedServerEntries);
+            }
+
+            @Override
+            public void suspend() throws PsiphonTunnel.Exception {
+                psiphonTunnel.suspend();
+            }
+
+            @Override
+            public void resume() throws PsiphonTunnel.Exception {
+                psiphonTunnel.resume();
+            }
+
+            @Override
+            public void stop() {
+                psiphonTunnel.stop();
+            }
+        };
+    }
+
+    private void stopTunnelOnTunnelThread() {
+        if (mPsiphonTunnel != null) {
+            mPsiphonTunnel.stop();
+        }
+        mTunnelStarted = false;
+        mIsConnected.set(false);
+        mLocalSocksProxyPort.set(0);
+        mLocalHttpProxyPort.set(0);
+        setState(State.STOPPED);
+    }
+
+    private void resumeTunnelOnTunnelThread() {
+        if (!mTunnelStarted) {
+            return;
+        }
+        try {
+            mPsiphonTunnel.resume();
+            setState(mIsConnected.get() ? State.CONNECTED : State.CONNECTING);
+        } catch (PsiphonTunnel.Exception e) {
+            onDiagnosticMessage("failed to resume tunnel: " + e.getMessage());
+        }
+    }
+
+    private void setState(final State state) {
+        if (mState.getAndSet(state) == state) {
+            return;
+        }
+        final long postMillis = SystemClock.elapsedRealtime();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recordCallbackLatency(postMillis);
+                for (Listener listener : mListeners) {
+                    listener.onStateChanged(state);
+                }
+            }
+        });
+    }
+
+    private void deliverDiagnosticMessages() {
+        ArrayList<String> diagnosticMessages;
+        int droppedDiagnosticMessages;
+        long firstPendingMillis;
+        synchronized (mDiagnosticMessagesLock) {
+            diagnosticMessages = mPendingDiagnosticMessages;
+            mPendingDiagnosticMessages = new ArrayList<String>();
+            droppedDiagnosticMessages = mDroppedDiagnosticMessages;
+            mDroppedDiagnosticMessages = 0;
+            firstPendingMillis = mFirstPendingDiagnosticMessageMillis;
+            mFirstPendingDiagnosticMessageMillis = 0;
+        }
+        recordCallbackLatency(firstPendingMillis);
+        if (droppedDiagnosticMessages > 0) {
+            diagnosticMessages.add(String.format(Locale.US,
+                    "%d diagnostic messages dropped", droppedDiagnosticMessages));
+        }
+        for (String message : diagnosticMessages) {
+            for (Listener listener : mListeners) {
+                listener.onDiagnosticMessage(message);
+            }
+        }
+    }
+
+    private synchronized void recordCallbackLatency(long postMillis) {
+        long latencyMillis = SystemClock.elapsedRealtime() - postMillis;
+        mCallbackCount++;
+        mTotalCallbackLatencyMillis += latencyMillis;
+        if (latencyMillis > mMaxCallbackLatencyMillis) {
+            mMaxCallbackLatencyMillis = latencyMillis;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // PsiphonTunnel.HostService implementation
+    //
+    // Note: these are called from the Psiphon Library on background threads.
+    //----------------------------------------------------------------------------------------------
+
+    @Override
+    public String getAppName() {
+        return getPackageName();
+    }
+
+    @Override
+    public Context getContext() {
+        return this;
+    }
+
+    @Override
+    public String getPsiphonConfig() {
+        return mPsiphonConfig.get();
+    }
+
+    @Override
+    public void onDiagnosticMessage(String message) {
+        synchronized (mDiagnosticMessagesLock) {
+            if (mPendingDiagnosticMessages.size() < MAX_PENDING_DIAGNOSTIC_MESSAGES) {
+                mPendingDiagnosticMessages.add(message);
+            } else {
+                mDroppedDiagnosticMessages++;
+            }
+            // Messages queued while a delivery is pending are included in that delivery.
+            if (mFirstPendingDiagnosticMessageMillis == 0) {
+                mFirstPendingDiagnosticMessageMillis = SystemClock.elapsedRealtime();
+                mMainHandler.post(mDeliverDiagnosticMessages);
+            }
+        }
+    }
+
+    @Override
+    public void onListeningSocksProxyPort(int port) {
+        mLocalSocksProxyPort.set(port);
+    }
+
+    @Override
+    public void onListeningHttpProxyPort(int port) {
+        mLocalHttpProxyPort.set(port);
+    }
+
+    @Override
+    public void onConnecting() {
+        mIsConnected.set(false);
+        if (mState.get() != State.SUSPENDED) {
+            setState(State.CONNECTING);
+        }
+    }
+
+    @Override
+    public void onConnected() {
+        mIsConnected.set(true);
+        if (mState.get() != State.SUSPENDED) {
+            setState(State.CONNECTED);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// PsiphonTunnelSocksPool opens tunneled SocketChannels through the local SOCKS proxy with
+// less set up latency than a plain SOCKS client. Get the instance from
+// PsiphonTunnel.getSocksPool().
+//
+// The pool keeps a few loopback connections to the local SOCKS proxy which have completed
+// the SOCKS5 method negotiation. openChannel() takes one of these sessions and sends the
+// CONNECT request and the first payload bytes in a single write, so the payload is on its
+// way through the tunnel as soon as the port forward is established, instead of after the
+// SOCKS reply round trip.
+//
+// The pool is only filled once the app uses it: after each openChannel() call, and by
+// warmUp(). It isn't filled when the tunnel connects, so apps that don't use the pool don't
+// open idle sessions. Call warmUp() when requests are expected, for example when the user
+// starts interacting with the app.
+//
+// The local SOCKS proxy allows 5 seconds for a client to complete its handshake, and reports
+// an error for each client that doesn't. Idle sessions are closed by the pool after
+// MAX_IDLE_MILLIS, before that deadline. Expired sessions aren't replaced, which would keep
+// the device awake, so the pool is most effective for bursts of requests.
+//
+// The pool follows the local SOCKS proxy port as tunnel-core reports it, and is emptied when
+// the proxy stops or moves to another port.
+public class PsiphonTunnelSocksPool {
+
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static final int MAX_POOL_SIZE = 8;
+    // goptlib, which implements the local SOCKS proxy, closes a client that hasn't sent its
+    // SOCKS request within 5 seconds of being accepted. Sessions are considered expired with a
+    // margin left before that deadline: the deadline starts at accept, before the session is
+    // ready, the maintenance thread may wake late, and a session taken just before it expires
+    // still needs time for openChannel() to write its CONNECT request.
+    private static final long SOCKS_REQUEST_TIMEOUT_MILLIS = 5000;
+    private static final long SOCKS_REQUEST_TIMEOUT_MARGIN_MILLIS = 2000;
+    private static final long MAX_IDLE_MILLIS =
+            SOCKS_REQUEST_TIMEOUT_MILLIS - SOCKS_REQUEST_TIMEOUT_MARGIN_MILLIS;
+    private static final int CONNECT_REPLY_TIMEOUT_MILLIS = 30000;
+
+    private static final byte SOCKS_VERSION = 0x05;
+    private static final byte SOCKS_NO_AUTHENTICATION = 0x00;
+    private static final byte SOCKS_CMD_CONNECT = 0x01;
+    private static final byte SOCKS_ATYP_IPV4 = 0x01;
+    private static final byte SOCKS_ATYP_DOMAIN = 0x03;
+    private static final byte SOCKS_ATYP_IPV6 = 0x04;
+    private static final byte SOCKS_REPLY_SUCCEEDED = 0x00;
+
+    private static class Session {
+        final SocketChannel mChannel;
+        final int mPort;
+        final long mReadyMillis;
+
+        Session(SocketChannel channel, int port, long readyMillis) {
+            mChannel = channel;
+            mPort = port;
+            mReadyMillis = readyMillis;
+        }
+    }
+
+    private final ArrayDeque<Session> mIdleSessions = new ArrayDeque<Session>();
+    private int mPort;
+    private int mPoolSize = DEFAULT_POOL_SIZE;
+    private boolean mFillRequested;
+    private Thread mMaintainThread;
+
+    // Stats, guarded by this.
+    private long mHits;
+    private long mMisses;
+    private long mDiscarded;
+    private long mFailures;
+    private long mWarmedCount;
+    private long mWarmTotalMillis;
+    private long mHitOpenCount;
+    private long mHitOpenTotalMillis;
+    private long mMissOpenCount;
+    private long mMissOpenTotalMillis;
+
+    PsiphonTunnelSocksPool() {
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Public API
+    //----------------------------------------------------------------------------------------------
+
+    // Sets the number of idle sessions to keep, up to MAX_POOL_SIZE. A size of 0 disables
+    // pooling, and openChannel() then performs the full SOCKS handshake for each channel.
+    public void setPoolSize(int poolSize) {
+        List<Session> closeSessions;
+        synchronized (this) {
+            mPoolSize = Math.max(0, Math.min(poolSize, MAX_POOL_SIZE));
+            closeSessions = trimLocked(mPoolSize);
+        }
+        closeSessions(closeSessions);
+    }
+
+    // Fills the pool in the background. Has no effect until the local SOCKS proxy is listening.
+    public void warmUp() {
+        synchronized (this) {
+            if (mPort == 0 || mIdleSessions.size() >= mPoolSize) {
+                return;
+            }
+            mFillRequested = true;
+            if (mMaintainThread != null) {
+                notifyAll();
+                return;
+            }
+            mMaintainThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            });
+            mMaintainThread.start();
+        }
+    }
+
+    // Returns a blocking SocketChannel tunneled to host:port, after sending firstPayload, which
+    // may be null, pipelined with the SOCKS CONNECT request. On return, firstPayload has been
+    // fully written. host may be a domain name or an IP address literal; domain names are
+    // resolved by the Psiphon server. Blocks; do not call on the main thread.
+    public SocketChannel openChannel(String host, int port, ByteBuffer firstPayload)
+            throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+        Session session = takeSession();
+        boolean hit = session != null;
+        if (!hit) {
+            int proxyPort;
+            synchronized (this) {
+                proxyPort = mPort;
+            }
+            if (proxyPort == 0) {
+                throw new IOException("local SOCKS proxy is not listening");
+            }
+            try {
+                session = newSession(proxyPort);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mMisses++;
+                    mFailures++;
+                }
+                throw e;
+            }
+        }
+        warmUp();
+
+        SocketChannel channel = session.mChannel;
+        try {
+            writeFully(channel, new ByteBuffer[]{
+                    connectRequest(host, port),
+                    firstPayload != null ? firstPayload : ByteBuffer.allocate(0)});
+            readConnectReply(channel);
+        } catch (IOException e) {
+            synchronized (this) {
+                countOpen(hit, -1);
+                mFailures++;
+            }
+            closeChannel(channel);
+            throw e;
+        }
+
+        synchronized (this) {
+            countOpen(hit, SystemClock.elapsedRealtime() - startMillis);
+        }
+        channel.socket().setSoTimeout(0);
+        return channel;
+    }
+
+    // Returns a JSON object with the pool "hits" and "misses", the "hitRate", the number of
+    // idle sessions "discarded" as stale or for a port change, open "failures", the
+    // "averageWarmMillis" to connect and negotiate a pooled session, and the
+    // "averageHitOpenMillis" and "averageMissOpenMillis" from openChannel() to the SOCKS
+    // reply for successful opens, which are -1 when there's no sample.
+    public JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        synchronized (this) {
+            long opens = mHits + mMisses;
+            try {
+                json.put("poolSize", mPoolSize);
+                json.put("idle", mIdleSessions.size());
+                json.put("hits", mHits);
+                json.put("misses", mMisses);
+                json.put("hitRate", opens > 0 ? (double)mHits / opens : 0.0);
+                json.put("discarded", mDiscarded);
+                json.put("failures", mFailures);
+                json.put("averageWarmMillis", average(mWarmTotalMillis, mWarmedCount));
+                json.put("averageHitOpenMillis", average(mHitOpenTotalMillis, mHitOpenCount));
+                json.put("averageMissOpenMillis", average(mMissOpenTotalMillis, mMissOpenCount));
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return json;
+    }
+
+    // Returns a one line summary of getStats(), for diagnostics.
+    public String getStatsSummary() {
+        synchronized (this) {
+            long opens = mHits + mMisses;
+            return String.format(Locale.US,
+                    "SOCKS pool: %d hits, %d misses (%.0f%%), %d discarded, %d failures, " +
+                            "open %d ms hit, %d ms miss",
+                    mHits, mMisses, opens > 0 ? 100.0 * mHits / opens : 0.0, mDiscarded,
+                    mFailures, average(mHitOpenTotalMillis, mHitOpenCount),
+                    average(mMissOpenTotalMillis, mMissOpenCount));
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Implementation
+    //----------------------------------------------------------------------------------------------
+
+    // Called with the local SOCKS proxy port, or 0 when the proxy stops. Pooled sessions
+    // connected to a previous port are closed.
+    void setSocksProxyPort(int port) {
+        List<Session> closeSessions;
+        synchronized (this) {
+            if (port == mPort) {
+                return;
+            }
+            mPort = port;
+            mFillRequested = false;
+            closeSessions = trimLocked(0);
+            notifyAll();
+        }
+        closeSessions(closeSessions);
+    }
+
+    // Removes and returns a fresh session, discarding any stale sessions on the way.
+    private Session takeSession() {
+        List<Session> closeSessions = new ArrayList<Session>();
+        Session session = null;
+        synchronized (this) {
+            long nowMillis = SystemClock.elapsedRealtime();
+            while (!mIdleSessions.isEmpty()) {
+                Session candidate = mIdleSessions.pollFirst();
+                if (candidate.mPort == mPort &&
+                        nowMillis - candidate.mReadyMillis < MAX_IDLE_MILLIS) {
+                    session = candidate;
+                    break;
+                }
+                mDiscarded++;
+                closeSessions.add(candidate);
+            }
+        }
+        closeSessions(closeSessions);
+        return session;
+    }
+
+    // Fills the pool when requested, then closes each idle session as it expires, and exits
+    // once the pool is empty.
+    private void maintain() {
+        while (true) {
+            List<Session> expiredSessions;
+            int fillPort = 0;
+            boolean exit = false;
+            synchronized (this) {
+                expiredSessions = expireLocked(SystemClock.elapsedRealtime());
+                if (mFillRequested && mPort != 0 && mIdleSessions.size() < mPoolSize) {
+                    fillPort = mPort;
+                } else {
+                    mFillRequested = false;
+                    if (mIdleSessions.isEmpty()) {
+                        mMaintainThread = null;
+                        exit = true;
+                    } else if (expiredSessions.isEmpty()) {
+                        long waitMillis = mIdleSessions.peekFirst().mReadyMillis +
+                                MAX_IDLE_MILLIS - SystemClock.elapsedRealtime();
+                        try {
+                            wait(Math.max(1, waitMillis));
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+            }
+            closeSessions(expiredSessions);
+            if (exit) {
+                return;
+            }
+            if (fillPort != 0) {
+                fill(fillPort);
+            }
+        }
+    }
+
+    private void fill(int port) {
+        long startMillis = SystemClock.elapsedRealtime();
+        Session session;
+        try {
+            session = newSession(port);
+        } catch (IOException e) {
+            synchronized (this) {
+                mFailures++;
+                mFillRequested = false;
+            }
+            return;
+        }
+        boolean added = false;
+        synchronized (this) {
+            if (port == mPort && mIdleSessions.size() < mPoolSize) {
+                mIdleSessions.addLast(session);
+                mWarmedCount++;
+                mWarmTotalMillis += session.mReadyMillis - startMillis;
+                added = true;
+            }
+        }
+        if (!added) {
+            closeChannel(session.mChannel);
+        }
+    }
+
+    // Connects to the local SOCKS proxy and completes the SOCKS5 method negotiation.
+    private static Session newSession(int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSoTimeout(CONNECT_REPLY_TIMEOUT_MILLIS);
+            channel.connect(new InetSocketAddress("127.0.0.1", port));
+            writeFully(channel, new ByteBuffer[]{ByteBuffer.wrap(
+                    new byte[]{SOCKS_VERSION, 0x01, SOCKS_NO_AUTHENTICATION})});
+            ByteBuffer reply = readFully(channel, 2);
+            if (reply.get(0) != SOCKS_VERSION || reply.get(1) != SOCKS_NO_AUTHENTICATION) {
+                throw new IOException("unexpected SOCKS method reply");
+            }
+        } catch (IOException e) {
+            closeChannel(channel);
+            throw e;
+        }
+        return new Session(channel, port, SystemClock.elapsedRealtime());
+    }
+
+    private static ByteBuffer connectRequest(String host, int port) throws IOException {
+        byte[] hostBytes = host.getBytes(Charset.forName("UTF-8"));
+        if (hostBytes.length == 0 || hostBytes.length > 255) {
+            throw new IOException("invalid host");
+        }
+        ByteBuffer request = ByteBuffer.allocate(7 + hostBytes.length);
+        request.put(SOCKS_VERSION);
+        request.put(SOCKS_CMD_CONNECT);
+        request.put((byte)0x00);
+        request.put(SOCKS_ATYP_DOMAIN);
+        request.put((byte)hostBytes.length);
+        request.put(hostBytes);
+        request.putShort((short)port);
+        request.flip();
+        return request;
+    }
+
+    // Reads the SOCKS5 reply, which is sent once the tunneled port forward is established.
+    private static void readConnectReply(SocketChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, 5);
+        if (header.get(0) != SOCKS_VERSION) {
+            throw new IOException("unexpected SOCKS reply version");
+        }
+        if (header.get(1) != SOCKS_REPLY_SUCCEEDED) {
+            throw new IOException(String.format(Locale.US,
+                    "SOCKS connect failed: reply %d", header.get(1)));
+        }
+        // The header includes the first byte of the bound address.
+        int remaining;
+        switch (header.get(3)) {
+            case SOCKS_ATYP_IPV4:
+                remaining = 4 - 1 + 2;
+                break;
+            case SOCKS_ATYP_IPV6:
+                remaining = 16 - 1 + 2;
+                break;
+            case SOCKS_ATYP_DOMAIN:
+                remaining = (header.get(4) & 0xff) + 2;
+                break;
+            default:
+                throw new IOException("unexpected SOCKS reply address type");
+        }
+        readFully(channel, remaining);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer[] buffers)
+            throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    // Reads through the channel's socket stream, so the SO_TIMEOUT applies; SocketChannel.read
+    // on a blocking channel doesn't time out.
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        try {
+            while (offset < length) {
+                int readCount = channel.socket().getInputStream().read(
+                        buffer, offset, length - offset);
+                if (readCount == -1) {
+                    throw new EOFException("local SOCKS proxy closed the connection");
+                }
+                offset += readCount;
+            }
+        } catch (SocketTimeoutException e) {
+            throw new IOException("SOCKS reply timed out", e);
+        }
+        return ByteBuffer.wrap(buffer);
+    }
+
+    // Removes and returns the idle sessions which are older than MAX_IDLE_MILLIS. Sessions are
+    // added in the order they become ready, so the oldest is first.
+    private List<Session> expireLocked(long nowMillis) {
+        List<Session> expiredSessions = new ArrayList<Session>();
+        while (!mIdleSessions.isEmpty() &&
+                nowMillis - mIdleSessions.peekFirst().mReadyMillis >= MAX_IDLE_MILLIS) {
+            expiredSessions.add(mIdleSessions.pollFirst());
+            mDiscarded++;
+        }
+        return expiredSessions;
+    }
+
+    private List<Session> trimLocked(int size) {
+        List<Session> closeSessions = new ArrayList<Session>();
+        while (mIdleSessions.size() > size) {
+            closeSessions.add(mIdleSessions.pollLast());
+            mDiscarded++;
+        }
+        return closeSessions;
+    }
+
+    private void countOpen(boolean hit, long openMillis) {
+        if (hit) {
+            mHits++;
+            if (openMillis >= 0) {
+                mHitOpenCount++;
+                mHitOpenTotalMillis += openMillis;
+            }
+        } else {
+            mMisses++;
+            if (openMillis >= 0) {
+                mMissOpenCount++;
+                mMissOpenTotalMillis += openMillis;
+            }
+        }
+    }
+
+    private static long average(long totalMillis, long count) {
+        return count > 0 ? totalMillis / count : -1;
+    }
+
+    private static void closeSessions(List<Session> sessions) {
+        for (Session session : sessions) {
+            closeChannel(session.mChannel);
+        }
+    }
+
+    private static void closeChannel(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
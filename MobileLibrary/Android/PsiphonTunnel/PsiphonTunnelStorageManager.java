@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import psi.Psi;
+
+// PsiphonTunnelStorageManager keeps the disk space used by tunnel-core's OSL downloads, remote
+// server list download and data store within a byte budget. Get the instance from
+// PsiphonTunnel.getStorageManager().
+//
+// Completed OSL and remote server list downloads are only read once, when their server
+// entries are imported; tunnel-core stores the download's ETag and won't download or read an
+// unchanged file again. So when usage exceeds the budget, the least recently downloaded of
+// these files are deleted until usage is within the budget. The OSL registry, which is reused,
+// and the data store aren't pruned. Partial downloads, which tunnel-core keeps to resume an
+// interrupted download, are deleted once they're stale, regardless of the budget.
+//
+// Each tunnel start runs a fast check, on the start path, which stats only the top level
+// paths and reuses the OSL directory usage recorded by the last full scan while the directory
+// is unmodified. A full scan, with pruning, runs on a background thread when the OSL
+// directory has changed, usage exceeds the budget, or the last full scan is a day old.
+public class PsiphonTunnelStorageManager {
+
+    private static final long DEFAULT_BUDGET_BYTES = 50 * 1024 * 1024;
+    private static final long STALE_PARTIAL_DOWNLOAD_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+    // Recent downloads may not be imported yet.
+    private static final long MIN_PRUNE_AGE_MILLIS = 60 * 60 * 1000L;
+    private static final long FULL_SCAN_INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final String OSL_REGISTRY_FILENAME_PREFIX = "osl-registry";
+
+    private static final String PREFERENCES_NAME = "ca.psiphon.PsiphonTunnelStorage";
+    private static final String PREFERENCE_OSL_DIRECTORY_MODIFIED = "oslDirectoryModified";
+    private static final String PREFERENCE_OSL_BYTES = "oslBytes";
+    private static final String PREFERENCE_DATA_STORE_BYTES = "dataStoreBytes";
+    private static final String PREFERENCE_LAST_FULL_SCAN = "lastFullScan";
+
+    private static class Paths {
+        final Context mContext;
+        final File mOslDirectory;
+        final File mRemoteServerList;
+        final File mDataStore;
+
+        Paths(Context context, File oslDirectory, File remoteServerList, File dataStore) {
+            mContext = context;
+            mOslDirectory = oslDirectory;
+            mRemoteServerList = remoteServerList;
+            mDataStore = dataStore;
+        }
+    }
+
+    private static class Usage {
+        final long mOslBytes;
+        final long mRemoteServerListBytes;
+        final long mDataStoreBytes;
+        final long mPrunedFileCount;
+        final long mPrunedBytes;
+        final boolean mFullScan;
+        final long mElapsedMillis;
+        final long mTime;
+
+        Usage(long oslBytes, long remoteServerListBytes, long dataStoreBytes, long prunedFileCount,
+              long prunedBytes, boolean fullScan, long elapsedMillis) {
+            mOslBytes = oslBytes;
+            mRemoteServerListBytes = remoteServerListBytes;
+            mDataStoreBytes = dataStoreBytes;
+            mPrunedFileCount = prunedFileCount;
+            mPrunedBytes = prunedBytes;
+            mFullScan = fullScan;
+            mElapsedMillis = elapsedMillis;
+            mTime = System.currentTimeMillis();
+        }
+
+        long totalBytes() {
+            return mOslBytes + mRemoteServerListBytes + mDataStoreBytes;
+        }
+    }
+
+    private static class PruneCandidate {
+        final File mFile;
+        final long mLength;
+        final long mModified;
+
+        PruneCandidate(File file, long length, long modified) {
+            mFile = file;
+            mLength = length;
+            mModified = modified;
+        }
+    }
+
+    private final PsiphonTunnel.HostService mHostService;
+    private final AtomicLong mBudgetBytes = new AtomicLong(DEFAULT_BUDGET_BYTES);
+    private final AtomicReference<Paths> mPaths = new AtomicReference<Paths>();
+    private final AtomicReference<Usage> mUsage = new AtomicReference<Usage>();
+    private final AtomicBoolean mScanning = new AtomicBoolean(false);
+
+    PsiphonTunnelStorageManager(PsiphonTunnel.HostService hostService) {
+        mHostService = hostService;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Public API
+    //----------------------------------------------------------------------------------------------
+
+    // Sets the budget, in bytes, for the OSL directory, the remote server list download and
+    // the data store combined. The default is 50MB. A budget <= 0 disables pruning to a
+    // budget; stale partial downloads are still deleted. Takes effect on the next check.
+    public void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes.set(budgetBytes);
+    }
+
+    // Returns the latest usage, or null before the tunnel is first started, as a JSON object
+    // with, in bytes, "oslBytes", "remoteServerListBytes", "dataStoreBytes", "totalBytes" and
+    // "budgetBytes"; the "prunedFiles" and "prunedBytes" deleted by that check; whether it
+    // was a "fullScan", the "elapsedMillis" it took, and its "time".
+    public JSONObject getUsage() {
+        Usage usage = mUsage.get();
+        if (usage == null) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        try {
+            json.put("oslBytes", usage.mOslBytes);
+            json.put("remoteServerListBytes", usage.mRemoteServerListBytes);
+            json.put("dataStoreBytes", usage.mDataStoreBytes);
+            json.put("totalBytes", usage.totalBytes());
+            json.put("budgetBytes", mBudgetBytes.get());
+            json.put("prunedFiles", usage.mPrunedFileCount);
+            json.put("prunedBytes", usage.mPrunedBytes);
+            json.put("fullScan", usage.mFullScan);
+            json.put("elapsedMillis", usage.mElapsedMillis);
+            json.put("time", usage.mTime);
+        } catch (JSONException e) {
+            return null;
+        }
+        return json;
+    }
+
+    // Runs a full scan, with pruning, now, and returns the resulting usage, as getUsage(). Does
+    // nothing before the tunnel is first started, or while a full scan is already running.
+    // Blocks; do not call on the main thread.
+    public JSONObject prune() {
+        Paths paths = mPaths.get();
+        if (paths != null && mScanning.compareAndSet(false, true)) {
+            try {
+                scanAndPrune(paths);
+            } finally {
+                mScanning.set(false);
+            }
+        }
+        return getUsage();
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Implementation
+    //----------------------------------------------------------------------------------------------
+
+    // Runs the fast check for the paths in the tunnel-core config, and starts a full scan in
+    // the background when one is due. Called on the tunnel start path.
+    void checkOnStart(Context context, JSONObject config) {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        final Paths paths = new Paths(
+                context,
+                new File(config.optString("ObfuscatedServerListDownloadDirectory")),
+                new File(config.optString("RemoteServerListDownloadFilename")),
+                new File(config.optString("DataStoreDirectory"),
+                        "psiphon." + Psi.getDataStoreBackend() + "db"));
+        mPaths.set(paths);
+
+        SharedPreferences preferences = getPreferences(context);
+        boolean oslDirectoryModified = paths.mOslDirectory.lastModified() !=
+                preferences.getLong(PREFERENCE_OSL_DIRECTORY_MODIFIED, -1);
+        long oslBytes = preferences.getLong(PREFERENCE_OSL_BYTES, 0);
+        long remoteServerListBytes = 0;
+        for (File file : getDownloadFiles(paths.mRemoteServerList)) {
+            remoteServerListBytes += file.length();
+        }
+        // Backends other than bolt store a directory of files, which is measured by full scans.
+        long dataStoreBytes = paths.mDataStore.isDirectory() ?
+                preferences.getLong(PREFERENCE_DATA_STORE_BYTES, 0) : paths.mDataStore.length();
+        boolean fullScanDue = System.currentTimeMillis() -
+                preferences.getLong(PREFERENCE_LAST_FULL_SCAN, 0) > FULL_SCAN_INTERVAL_MILLIS;
+
+        Usage usage = new Usage(oslBytes, remoteServerListBytes, dataStoreBytes, 0, 0, false,
+                SystemClock.elapsedRealtime() - startMillis);
+        mUsage.set(usage);
+
+        long budgetBytes = mBudgetBytes.get();
+        boolean overBudget = budgetBytes > 0 && usage.totalBytes() > budgetBytes;
+        if ((oslDirectoryModified || overBudget || fullScanDue) &&
+                mScanning.compareAndSet(false, true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scanAndPrune(paths);
+                    } finally {
+                        mScanning.set(false);
+                    }
+                }
+            }).start();
+        }
+    }
+
+    private void scanAndPrune(Paths paths) {
+        long startMillis = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+        List<PruneCandidate> candidates = new ArrayList<PruneCandidate>();
+        long prunedFileCount = 0;
+        long prunedBytes = 0;
+
+        long oslBytes = 0;
+        File[] oslFiles = paths.mOslDirectory.listFiles();
+        if (oslFiles == null) {
+            oslFiles = new File[0];
+        }
+        for (File file : oslFiles) {
+            if (!file.isFile()) {
+                continue;
+            }
+            long length = file.length();
+            long modified = file.lastModified();
+            if (isPartialDownload(file) && now - modified > STALE_PARTIAL_DOWNLOAD_MILLIS) {
+                if (file.delete()) {
+                    prunedFileCount++;
+                    prunedBytes += length;
+                    continue;
+                }
+            }
+            oslBytes += length;
+            if (!isPartialDownload(file) &&
+                    !file.getName().startsWith(OSL_REGISTRY_FILENAME_PREFIX) &&
+                    now - modified > MIN_PRUNE_AGE_MILLIS) {
+                candidates.add(new PruneCandidate(file, length, modified));
+            }
+        }
+
+        long remoteServerListBytes = 0;
+        for (File file : getDownloadFiles(paths.mRemoteServerList)) {
+            long length = file.length();
+            long modified = file.lastModified();
+            if (isPartialDownload(file) && now - modified > STALE_PARTIAL_DOWNLOAD_MILLIS) {
+                if (file.delete()) {
+                    prunedFileCount++;
+                    prunedBytes += length;
+                    continue;
+                }
+            }
+            remoteServerListBytes += length;
+            if (!isPartialDownload(file) && now - modified > MIN_PRUNE_AGE_MILLIS) {
+                candidates.add(new PruneCandidate(file, length, modified));
+            }
+        }
+
+        long dataStoreBytes = sizeOf(paths.mDataStore);
+
+        long budgetBytes = mBudgetBytes.get();
+        long totalBytes = oslBytes + remoteServerListBytes + dataStoreBytes;
+        if (budgetBytes > 0 && totalBytes > budgetBytes) {
+            // Least recently downloaded first.
+            Collections.sort(candidates, new Comparator<PruneCandidate>() {
+                @Override
+                public int compare(PruneCandidate a, PruneCandidate b) {
+                    return a.mModified < b.mModified ? -1 : (a.mModified == b.mModified ? 0 : 1);
+                }
+            });
+            for (PruneCandidate candidate : candidates) {
+                if (totalBytes <= budgetBytes) {
+                    break;
+                }
+                if (!candidate.mFile.delete()) {
+                    continue;
+                }
+                prunedFileCount++;
+                prunedBytes += candidate.mLength;
+                totalBytes -= candidate.mLength;
+                if (candidate.mFile.getParentFile().equals(paths.mOslDirectory)) {
+                    oslBytes -= candidate.mLength;
+                } else {
+                    remoteServerListBytes -= candidate.mLength;
+                }
+            }
+        }
+
+        // The directory modification time is recorded after pruning, which modifies it. A
+        // download that completes during the scan is counted by the next full scan.
+        getPreferences(paths.mContext)
+                .edit()
+                .putLong(PREFERENCE_OSL_DIRECTORY_MODIFIED, paths.mOslDirectory.lastModified())
+                .putLong(PREFERENCE_OSL_BYTES, oslBytes)
+                .putLong(PREFERENCE_DATA_STORE_BYTES, dataStoreBytes)
+                .putLong(PREFERENCE_LAST_FULL_SCAN, now)
+                .apply();
+
+        Usage usage = new Usage(oslBytes, remoteServerListBytes, dataStoreBytes, prunedFileCount,
+                prunedBytes, true, SystemClock.elapsedRealtime() - startMillis);
+        mUsage.set(usage);
+
+        if (prunedFileCount > 0 || (budgetBytes > 0 && usage.totalBytes() > budgetBytes)) {
+            mHostService.onDiagnosticMessage(String.format(Locale.US,
+                    "storage: pruned %d files, %d bytes; using %d of %d bytes",
+                    prunedFileCount, prunedBytes, usage.totalBytes(), budgetBytes));
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Returns the existing files of the resumable download to file: the completed download
+    // and the partial download state.
+    private static List<File> getDownloadFiles(File file) {
+        List<File> files = new ArrayList<File>();
+        for (File downloadFile : new File[]{
+                file, new File(file.getPath() + ".part"), new File(file.getPath() + ".part.etag")}) {
+            if (downloadFile.isFile()) {
+                files.add(downloadFile);
+            }
+        }
+        return files;
+    }
+
+    private static boolean isPartialDownload(File file) {
+        String name = file.getName();
+        return name.endsWith(".part") || name.endsWith(".part.etag");
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import psi.Psi;
+
+// PsiphonTunnelWatchdog evaluates the periodic BytesTransferred notices, rather than running a
+// timer of its own, so it adds no wakeups while the tunnel is idle. The Psiphon library is
+// called outside of the lock, as it may synchronously emit notices.
+class PsiphonTunnelWatchdog {
+    private static final int PROBE_TIMEOUT_MILLIS = 10000;
+
+    private final PsiphonTunnel.HostService mHostService;
+    private final PsiphonTunnelMetrics mMetrics;
+    private final AtomicInteger mLocalSocksProxyPort;
+    private final AtomicInteger mLocalHttpProxyPort;
+
+    // Each sample is {timestamp, sent, received}.
+    private final ArrayDeque<long[]> mSamples = new ArrayDeque<long[]>();
+    private long mSamplesStartMillis;
+    private long mLastReceivedMillis;
+    private int mWindowSeconds;
+    private long mMinSentBytes;
+    private double mMaxSentToReceivedRatio;
+    private String mProbeUrl;
+    private boolean mProbeUseSocksProxy;
+    private boolean mProbing;
+    private long mReconnectMillis;
+    private long mStallMillis;
+    private long mStalls;
+    private long mProbes;
+    private long mProbeFailures;
+    private long mLastStallMillis = -1;
+    private long mLastRecoveryMillis = -1;
+
+    PsiphonTunnelWatchdog(PsiphonTunnel.HostService hostService, PsiphonTunnelMetrics metrics,
+                          AtomicInteger localSocksProxyPort, AtomicInteger localHttpProxyPort) {
+        mHostService = hostService;
+        mMetrics = metrics;
+        mLocalSocksProxyPort = localSocksProxyPort;
+        mLocalHttpProxyPort = localHttpProxyPort;
+    }
+
+    synchronized void configure(int windowSeconds, long minSentBytes, double maxSentToReceivedRatio) {
+        mWindowSeconds = windowSeconds;
+        mMinSentBytes = minSentBytes;
+        mMaxSentToReceivedRatio = maxSentToReceivedRatio;
+        clearSamples();
+    }
+
+    synchronized void configureProbe(String probeUrl, boolean useSocksProxy) {
+        mProbeUrl = probeUrl;
+        mProbeUseSocksProxy = useSocksProxy;
+    }
+
+    synchronized void reset() {
+        clearSamples();
+        mLastReceivedMillis = 0;
+        mReconnectMillis = 0;
+    }
+
+    void onBytesTransferred(long sent, long received) {
+        long stallStartMillis;
+        final String probeUrl;
+        final boolean probeUseSocksProxy;
+        synchronized (this) {
+            if (mWindowSeconds <= 0 || mProbing || mReconnectMillis != 0) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (received > 0) {
+                mLastReceivedMillis = now;
+            }
+            if (mSamples.isEmpty()) {
+                mSamplesStartMillis = now;
+            }
+            mSamples.addLast(new long[]{now, sent, received});
+            long windowStartMillis = now - mWindowSeconds * 1000L;
+            while (mSamples.peekFirst()[0] < windowStartMillis) {
+                mSamples.removeFirst();
+            }
+
+            // Wait for samples spanning a full window.
+            if (mSamplesStartMillis > windowStartMillis) {
+                return;
+            }
+            long windowSent = 0;
+            long windowReceived = 0;
+            for (long[] sample : mSamples) {
+                windowSent += sample[1];
+                windowReceived += sample[2];
+            }
+            if (windowSent < mMinSentBytes || windowSent <= windowReceived * mMaxSentToReceivedRatio) {
+                return;
+            }
+
+            stallStartMillis = mLastReceivedMillis > 0 ? mLastReceivedMillis : mSamplesStartMillis;
+            probeUrl = mProbeUrl;
+            probeUseSocksProxy = mProbeUseSocksProxy;
+            if (probeUrl != null) {
+                mProbing = true;
+            }
+        }
+
+        if (probeUrl == null) {
+            reconnect(stallStartMillis);
+            return;
+        }
+
+        final long probeStallStartMillis = stallStartMillis;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean probeSucceeded = probe(probeUrl, probeUseSocksProxy);
+                synchronized (PsiphonTunnelWatchdog.this) {
+                    mProbing = false;
+                    mProbes++;
+                    if (probeSucceeded) {
+                        clearSamples();
+                        return;
+                    }
+                    mProbeFailures++;
+                }
+                reconnect(probeStallStartMillis);
+            }
+        }).start();
+    }
+
+    void onTunnels(int count) {
+        long stallMillis;
+        long recoveryMillis;
+        synchronized (this) {
+            if (count == 0 || mReconnectMillis == 0) {
+                return;
+            }
+            stallMillis = mStallMillis;
+            recoveryMillis = SystemClock.elapsedRealtime() - mReconnectMillis;
+            mLastRecoveryMillis = recoveryMillis;
+            mReconnectMillis = 0;
+        }
+        mHostService.onDiagnosticMessage(String.format(Locale.US,
+                "tunnel watchdog: recovered in %d ms after a %d ms stall", recoveryMillis, stallMillis));
+        mHostService.onTunnelStallRecovered(stallMillis, recoveryMillis);
+    }
+
+    synchronized JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("stalls", mStalls);
+            json.put("probes", mProbes);
+            json.put("probeFailures", mProbeFailures);
+            json.put("lastStallMillis", mLastStallMillis);
+            json.put("lastRecoveryMillis", mLastRecoveryMillis);
+        } catch (JSONException e) {
+            return null;
+        }
+        return json;
+    }
+
+    private void reconnect(long stallStartMillis) {
+        long stallMillis;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            stallMillis = now - stallStartMillis;
+            mStalls++;
+            mStallMillis = stallMillis;
+            mLastStallMillis = stallMillis;
+            mReconnectMillis = now;
+            clearSamples();
+        }
+        mHostService.onDiagnosticMessage(String.format(Locale.US,
+                "tunnel watchdog: reconnecting stalled tunnel after %d ms", stallMillis));
+        mMetrics.recordReconnect();
+        Psi.reconnectTunnel();
+    }
+
+    private boolean probe(String probeUrl, boolean useSocksProxy) {
+        try {
+            URL url = new URL(probeUrl);
+            if (useSocksProxy) {
+                Proxy proxy = new Proxy(Proxy.Type.SOCKS,
+                        new InetSocketAddress("127.0.0.1", mLocalSocksProxyPort.get()));
+                Socket socket = new Socket(proxy);
+                try {
+                    int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+                    socket.connect(InetSocketAddress.createUnresolved(url.getHost(), port), PROBE_TIMEOUT_MILLIS);
+                } finally {
+                    socket.close();
+                }
+            } else {
+                Proxy proxy = new Proxy(Proxy.Type.HTTP,
+                        new InetSocketAddress("127.0.0.1", mLocalHttpProxyPort.get()));
+                HttpURLConnection connection = (HttpURLConnection)url.openConnection(proxy);
+                try {
+                    connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+                    connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+                    connection.setRequestMethod("HEAD");
+                    connection.getResponseCode();
+                } finally {
+                    connection.disconnect();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            mHostService.onDiagnosticMessage("tunnel watchdog: probe failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void clearSamples() {
+        mSamples.clear();
+        mSamplesStartMillis = 0;
+    }
+}
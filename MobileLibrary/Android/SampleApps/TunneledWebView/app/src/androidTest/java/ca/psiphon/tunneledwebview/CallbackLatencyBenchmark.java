@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.tunneledwebview;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.psiphon.PsiphonTunnelRemoteService;
+import ca.psiphon.PsiphonTunnelService;
+
+import static org.junit.Assert.assertTrue;
+
+// CallbackLatencyBenchmark compares the delivery latency of tunnel callbacks when the tunnel
+// runs in the app process, with PsiphonTunnelService, and in a dedicated process, with
+// PsiphonTunnelRemoteService, while the app's main thread is kept busy by a synthetic UI load.
+//
+// Each configuration connects a tunnel with app/src/main/res/raw/psiphon_config and runs for
+// RUN_MILLIS. The results are reported as instrumentation status and logged with the
+// CallbackLatencyBenchmark tag:
+//
+// - in-process: PsiphonTunnelService's callback latency, from each event in the tunnel to the
+//   listener call on the loaded main thread.
+// - remote service: the same latency in the tunnel process, whose main thread isn't loaded.
+// - remote update: the end-to-end latency to the Client listener on the loaded main thread,
+//   including PsiphonTunnelRemoteService's UPDATE_BATCH_MILLIS batching delay; with the update
+//   and message counts, to check the batch size and pending limit against the actual burst
+//   sizes. Dropped messages are counted from the "diagnostic messages dropped" messages.
+//
+// Run with: ./gradlew connectedDebugAndroidTest
+@RunWith(AndroidJUnit4.class)
+public class CallbackLatencyBenchmark {
+
+    private static final String TAG = "CallbackLatencyBenchmark";
+
+    private static final long RUN_MILLIS = 30000;
+    private static final long BIND_TIMEOUT_MILLIS = 10000;
+
+    // The synthetic UI load keeps the main thread busy, allocating as a layout or list bind
+    // would, for LOAD_BUSY_MILLIS out of every LOAD_PERIOD_MILLIS: a frame every 100ms that
+    // takes 3 frame times at 60 fps.
+    private static final long LOAD_BUSY_MILLIS = 50;
+    private static final long LOAD_PERIOD_MILLIS = 100;
+
+    private static class MainThreadLoad implements Runnable {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private volatile boolean mStopped;
+        private long mSink;
+
+        void start() {
+            mHandler.post(this);
+        }
+
+        void stop() {
+            mStopped = true;
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            if (mStopped) {
+                return;
+            }
+            long endMillis = SystemClock.uptimeMillis() + LOAD_BUSY_MILLIS;
+            while (SystemClock.uptimeMillis() < endMillis) {
+                byte[] garbage = new byte[1024];
+                mSink += garbage.length;
+            }
+            mHandler.postDelayed(this, LOAD_PERIOD_MILLIS - LOAD_BUSY_MILLIS);
+        }
+    }
+
+    @Test
+    public void benchmarkCallbackLatency() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        String psiphonConfig = loadPsiphonConfig(context);
+
+        // In-process delivery with PsiphonTunnelService.
+
+        final CountDownLatch boundLatch = new CountDownLatch(1);
+        final PsiphonTunnelService[] service = new PsiphonTunnelService[1];
+        ServiceConnection serviceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                service[0] = ((PsiphonTunnelService.LocalBinder) binder).getService();
+                boundLatch.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+            }
+        };
+        assertTrue(context.bindService(
+                new Intent(context, PsiphonTunnelService.class),
+                serviceConnection,
+                Context.BIND_AUTO_CREATE));
+        assertTrue(boundLatch.await(BIND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final AtomicInteger inProcessMessages = new AtomicInteger(0);
+        service[0].addListener(new PsiphonTunnelService.Listener() {
+            @Override
+            public void onStateChanged(PsiphonTunnelService.State state) {
+            }
+
+            @Override
+            public void onDiagnosticMessage(String message) {
+                inProcessMessages.incrementAndGet();
+            }
+        });
+
+        MainThreadLoad load = new MainThreadLoad();
+        load.start();
+        service[0].startTunnel(psiphonConfig, "");
+        Thread.sleep(RUN_MILLIS);
+        long inProcessMeanMillis = service[0].getMeanCallbackLatencyMillis();
+        long inProcessMaxMillis = service[0].getMaxCallbackLatencyMillis();
+        load.stop();
+        service[0].stopTunnel();
+        context.unbindService(serviceConnection);
+
+        // Remote delivery with PsiphonTunnelRemoteService.
+
+        final AtomicInteger remoteUpdates = new AtomicInteger(0);
+        final AtomicInteger remoteMessages = new AtomicInteger(0);
+        final AtomicInteger remoteDroppedMessages = new AtomicInteger(0);
+        PsiphonTunnelRemoteService.Client client = new PsiphonTunnelRemoteService.Client(
+                context,
+                new PsiphonTunnelRemoteService.Client.Listener() {
+                    @Override
+                    public void onUpdate(PsiphonTunnelService.State state, int localSocksProxyPort,
+                                         int localHttpProxyPort, long bytesSent, long bytesReceived) {
+                        remoteUpdates.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onDiagnosticMessages(List<String> messages) {
+                        for (String message : messages) {
+                            if (message.endsWith("diagnostic messages dropped")) {
+                                remoteDroppedMessages.addAndGet(
+                                        Integer.parseInt(message.substring(0, message.indexOf(' '))));
+                            } else {
+                                remoteMessages.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+        client.bind();
+
+        load = new MainThreadLoad();
+        load.start();
+        client.startTunnel(psiphonConfig, "");
+        Thread.sleep(RUN_MILLIS);
+        long remoteServiceMeanMillis = client.getServiceMeanCallbackLatencyMillis();
+        long remoteServiceMaxMillis = client.getServiceMaxCallbackLatencyMillis();
+        long remoteUpdateMeanMillis = client.getMeanUpdateLatencyMillis();
+        long remoteUpdateMaxMillis = client.getMaxUpdateLatencyMillis();
+        load.stop();
+        client.stopTunnel();
+        client.unbind();
+
+        Bundle results = new Bundle();
+        results.putLong("inProcessMeanMillis", inProcessMeanMillis);
+        results.putLong("inProcessMaxMillis", inProcessMaxMillis);
+        results.putInt("inProcessMessages", inProcessMessages.get());
+        results.putLong("remoteServiceMeanMillis", remoteServiceMeanMillis);
+        results.putLong("remoteServiceMaxMillis", remoteServiceMaxMillis);
+        results.putLong("remoteUpdateMeanMillis", remoteUpdateMeanMillis);
+        results.putLong("remoteUpdateMaxMillis", remoteUpdateMaxMillis);
+        results.putInt("remoteUpdates", remoteUpdates.get());
+        results.putInt("remoteMessages", remoteMessages.get());
+        results.putInt("remoteDroppedMessages", remoteDroppedMessages.get());
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+        Log.i(TAG, String.format(Locale.US,
+                "in-process: mean %d ms, max %d ms, %d messages; " +
+                        "remote service: mean %d ms, max %d ms; " +
+                        "remote update: mean %d ms, max %d ms, %d updates, %d messages, %d dropped",
+                inProcessMeanMillis, inProcessMaxMillis, inProcessMessages.get(),
+                remoteServiceMeanMillis, remoteServiceMaxMillis,
+                remoteUpdateMeanMillis, remoteUpdateMaxMillis,
+                remoteUpdates.get(), remoteMessages.get(), remoteDroppedMessages.get()));
+
+        assertTrue("no in-process callbacks", inProcessMeanMillis >= 0);
+        assertTrue("no remote callbacks", remoteServiceMeanMillis >= 0 && remoteUpdateMeanMillis >= 0);
+        // The tunnel process's main thread isn't loaded, so its callbacks aren't held up by
+        // the app's UI work.
+        assertTrue("remote service callbacks delayed by app UI load",
+                remoteServiceMaxMillis < inProcessMaxMillis);
+    }
+
+    private static String loadPsiphonConfig(Context context) throws Exception {
+        InputStream inputStream = context.getResources().openRawResource(R.raw.psiphon_config);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int readCount;
+            while ((readCount = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, readCount);
+            }
+            return new JSONObject(outputStream.toString("UTF-8")).toString();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
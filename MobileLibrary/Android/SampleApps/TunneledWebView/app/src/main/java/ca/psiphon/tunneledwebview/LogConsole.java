@@ -0,0 +1,308 @@
+/*
+Licensed under Creative Commons Zero (CC0).
+https://creativecommons.org/publicdomain/zero/1.0/
+*/
+
+package ca.psiphon.tunneledwebview;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//----------------------------------------------------------------------------------------------
+// LogConsole
+//
+// A bounded log view for Psiphon Library callbacks, which may arrive at a
+// high rate on background threads.
+//
+// - Messages are stored in a fixed-capacity ring buffer. add() may be
+//   called from any thread and doesn't lock or allocate beyond the entry
+//   itself; once the ring is full, the oldest messages are overwritten.
+//
+// - The RecyclerView is refreshed at most once per display frame, from a
+//   Choreographer frame callback, dispatching only the rows that were
+//   added or removed since the previous frame. Rows are ordered by
+//   sequence number, so the difference is found in one linear pass;
+//   DiffUtil's worst case, which a flood that replaces most rows each
+//   frame would hit, is quadratic.
+//
+// - Messages below the selected level are filtered out of the view but
+//   kept in the ring, so changing the level shows recent messages.
+//
+// - startStressTest() floods the console from several threads and logs
+//   how many display frames were dropped while the flood was running.
+//
+//----------------------------------------------------------------------------------------------
+
+public class LogConsole {
+
+    public static final int LEVEL_DEBUG = 0;
+    public static final int LEVEL_INFO = 1;
+    public static final int LEVEL_WARNING = 2;
+    public static final int LEVEL_ERROR = 3;
+
+    private static final String[] LEVEL_TAGS = {"D", "I", "W", "E"};
+
+    // Must be a power of 2.
+    private static final int CAPACITY = 1024;
+
+    private static final int STRESS_THREAD_COUNT = 4;
+    private static final long STRESS_DURATION_MILLIS = 5000;
+
+    private static class Entry {
+        final long mSequence;
+        final int mLevel;
+        final String mText;
+
+        Entry(long sequence, int level, String text) {
+            mSequence = sequence;
+            mLevel = level;
+            mText = text;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mRing = new AtomicReferenceArray<Entry>(CAPACITY);
+    private final AtomicLong mNextSequence = new AtomicLong(0);
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean(false);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final RecyclerView mRecyclerView;
+    private final Adapter mAdapter = new Adapter();
+    private final long mFrameIntervalNanos;
+
+    // Only accessed on the main thread.
+    private int mMinLevel = LEVEL_INFO;
+    private List<Entry> mShownEntries = new ArrayList<Entry>();
+    private long mStressEndMillis;
+    private long mLastFrameNanos;
+    private long mFrameCount;
+    private long mDroppedFrameCount;
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Clear the flag before taking the snapshot, so a message added
+            // during the refresh schedules another frame.
+            mFrameScheduled.set(false);
+            refresh();
+            measureStressFrame(frameTimeNanos);
+        }
+    };
+
+    public LogConsole(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+        LinearLayoutManager layoutManager = new LinearLayoutManager(recyclerView.getContext());
+        layoutManager.setStackFromEnd(true);
+        mRecyclerView.setLayoutManager(layoutManager);
+        mRecyclerView.setItemAnimator(null);
+        mRecyclerView.setAdapter(mAdapter);
+        WindowManager windowManager =
+                (WindowManager)recyclerView.getContext().getSystemService(Context.WINDOW_SERVICE);
+        mFrameIntervalNanos =
+                (long)(1000000000L / windowManager.getDefaultDisplay().getRefreshRate());
+    }
+
+    // Adds a message. Safe to call from any thread.
+    public void add(int level, String message) {
+        long sequence = mNextSequence.getAndIncrement();
+        mRing.set((int)(sequence & (CAPACITY - 1)), new Entry(sequence, level, message));
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mScheduleFrame);
+        }
+    }
+
+    // Shows only messages at or above level. Call on the main thread.
+    public void setMinLevel(int level) {
+        mMinLevel = level;
+        refresh();
+    }
+
+    public static String[] getLevelNames() {
+        return new String[]{"Debug", "Info", "Warning", "Error"};
+    }
+
+    // Floods the console from STRESS_THREAD_COUNT threads for STRESS_DURATION_MILLIS, then logs
+    // the message rate and the number of display frames dropped meanwhile. Call on the main
+    // thread.
+    public void startStressTest() {
+        if (mStressEndMillis != 0) {
+            return;
+        }
+        mStressEndMillis = SystemClock.uptimeMillis() + STRESS_DURATION_MILLIS;
+        mLastFrameNanos = 0;
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+        final long startSequence = mNextSequence.get();
+        final long endMillis = mStressEndMillis;
+        for (int i = 0; i < STRESS_THREAD_COUNT; i++) {
+            final int thread = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (SystemClock.uptimeMillis() < endMillis) {
+                        add(count % 10 == 0 ? LEVEL_INFO : LEVEL_DEBUG,
+                                "stress " + Integer.toString(thread) + ": " + Long.toString(count));
+                        count++;
+                    }
+                }
+            }).start();
+        }
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if (SystemClock.uptimeMillis() < endMillis) {
+                    // Keep frames coming while the flood runs, so frame times are
+                    // measured even when no refresh is pending.
+                    measureStressFrame(frameTimeNanos);
+                    Choreographer.getInstance().postFrameCallback(this);
+                    return;
+                }
+                long messageCount = mNextSequence.get() - startSequence;
+                mStressEndMillis = 0;
+                add(LEVEL_INFO, String.format(Locale.US,
+                        "stress test: %d messages in %d ms, %d of %d frames dropped",
+                        messageCount, STRESS_DURATION_MILLIS, mDroppedFrameCount,
+                        mFrameCount + mDroppedFrameCount));
+            }
+        });
+    }
+
+    // Counts frames skipped between consecutive frame callbacks during a stress test. Both the
+    // refresh and stress callbacks may run for the same frame, which is counted once.
+    private void measureStressFrame(long frameTimeNanos) {
+        if (mStressEndMillis == 0 || frameTimeNanos == mLastFrameNanos) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            long elapsedNanos = frameTimeNanos - mLastFrameNanos;
+            long elapsedFrames = (elapsedNanos + mFrameIntervalNanos / 2) / mFrameIntervalNanos;
+            mDroppedFrameCount += Math.max(0, elapsedFrames - 1);
+        }
+        mFrameCount++;
+        mLastFrameNanos = frameTimeNanos;
+    }
+
+    // Rebuilds the visible list from the ring and dispatches the difference to the adapter.
+    private void refresh() {
+        List<Entry> newEntries = new ArrayList<Entry>(mShownEntries.size() + 16);
+        long end = mNextSequence.get();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            Entry entry = mRing.get((int)(sequence & (CAPACITY - 1)));
+            // Skip slots that were overwritten by a newer message, or that are claimed but not
+            // yet written.
+            if (entry == null || entry.mSequence != sequence || entry.mLevel < mMinLevel) {
+                continue;
+            }
+            newEntries.add(entry);
+        }
+
+        List<Entry> oldEntries = mShownEntries;
+        mShownEntries = newEntries;
+        dispatchChanges(oldEntries, newEntries);
+        if (!newEntries.isEmpty()) {
+            mRecyclerView.scrollToPosition(newEntries.size() - 1);
+        }
+    }
+
+    // Notifies the adapter of the rows removed from and inserted into oldEntries to produce
+    // newEntries. Both lists are in increasing sequence order. Consecutive removals or
+    // insertions are coalesced into range notifications.
+    private void dispatchChanges(List<Entry> oldEntries, List<Entry> newEntries) {
+        int oldIndex = 0;
+        int newIndex = 0;
+        int position = 0;
+        int removeCount = 0;
+        int insertCount = 0;
+        while (oldIndex < oldEntries.size() || newIndex < newEntries.size()) {
+            long oldSequence = oldIndex < oldEntries.size() ?
+                    oldEntries.get(oldIndex).mSequence : Long.MAX_VALUE;
+            long newSequence = newIndex < newEntries.size() ?
+                    newEntries.get(newIndex).mSequence : Long.MAX_VALUE;
+            if (oldSequence < newSequence) {
+                if (insertCount > 0) {
+                    mAdapter.notifyItemRangeInserted(position - insertCount, insertCount);
+                    insertCount = 0;
+                }
+                removeCount++;
+                oldIndex++;
+            } else {
+                if (removeCount > 0) {
+                    mAdapter.notifyItemRangeRemoved(position, removeCount);
+                    removeCount = 0;
+                }
+                if (oldSequence > newSequence) {
+                    insertCount++;
+                } else {
+                    if (insertCount > 0) {
+                        mAdapter.notifyItemRangeInserted(position - insertCount, insertCount);
+                        insertCount = 0;
+                    }
+                    oldIndex++;
+                }
+                newIndex++;
+                position++;
+            }
+        }
+        if (removeCount > 0) {
+            mAdapter.notifyItemRangeRemoved(position, removeCount);
+        }
+        if (insertCount > 0) {
+            mAdapter.notifyItemRangeInserted(position - insertCount, insertCount);
+        }
+    }
+
+    private class Adapter extends RecyclerView.Adapter<ViewHolder> {
+        @NonNull
+        @Override
+        public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            View view = LayoutInflater.from(parent.getContext()).inflate(
+                    R.layout.log_message, parent, false);
+            return new ViewHolder(view);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+            Entry entry = mShownEntries.get(position);
+            holder.mTextView.setText(LEVEL_TAGS[entry.mLevel] + " " + entry.mText);
+        }
+
+        @Override
+        public int getItemCount() {
+            return mShownEntries.size();
+        }
+    }
+
+    private static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView mTextView;
+
+        ViewHolder(View view) {
+            super(view);
+            mTextView = (TextView)view.findViewById(R.id.logMessageTextView);
+        }
+    }
+}
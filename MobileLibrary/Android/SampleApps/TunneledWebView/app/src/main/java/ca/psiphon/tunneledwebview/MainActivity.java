@@ -7,11 +7,16 @@ package ca.psiphon.tunneledwebview;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.support.v7.app.AppCompatActivity;
+import android.view.View;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
-import android.widget.ListView;
+import android.widget.Button;
+import android.widget.Spinner;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.RecyclerView;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -20,6 +25,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ca.psiphon.PsiphonTunnel;
@@ -33,8 +40,10 @@ import ca.psiphon.PsiphonTunnel;
 //
 // The flow is as follows:
 //
-// - The Psiphon tunnel is started in onResume(). PsiphonTunnel.start()
-//   is an asynchronous call that returns immediately.
+// - The Psiphon tunnel is started in the first onResume(). PsiphonTunnel.start()
+//   is an asynchronous call that returns immediately. Psiphon is suspended
+//   in onPause(), resumed in subsequent onResume() calls, and stopped in
+//   onDestroy().
 //
 // - Once Psiphon has selected a local HTTP proxy listening port, the
 //   onListeningHttpProxyPort() callback is called. This app records the
@@ -44,13 +53,16 @@ import ca.psiphon.PsiphonTunnel;
 //   is called. This app now loads the WebView, after setting its proxy
 //   to point to Psiphon's local HTTP proxy.
 //
+// - Psiphon Library callbacks are logged to a LogConsole, which bounds
+//   memory use and batches UI updates regardless of the notice rate.
+//
 // To adapt this sample into your own app:
 //
 // - Embed a Psiphon config file in app/src/main/res/raw/psiphon_config.
 //
 // - Add the Psiphon Library AAR module as a dependency (see this app's
-//   project settings; to build this sample project, you need to drop
-//   psi-0.0.10.aar into app/libs).
+//   project settings; to build this sample project, you need to build
+//   ca.psiphon.aar from this repository and drop it into app/libs).
 //
 // - Use app/src/main/java/ca/psiphon/PsiphonTunnel.java, which provides
 //   a higher-level wrapper around the Psiphon Library module. This file
@@ -61,49 +73,90 @@ import ca.psiphon.PsiphonTunnel;
 public class MainActivity extends AppCompatActivity
         implements PsiphonTunnel.HostService {
 
-    private ListView mListView;
     private WebView mWebView;
 
-    private ArrayAdapter<String> mLogMessages;
+    private LogConsole mLogConsole;
     private AtomicInteger mLocalHttpProxyPort;
 
     private PsiphonTunnel mPsiphonTunnel;
+    private boolean mPsiphonStarted;
+
+    // NOTE: suspend() and resume() block while the VPN interface and
+    // Psiphon are reconfigured, so they're run off the main thread, in
+    // order, on this executor.
+    private ExecutorService mPsiphonControlExecutor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mListView = (ListView)findViewById(R.id.listView);
         mWebView = (WebView)findViewById(R.id.webView);
         WebSettings webSettings = mWebView.getSettings();
         webSettings.setJavaScriptEnabled(true);
 
-        mLogMessages = new ArrayAdapter<String>(
-                this, R.layout.log_message, R.id.logMessageTextView);
+        mLogConsole = new LogConsole((RecyclerView)findViewById(R.id.logView));
+
+        Spinner logLevelSpinner = (Spinner)findViewById(R.id.logLevelSpinner);
+        ArrayAdapter<String> logLevels = new ArrayAdapter<String>(
+                this, android.R.layout.simple_spinner_item, LogConsole.getLevelNames());
+        logLevels.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        logLevelSpinner.setAdapter(logLevels);
+        logLevelSpinner.setSelection(LogConsole.LEVEL_INFO);
+        logLevelSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                mLogConsole.setMinLevel(position);
+            }
 
-        mListView.setAdapter(mLogMessages);
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        Button stressTestButton = (Button)findViewById(R.id.stressTestButton);
+        stressTestButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mLogConsole.startStressTest();
+            }
+        });
 
         mLocalHttpProxyPort = new AtomicInteger(0);
 
         mPsiphonTunnel = PsiphonTunnel.newPsiphonTunnel(this);
+        mPsiphonControlExecutor = Executors.newSingleThreadExecutor();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
-        // NOTE: for demonstration purposes, this sample app
-        // restarts Psiphon in onPause/onResume. Since it may take some
-        // time to connect, it's generally recommended to keep
-        // Psiphon running, so start/stop in onCreate/onDestroy or
-        // even consider running a background Service.
-
-
-        try {
-            mPsiphonTunnel.startTunneling("");
-        } catch (PsiphonTunnel.Exception e) {
-            logMessage("failed to start Psiphon");
+        // NOTE: since it may take some time to connect, this sample app
+        // suspends Psiphon in onPause and resumes in onResume, instead of
+        // stopping and restarting. While suspended, an established tunnel
+        // is kept with minimal background activity, so resuming is
+        // typically immediate. For tunneling while the app is in the
+        // background, consider running a background Service.
+
+        if (!mPsiphonStarted) {
+            try {
+                mPsiphonTunnel.startTunneling("");
+                mPsiphonStarted = true;
+            } catch (PsiphonTunnel.Exception e) {
+                logMessage(LogConsole.LEVEL_ERROR, "failed to start Psiphon");
+            }
+        } else {
+            mPsiphonControlExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mPsiphonTunnel.resume();
+                    } catch (PsiphonTunnel.Exception e) {
+                        logMessage(LogConsole.LEVEL_ERROR, "failed to resume Psiphon");
+                    }
+                }
+            });
         }
     }
 
@@ -111,10 +164,29 @@ public class MainActivity extends AppCompatActivity
     protected void onPause() {
         super.onPause();
 
+        mPsiphonControlExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPsiphonTunnel.suspend();
+                } catch (PsiphonTunnel.Exception e) {
+                    logMessage(LogConsole.LEVEL_ERROR, "failed to suspend Psiphon");
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
         // NOTE: stop() can block for a few seconds, so it's generally
         // recommended to run PsiphonTunnel.start()/stop() in a background
         // thread and signal the thread appropriately.
 
+        // Drop any pending suspend or resume, so that it can't run after
+        // stop(). One already running completes before stop() proceeds.
+        mPsiphonControlExecutor.shutdownNow();
         mPsiphonTunnel.stop();
     }
 
@@ -138,22 +210,38 @@ public class MainActivity extends AppCompatActivity
         // called directly from these threads. Here we use runOnUiThread
         // to handle this.
 
+        // NOTE: where supported, the WebView proxy is set asynchronously
+        // via androidx.webkit.ProxyController, so the URL is loaded only
+        // once the proxy setting is applied.
+
         runOnUiThread(new Runnable() {
             public void run() {
                 WebViewProxySettings.setLocalProxy(
-                        MainActivity.this, mLocalHttpProxyPort.get());
-                mWebView.loadUrl("https://freegeoip.app/");
+                        MainActivity.this, mLocalHttpProxyPort.get(), null,
+                        new WebViewProxySettings.Callback() {
+                            @Override
+                            public void onProxySet(String strategy, boolean worked, long elapsedMillis) {
+                                logMessage("WebView proxy set using " + strategy +
+                                        (worked ? "" : " (failed)") +
+                                        " in " + Long.toString(elapsedMillis) + " ms");
+                                mWebView.loadUrl("https://freegeoip.app/");
+                            }
+                        });
             }
         });
     }
 
-    private void logMessage(final String message) {
-        runOnUiThread(new Runnable() {
-            public void run() {
-                mLogMessages.add(message);
-                mListView.setSelection(mLogMessages.getCount() - 1);
-            }
-        });
+    private void logMessage(String message) {
+        logMessage(LogConsole.LEVEL_INFO, message);
+    }
+
+    private void logMessage(int level, String message) {
+
+        // NOTE: LogConsole.add may be called directly from Psiphon Library
+        // callback threads. It doesn't block, and the UI is refreshed at
+        // most once per frame however many messages arrive.
+
+        mLogConsole.add(level, message);
     }
 
     //----------------------------------------------------------------------------------------------
@@ -192,9 +280,9 @@ public class MainActivity extends AppCompatActivity
             return config.toString();
 
         } catch (IOException e) {
-            logMessage("error loading Psiphon config: " + e.getMessage());
+            logMessage(LogConsole.LEVEL_ERROR, "error loading Psiphon config: " + e.getMessage());
         } catch (JSONException e) {
-            logMessage("error loading Psiphon config: " + e.getMessage());
+            logMessage(LogConsole.LEVEL_ERROR, "error loading Psiphon config: " + e.getMessage());
         }
         return "";
     }
@@ -202,7 +290,7 @@ public class MainActivity extends AppCompatActivity
     @Override
     public void onDiagnosticMessage(String message) {
         android.util.Log.i(getString(R.string.app_name), message);
-        logMessage(message);
+        logMessage(LogConsole.LEVEL_DEBUG, message);
     }
 
     @Override
@@ -214,12 +302,12 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onSocksProxyPortInUse(int port) {
-        logMessage("local SOCKS proxy port in use: " + Integer.toString(port));
+        logMessage(LogConsole.LEVEL_WARNING, "local SOCKS proxy port in use: " + Integer.toString(port));
     }
 
     @Override
     public void onHttpProxyPortInUse(int port) {
-        logMessage("local HTTP proxy port in use: " + Integer.toString(port));
+        logMessage(LogConsole.LEVEL_WARNING, "local HTTP proxy port in use: " + Integer.toString(port));
     }
 
     @Override
@@ -235,7 +323,7 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onUpstreamProxyError(String message) {
-        logMessage("upstream proxy error: " + message);
+        logMessage(LogConsole.LEVEL_ERROR, "upstream proxy error: " + message);
     }
 
     @Override
@@ -276,8 +364,8 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onBytesTransferred(long sent, long received) {
-        logMessage("bytes sent: " + Long.toString(sent));
-        logMessage("bytes received: " + Long.toString(received));
+        logMessage(LogConsole.LEVEL_DEBUG, "bytes sent: " + Long.toString(sent));
+        logMessage(LogConsole.LEVEL_DEBUG, "bytes received: " + Long.toString(received));
     }
 
     @Override
@@ -11,43 +11,94 @@ import android.content.Intent;
 import android.net.Proxy;
 import android.os.Build;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 
+import androidx.core.content.ContextCompat;
+import androidx.webkit.ProxyConfig;
+import androidx.webkit.ProxyController;
+import androidx.webkit.WebViewFeature;
+
 import org.apache.http.HttpHost;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class WebViewProxySettings 
 {
+    // Called, on the main thread for the ProxyController strategy and on the calling thread
+    // otherwise, once the proxy setting is applied, with the strategy used and the time it took.
+    public interface Callback
+    {
+        void onProxySet(String strategy, boolean worked, long elapsedMillis);
+    }
+
+    public static final String STRATEGY_PROXY_CONTROLLER = "ProxyController";
+    public static final String STRATEGY_REFLECTION = "reflection";
 
-    private static List<Object> getCurrentReceiversSet(Context ctx) {
-        Context appContext = ctx.getApplicationContext();
-        List<Object> receiversList = new ArrayList();
+    // Reflection handles are resolved once and reused for subsequent port changes: onReceive
+    // methods by receiver class, and proxy info constructors by class name. The WebView's
+    // ProxyChangeListener receivers are also remembered, so that later calls only need to walk
+    // every receiver registered by the app when none is found with the application context.
+    private static Field sLoadedApkField;
+    private static Field sReceiversField;
+    private static Map<Class, Method> sOnReceiveMethods = new HashMap<Class, Method>();
+    private static Map<String, Constructor> sProxyInfoConstructors = new HashMap<String, Constructor>();
+    private static List<WeakReference<Object>> sProxyChangeReceivers = new ArrayList<WeakReference<Object>>();
+
+    @TargetApi(Build.VERSION_CODES.KITKAT) // for android.util.ArrayMap methods
+    @SuppressWarnings("rawtypes")
+    private static synchronized List<Object> getProxyChangeReceivers(Context appContext)
+    {
+        List<Object> receiversList = new ArrayList<Object>();
+        Iterator<WeakReference<Object>> iterator = sProxyChangeReceivers.iterator();
+        while (iterator.hasNext())
+        {
+            Object receiver = iterator.next().get();
+            if (receiver == null)
+            {
+                iterator.remove();
+            }
+            else
+            {
+                receiversList.add(receiver);
+            }
+        }
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
             return receiversList;
         }
 
+        List<Object> foundList = new ArrayList<Object>();
         try {
-            Class applicationClass = Class.forName("android.app.Application");
-            Field mLoadedApkField = applicationClass.getDeclaredField("mLoadedApk");
-            mLoadedApkField.setAccessible(true);
-            Object mloadedApk = mLoadedApkField.get(appContext);
-            Class loadedApkClass = Class.forName("android.app.LoadedApk");
-            Field mReceiversField = loadedApkClass.getDeclaredField("mReceivers");
-            mReceiversField.setAccessible(true);
-            ArrayMap receivers = (ArrayMap) mReceiversField.get(mloadedApk);
-            for (Object receiverMap : receivers.values()) {
-                for (Object receiver : ((ArrayMap) receiverMap).keySet()) {
-                    if (receiver == null) {
-                        continue;
-                    }
-                    receiversList.add(receiver);
+            if (sLoadedApkField == null) {
+                Field loadedApkField = Class.forName("android.app.Application").getDeclaredField("mLoadedApk");
+                loadedApkField.setAccessible(true);
+                Field receiversField = Class.forName("android.app.LoadedApk").getDeclaredField("mReceivers");
+                receiversField.setAccessible(true);
+                sLoadedApkField = loadedApkField;
+                sReceiversField = receiversField;
+            }
+            ArrayMap receivers = (ArrayMap) sReceiversField.get(sLoadedApkField.get(appContext));
+
+            // The WebView registers its ProxyChangeListener with the application context, so
+            // look there on each call, which picks up the receivers of WebViews created since
+            // the last call. Only walk the receivers of every context as a fallback.
+            ArrayMap appContextReceivers = (ArrayMap) receivers.get(appContext);
+            if (appContextReceivers != null) {
+                addProxyChangeReceivers(appContextReceivers, foundList);
+            }
+            if (foundList.isEmpty() && receiversList.isEmpty()) {
+                for (Object receiverMap : receivers.values()) {
+                    addProxyChangeReceivers((ArrayMap) receiverMap, foundList);
                 }
             }
         } catch (ClassNotFoundException e) {
@@ -55,13 +106,83 @@ public class WebViewProxySettings
         } catch (IllegalAccessException e) {
         }
 
+        for (Object receiver : foundList) {
+            if (!containsReceiver(receiversList, receiver)) {
+                receiversList.add(receiver);
+                sProxyChangeReceivers.add(new WeakReference<Object>(receiver));
+            }
+        }
         return receiversList;
     }
 
+    private static boolean containsReceiver(List<Object> receiversList, Object receiver)
+    {
+        for (Object listReceiver : receiversList) {
+            if (listReceiver == receiver) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT) // for android.util.ArrayMap methods
+    private static void addProxyChangeReceivers(ArrayMap receiverMap, List<Object> receiversList)
+    {
+        for (Object receiver : receiverMap.keySet()) {
+            if (receiver == null) {
+                continue;
+            }
+            String receiverName = receiver.getClass().getName();
+            if (receiverName.contains("ProxyChangeListener")) {
+                receiversList.add(receiver);
+            }
+        }
+    }
+
     public static void setLocalProxy(Context ctx, int port)
     {
         setProxy(ctx, "localhost", port);
     }
+
+    // Sets the WebView proxy to the local Psiphon HTTP proxy. Where supported by the installed
+    // WebView, this uses androidx.webkit.ProxyController, which applies the proxy asynchronously
+    // and calls back on completion. Hosts matching bypassRules, for example "*.example.com",
+    // are not proxied. Otherwise, this falls back to the reflective setProxy, which ignores
+    // bypassRules. Load URLs only once the callback is called.
+    public static void setLocalProxy(Context ctx, int port, List<String> bypassRules, final Callback callback)
+    {
+        final long startMillis = SystemClock.elapsedRealtime();
+        if (WebViewFeature.isFeatureSupported(WebViewFeature.PROXY_OVERRIDE))
+        {
+            ProxyConfig.Builder builder = new ProxyConfig.Builder().addProxyRule("localhost:" + port);
+            if (bypassRules != null)
+            {
+                for (String bypassRule : bypassRules)
+                {
+                    builder.addBypassRule(bypassRule);
+                }
+            }
+            ProxyController.getInstance().setProxyOverride(
+                    builder.build(),
+                    ContextCompat.getMainExecutor(ctx),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (callback != null) {
+                                callback.onProxySet(STRATEGY_PROXY_CONTROLLER, true,
+                                        SystemClock.elapsedRealtime() - startMillis);
+                            }
+                        }
+                    });
+            return;
+        }
+
+        boolean worked = setProxy(ctx, "localhost", port);
+        if (callback != null)
+        {
+            callback.onProxySet(STRATEGY_REFLECTION, worked, SystemClock.elapsedRealtime() - startMillis);
+        }
+    }
     
     /* 
     Proxy setting code taken directly from Orweb, with some modifications.
@@ -166,23 +287,16 @@ public class WebViewProxySettings
         System.setProperty("https.proxyPort", port + "");
         try
         {
-            for (Object receiver : getCurrentReceiversSet(appContext))
+            for (Object receiver : getProxyChangeReceivers(appContext))
             {
-                Class receiverClass = receiver.getClass();
-                if (receiverClass.getName().contains("ProxyChangeListener"))
-                {
-                    Method onReceiveMethod = receiverClass.getDeclaredMethod("onReceive", Context.class, Intent.class);
-                    Intent intent = new Intent(Proxy.PROXY_CHANGE_ACTION);
+                Method onReceiveMethod = getOnReceiveMethod(receiver.getClass());
+                Intent intent = new Intent(Proxy.PROXY_CHANGE_ACTION);
 
-                    final String CLASS_NAME = "android.net.ProxyProperties";
-                    Class proxyPropertiesClass = Class.forName(CLASS_NAME);
-                    Constructor constructor = proxyPropertiesClass.getConstructor(String.class, Integer.TYPE, String.class);
-                    constructor.setAccessible(true);
-                    Object proxyProperties = constructor.newInstance(host, port, null);
-                    intent.putExtra("proxy", (Parcelable) proxyProperties);
+                Constructor constructor = getProxyInfoConstructor("android.net.ProxyProperties");
+                Object proxyProperties = constructor.newInstance(host, port, null);
+                intent.putExtra("proxy", (Parcelable) proxyProperties);
 
-                    onReceiveMethod.invoke(receiver, appContext, intent);
-                }
+                onReceiveMethod.invoke(receiver, appContext, intent);
             }
             return true;
         }
@@ -217,27 +331,19 @@ public class WebViewProxySettings
         System.setProperty("https.proxyHost", host);
         System.setProperty("https.proxyPort", port + "");
         try {
-            for (Object receiver : getCurrentReceiversSet(appContext))
+            for (Object receiver : getProxyChangeReceivers(appContext))
             {
-                Class receiverClass = receiver.getClass();
-                String receiverName = receiverClass.getCanonicalName();
-                if (receiverName != null && receiverName.contains("ProxyChangeListener"))
-                {
-                    Method onReceiveMethod = receiverClass.getDeclaredMethod("onReceive", Context.class, Intent.class);
-                    Intent intent = new Intent(Proxy.PROXY_CHANGE_ACTION);
-                    
-                    final String CLASS_NAME = "android.net.ProxyInfo";
-                    Class proxyInfoClass = Class.forName(CLASS_NAME);
-                    Constructor constructor = proxyInfoClass.getConstructor(String.class, Integer.TYPE, String.class);
-                    constructor.setAccessible(true);
-                    Object proxyInfo = constructor.newInstance(host, port, null);
-                    intent.putExtra("android.intent.extra.PROXY_INFO", (Parcelable) proxyInfo);
-                    
-                    try {
-                        onReceiveMethod.invoke(receiver, appContext, intent);
-                    } catch (InvocationTargetException e) {
-                        // This receiver may throw on an unexpected intent, continue to the next one
-                    }
+                Method onReceiveMethod = getOnReceiveMethod(receiver.getClass());
+                Intent intent = new Intent(Proxy.PROXY_CHANGE_ACTION);
+
+                Constructor constructor = getProxyInfoConstructor("android.net.ProxyInfo");
+                Object proxyInfo = constructor.newInstance(host, port, null);
+                intent.putExtra("android.intent.extra.PROXY_INFO", (Parcelable) proxyInfo);
+
+                try {
+                    onReceiveMethod.invoke(receiver, appContext, intent);
+                } catch (InvocationTargetException e) {
+                    // This receiver may throw on an unexpected intent, continue to the next one
                 }
             }
             return true;
@@ -260,6 +366,33 @@ public class WebViewProxySettings
         return false;
      }
     
+    @SuppressWarnings("rawtypes")
+    private static synchronized Method getOnReceiveMethod(Class receiverClass) throws NoSuchMethodException
+    {
+        Method method = sOnReceiveMethods.get(receiverClass);
+        if (method == null)
+        {
+            method = receiverClass.getDeclaredMethod("onReceive", Context.class, Intent.class);
+            method.setAccessible(true);
+            sOnReceiveMethods.put(receiverClass, method);
+        }
+        return method;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static synchronized Constructor getProxyInfoConstructor(String className)
+            throws ClassNotFoundException, NoSuchMethodException
+    {
+        Constructor constructor = sProxyInfoConstructors.get(className);
+        if (constructor == null)
+        {
+            constructor = Class.forName(className).getConstructor(String.class, Integer.TYPE, String.class);
+            constructor.setAccessible(true);
+            sProxyInfoConstructors.put(className, constructor);
+        }
+        return constructor;
+    }
+
     @SuppressWarnings("rawtypes")
     private static Object GetNetworkInstance(Context ctx) throws ClassNotFoundException
     {
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon;
+
+import android.content.Intent;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+// PsiphonTunnelServiceTest runs PsiphonTunnelService on the JVM, with the PsiphonTunnel replaced
+// by a FakeTunnel. The service's tunnel thread runs for real; the main looper is paused and is
+// run by the test, so listener callbacks are only delivered when the test idles it.
+//
+// The test is in the ca.psiphon package to override PsiphonTunnelService.newTunnel().
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class PsiphonTunnelServiceTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    static class FakeTunnel implements PsiphonTunnelService.Tunnel {
+        final AtomicInteger mStartCount = new AtomicInteger(0);
+        final AtomicInteger mSuspendCount = new AtomicInteger(0);
+        final AtomicInteger mResumeCount = new AtomicInteger(0);
+        final AtomicInteger mStopCount = new AtomicInteger(0);
+
+        @Override
+        public void startTunneling(String embeddedServerEntries) {
+            mStartCount.incrementAndGet();
+        }
+
+        @Override
+        public void suspend() {
+            mSuspendCount.incrementAndGet();
+        }
+
+        @Override
+        public void resume() {
+            mResumeCount.incrementAndGet();
+        }
+
+        @Override
+        public void stop() {
+            mStopCount.incrementAndGet();
+        }
+    }
+
+    public static class TestService extends PsiphonTunnelService {
+        final FakeTunnel mFakeTunnel = new FakeTunnel();
+
+        @Override
+        Tunnel newTunnel() {
+            return mFakeTunnel;
+        }
+    }
+
+    static class RecordingListener implements PsiphonTunnelService.Listener {
+        final LinkedBlockingQueue<PsiphonTunnelService.State> mStates =
+                new LinkedBlockingQueue<PsiphonTunnelService.State>();
+        final List<String> mDiagnosticMessages = new ArrayList<String>();
+
+        @Override
+        public void onStateChanged(PsiphonTunnelService.State state) {
+            mStates.add(state);
+        }
+
+        @Override
+        public void onDiagnosticMessage(String message) {
+            mDiagnosticMessages.add(message);
+        }
+
+        // Runs the main looper until a state change is delivered, as the tunnel thread posts
+        // state changes asynchronously. Returns null on timeout.
+        PsiphonTunnelService.State awaitState() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mStates.isEmpty() && System.currentTimeMillis() < deadline) {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(10);
+            }
+            return mStates.poll();
+        }
+
+        // Runs the main looper for a while and returns any state change delivered meanwhile.
+        PsiphonTunnelService.State pollState() throws InterruptedException {
+            for (int i = 0; i < 10; i++) {
+                shadowOf(Looper.getMainLooper()).idle();
+                Thread.sleep(10);
+            }
+            return mStates.poll();
+        }
+    }
+
+    private ServiceController<TestService> mController;
+    private TestService mService;
+
+    @Before
+    public void setUp() {
+        mController = Robolectric.buildService(TestService.class).create();
+        mService = mController.get();
+    }
+
+    @After
+    public void tearDown() {
+        mController.destroy();
+    }
+
+    @Test
+    public void testStateTransitions() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mService.addListener(listener);
+        assertEquals(PsiphonTunnelService.State.STOPPED, listener.awaitState());
+
+        mService.startTunnel("{}", "");
+        assertEquals(PsiphonTunnelService.State.CONNECTING, listener.awaitState());
+        assertEquals(1, mService.mFakeTunnel.mStartCount.get());
+
+        mService.onConnected();
+        assertEquals(PsiphonTunnelService.State.CONNECTED, listener.awaitState());
+
+        mService.suspendTunnel();
+        assertEquals(PsiphonTunnelService.State.SUSPENDED, listener.awaitState());
+        assertEquals(1, mService.mFakeTunnel.mSuspendCount.get());
+
+        // Connection progress while suspended doesn't change the state.
+        mService.onConnecting();
+        mService.onConnected();
+        assertNull(listener.pollState());
+        assertEquals(PsiphonTunnelService.State.SUSPENDED, mService.getState());
+
+        mService.resumeTunnel();
+        assertEquals(PsiphonTunnelService.State.CONNECTED, listener.awaitState());
+        assertEquals(1, mService.mFakeTunnel.mResumeCount.get());
+
+        mService.stopTunnel();
+        assertEquals(PsiphonTunnelService.State.STOPPED, listener.awaitState());
+        assertEquals(1, mService.mFakeTunnel.mStopCount.get());
+    }
+
+    @Test
+    public void testResumeWhileDisconnected() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        mService.addListener(listener);
+        assertEquals(PsiphonTunnelService.State.STOPPED, listener.awaitState());
+
+        mService.startTunnel("{}", "");
+        assertEquals(PsiphonTunnelService.State.CONNECTING, listener.awaitState());
+        mService.onConnected();
+        assertEquals(PsiphonTunnelService.State.CONNECTED, listener.awaitState());
+        mService.suspendTunnel();
+        assertEquals(PsiphonTunnelService.State.SUSPENDED, listener.awaitState());
+
+        // The tunnel was lost while suspended, so resume reports connecting.
+        mService.onConnecting();
+        mService.resumeTunnel();
+        assertEquals(PsiphonTunnelService.State.CONNECTING, listener.awaitState());
+    }
+
+    @Test
+    public void testListenerDeliveryAcrossBindUnbind() throws InterruptedException {
+        // A first client binds, starts the tunnel, and unbinds.
+        PsiphonTunnelService.LocalBinder binder =
+                (PsiphonTunnelService.LocalBinder) mService.onBind(new Intent());
+        assertSame(mService, binder.getService());
+        RecordingListener firstListener = new RecordingListener();
+        binder.getService().addListener(firstListener);
+        assertEquals(PsiphonTunnelService.State.STOPPED, firstListener.awaitState());
+        binder.getService().startTunnel("{}", "");
+        assertEquals(PsiphonTunnelService.State.CONNECTING, firstListener.awaitState());
+        binder.getService().removeListener(firstListener);
+        mService.onUnbind(new Intent());
+
+        // The tunnel stays up while no client is bound.
+        mService.onConnected();
+        assertNull(firstListener.pollState());
+        assertEquals(PsiphonTunnelService.State.CONNECTED, mService.getState());
+        assertEquals(0, mService.mFakeTunnel.mStopCount.get());
+
+        // A second client binds, receives the current state, and then subsequent changes.
+        binder = (PsiphonTunnelService.LocalBinder) mService.onBind(new Intent());
+        RecordingListener secondListener = new RecordingListener();
+        binder.getService().addListener(secondListener);
+        assertEquals(PsiphonTunnelService.State.CONNECTED, secondListener.awaitState());
+
+        // Starting again reuses the running tunnel.
+        binder.getService().startTunnel("{}", "");
+        assertNull(secondListener.pollState());
+        assertEquals(1, mService.mFakeTunnel.mStartCount.get());
+
+        binder.getService().stopTunnel();
+        assertEquals(PsiphonTunnelService.State.STOPPED, secondListener.awaitState());
+        assertNull(firstListener.pollState());
+    }
+
+    @Test
+    public void testDiagnosticMessagesCoalesced() {
+        RecordingListener listener = new RecordingListener();
+        mService.addListener(listener);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        // A burst is delivered in order, by a single main looper message.
+        for (int i = 0; i < 10; i++) {
+            mService.onDiagnosticMessage("message " + i);
+        }
+        shadowOf(Looper.getMainLooper()).runOneTask();
+        assertTrue(shadowOf(Looper.getMainLooper()).isIdle());
+        assertEquals(10, listener.mDiagnosticMessages.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + i, listener.mDiagnosticMessages.get(i));
+        }
+
+        // Messages beyond the pending limit are dropped and counted.
+        listener.mDiagnosticMessages.clear();
+        for (int i = 0; i < 1005; i++) {
+            mService.onDiagnosticMessage("message " + i);
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(1001, listener.mDiagnosticMessages.size());
+        assertEquals("5 diagnostic messages dropped", listener.mDiagnosticMessages.get(1000));
+    }
+}
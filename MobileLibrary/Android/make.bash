@@ -76,7 +76,7 @@ yes | cp -f PsiphonTunnel/libs/arm64-v8a/libtun2socks.so build-tmp/psi/jni/arm64
 yes | cp -f PsiphonTunnel/libs/x86/libtun2socks.so build-tmp/psi/jni/x86/libtun2socks.so
 yes | cp -f PsiphonTunnel/libs/x86_64/libtun2socks.so build-tmp/psi/jni/x86_64/libtun2socks.so
 
-javac -d build-tmp -bootclasspath $ANDROID_HOME/platforms/android-23/android.jar -source 1.8 -target 1.8 -classpath build-tmp/psi/classes.jar PsiphonTunnel/PsiphonTunnel.java
+javac -d build-tmp -bootclasspath $ANDROID_HOME/platforms/android-23/android.jar -source 1.8 -target 1.8 -classpath build-tmp/psi/classes.jar PsiphonTunnel/PsiphonTunnel.java PsiphonTunnel/PsiphonTunnelService.java PsiphonTunnel/PsiphonTunnelRemoteService.java PsiphonTunnel/PsiphonTunnelMetrics.java PsiphonTunnel/PsiphonTunnelHttpClient.java PsiphonTunnel/PsiphonTunnelSocksPool.java PsiphonTunnel/PsiphonTunnelDiagnostics.java PsiphonTunnel/PsiphonTunnelNoticeReader.java PsiphonTunnel/PsiphonTunnelMaintenanceJobService.java PsiphonTunnel/PsiphonTunnelStorageManager.java PsiphonTunnel/PsiphonTunnelNetworkRacer.java PsiphonTunnel/PsiphonTunnelNetworkProtocolHistory.java PsiphonTunnel/PsiphonTunnelEgressRegionProber.java PsiphonTunnel/PsiphonTunnelWatchdog.java
 if [ $? != 0 ]; then
   echo "..'javac' compiling PsiphonTunnel failed, exiting"
   exit $?
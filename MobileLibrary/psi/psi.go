@@ -28,9 +28,11 @@ import (
 	"context"
 	"encoding/json"
 	"fmt"
+	"io"
 	"os"
 	"strings"
 	"sync"
+	"sync/atomic"
 
 	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon"
 	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon/common"
@@ -62,15 +64,50 @@ func SetNoticeFiles(
 		rotatingSyncFrequency)
 }
 
+// SetRotatingNoticesWriterTypes specifies a comma separated list of
+// diagnostic notice types which are still sent to PsiphonProvider.Notice when
+// a rotating notices file is set with SetNoticeFiles.
+func SetRotatingNoticesWriterTypes(noticeTypes string) {
+	var types []string
+	if noticeTypes != "" {
+		types = strings.Split(noticeTypes, ",")
+	}
+	psiphon.SetRotatingNoticesWriterTypes(types)
+}
+
 func NoticeUserLog(message string) {
 	psiphon.NoticeUserLog(message)
 }
 
+var deviceBinderBypass int32
+var deviceBinderBypassCount int64
+
+// SetDeviceBinderBypass, when set before Start, replaces the provider's
+// BindToDevice with a no-op that doesn't call into the host application.
+// This is for hosts that exclude their own sockets from the VPN at the OS
+// level, for example with Android per-app VPN exclusion, so that each dial
+// no longer requires a provider callback. The provider is still used as the
+// DNS server getter.
+func SetDeviceBinderBypass(bypass bool) {
+	value := int32(0)
+	if bypass {
+		value = 1
+	}
+	atomic.StoreInt32(&deviceBinderBypass, value)
+}
+
+// GetDeviceBinderBypassCount returns the number of BindToDevice calls that
+// were handled without calling into the provider.
+func GetDeviceBinderBypassCount() int64 {
+	return atomic.LoadInt64(&deviceBinderBypassCount)
+}
+
 var controllerMutex sync.Mutex
 var controller *psiphon.Controller
 var controllerCtx context.Context
 var stopController context.CancelFunc
 var controllerWaitGroup *sync.WaitGroup
+var controllerSuspended bool
 
 func Start(
 	configJson,
@@ -112,7 +149,11 @@ func Start(
 	config.NetworkIDGetter = provider
 
 	if useDeviceBinder {
-		config.DeviceBinder = provider
+		if atomic.LoadInt32(&deviceBinderBypass) == 1 {
+			config.DeviceBinder = new(bypassDeviceBinder)
+		} else {
+			config.DeviceBinder = provider
+		}
 		config.DnsServerGetter = provider
 	}
 
@@ -127,6 +168,10 @@ func Start(
 		return fmt.Errorf("error committing configuration file: %s", err)
 	}
 
+	// Apply any SetSuspended call made before Start, so that establishment
+	// doesn't begin dialing before the host can suspend the Controller.
+	config.SetSuspended(controllerSuspended)
+
 	psiphon.SetNoticeWriter(psiphon.NewNoticeReceiver(
 		func(notice []byte) {
 			provider.Notice(string(notice))
@@ -184,6 +229,43 @@ func Stop() {
 	}
 }
 
+// GetDataStoreBackend returns the name of the data store backend, which is
+// selected at build time: "bolt" by default, or "badger" or "files" with the
+// BADGER_DB or FILES_DB build tags.
+func GetDataStoreBackend() string {
+	return psiphon.DataStoreBackend()
+}
+
+// MaintainDataStore checks the integrity of the data store in
+// dataStoreDirectory and, when compact is set, compacts it. The returned
+// JSON object reports the "Backend", the data store "SizeBefore" and
+// "SizeAfter" in bytes, and the "CheckMilliseconds" and
+// "CompactMilliseconds" taken by each operation.
+//
+// MaintainDataStore fails when a Controller is started, and Start waits
+// for MaintainDataStore to complete.
+func MaintainDataStore(dataStoreDirectory string, compact bool) (string, error) {
+
+	controllerMutex.Lock()
+	defer controllerMutex.Unlock()
+
+	if controller != nil {
+		return "", fmt.Errorf("error maintaining datastore: controller is started")
+	}
+
+	result, err := psiphon.MaintainDataStore(dataStoreDirectory, compact)
+	if err != nil {
+		return "", fmt.Errorf("error maintaining datastore: %s", err)
+	}
+
+	resultJSON, err := json.Marshal(result)
+	if err != nil {
+		return "", fmt.Errorf("error marshaling maintenance result: %s", err)
+	}
+
+	return string(resultJSON), nil
+}
+
 // ReconnectTunnel initiates a reconnect of the current tunnel, if one is
 // running.
 func ReconnectTunnel() {
@@ -196,6 +278,51 @@ func ReconnectTunnel() {
 	}
 }
 
+// SetSuspended suspends or resumes the running Controller. While suspended,
+// an established tunnel is kept with minimal background activity and
+// establishment is paused. The setting is retained and also applies to
+// Controllers started later, so call SetSuspended before Start to start
+// suspended.
+func SetSuspended(suspended bool) {
+
+	controllerMutex.Lock()
+	defer controllerMutex.Unlock()
+
+	controllerSuspended = suspended
+
+	if controller != nil {
+		controller.SetSuspended(suspended)
+	}
+}
+
+// SetEstablishmentThrottled throttles or restores the running Controller's
+// establishment pacing. SetEstablishmentThrottled has no effect if no
+// Controller is started.
+func SetEstablishmentThrottled(throttled bool) {
+
+	controllerMutex.Lock()
+	defer controllerMutex.Unlock()
+
+	if controller != nil {
+		controller.SetEstablishmentThrottled(throttled)
+	}
+}
+
+// SetEgressRegion overrides the EgressRegion field set in the config passed
+// to Start. When the region changes, the active tunnel is replaced with a
+// tunnel to a server in the new region, without restarting the Controller or
+// the local proxies. An empty region selects any region. SetEgressRegion has
+// no effect if no Controller is started.
+func SetEgressRegion(egressRegion string) {
+
+	controllerMutex.Lock()
+	defer controllerMutex.Unlock()
+
+	if controller != nil {
+		controller.SetEgressRegion(egressRegion)
+	}
+}
+
 // SetDynamicConfig overrides the sponsor ID and authorizations fields set in
 // the config passed to Start. SetDynamicConfig has no effect if no Controller
 // is started.
@@ -210,7 +337,7 @@ func SetDynamicConfig(newSponsorID, newAuthorizationsList string) {
 	if controller != nil {
 		controller.SetDynamicConfig(
 			newSponsorID,
-			strings.Split(newAuthorizationsList, " "))
+			strings.Fields(newAuthorizationsList))
 	}
 }
 
@@ -253,11 +380,87 @@ func ImportExchangePayload(payload string) bool {
 	return controller.ImportExchangePayload(payload)
 }
 
+// GetDNSCacheStats returns a JSON object with the udpgw DNS cache counters:
+// entries, hits, negativeHits, misses, prefetches, and evictions. Returns ""
+// when Psiphon is not running or the cache is not enabled.
+func GetDNSCacheStats() string {
+
+	controllerMutex.Lock()
+	defer controllerMutex.Unlock()
+
+	if controller == nil {
+		return ""
+	}
+
+	stats, ok := controller.GetDNSCacheStats()
+	if !ok {
+		return ""
+	}
+
+	statsJSON, err := json.Marshal(stats)
+	if err != nil {
+		return ""
+	}
+	return string(statsJSON)
+}
+
 // Encrypt and upload feedback.
 func SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer, uploadPath, uploadServerHeaders string) error {
 	return psiphon.SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer, uploadPath, uploadServerHeaders)
 }
 
+// FeedbackDiagnostics provides the diagnostics JSON for SendFeedbackStream in
+// chunks, so that the complete JSON isn't passed in a single string.
+type FeedbackDiagnostics interface {
+
+	// Rewind restarts the diagnostics from the beginning and returns their
+	// total length in bytes. Rewind is called before each upload attempt.
+	Rewind() (int64, error)
+
+	// ReadChunk returns the next chunk of the diagnostics, or an empty chunk
+	// when there are no more.
+	ReadChunk() ([]byte, error)
+}
+
+// Encrypt and upload feedback, reading the diagnostics JSON from diagnostics
+// as it's uploaded.
+func SendFeedbackStream(configJson string, diagnostics FeedbackDiagnostics, b64EncodedPublicKey, uploadServer, uploadPath, uploadServerHeaders string) error {
+	return psiphon.SendFeedbackStream(
+		configJson,
+		func() (io.Reader, int64, error) {
+			length, err := diagnostics.Rewind()
+			if err != nil {
+				return nil, 0, err
+			}
+			return &feedbackDiagnosticsReader{diagnostics: diagnostics}, length, nil
+		},
+		b64EncodedPublicKey,
+		uploadServer,
+		uploadPath,
+		uploadServerHeaders)
+}
+
+type feedbackDiagnosticsReader struct {
+	diagnostics FeedbackDiagnostics
+	chunk       []byte
+}
+
+func (reader *feedbackDiagnosticsReader) Read(p []byte) (int, error) {
+	for len(reader.chunk) == 0 {
+		chunk, err := reader.diagnostics.ReadChunk()
+		if err != nil {
+			return 0, err
+		}
+		if len(chunk) == 0 {
+			return 0, io.EOF
+		}
+		reader.chunk = chunk
+	}
+	n := copy(p, reader.chunk)
+	reader.chunk = reader.chunk[n:]
+	return n, nil
+}
+
 // Get build info from tunnel-core
 func GetBuildInfo() string {
 	buildInfo, err := json.Marshal(buildinfo.GetBuildInfo())
@@ -336,6 +539,14 @@ func storeServerEntries(
 	return nil
 }
 
+type bypassDeviceBinder struct {
+}
+
+func (b *bypassDeviceBinder) BindToDevice(fileDescriptor int) (string, error) {
+	atomic.AddInt64(&deviceBinderBypassCount, 1)
+	return "", nil
+}
+
 type mutexPsiphonProvider struct {
 	sync.Mutex
 	p PsiphonProvider
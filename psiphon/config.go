@@ -112,6 +112,27 @@ type Config struct {
 	// free port (a notice reporting the selected port is emitted).
 	LocalSocksProxyPort int
 
+	// LocalSocksProxyUnixSocketName, when set, specifies a Linux
+	// abstract-namespace Unix domain socket name on which the local SOCKS
+	// proxy also listens, in addition to its TCP port. The name is given
+	// without the leading "@". Local clients such as tun2socks may use this
+	// socket to avoid the overhead of a loopback TCP connection per flow.
+	// The socket is best effort: when the name can't be bound, for example
+	// because another app holds it, only the TCP port is used, and no
+	// ListeningSocksProxyUnixSocket notice is emitted.
+	LocalSocksProxyUnixSocketName string
+
+	// UdpgwDNSCacheSize, when > 0, enables a DNS response cache, holding up
+	// to this many responses, for DNS queries relayed through udpgw port
+	// forwards via the local SOCKS proxy, as used by tun2socks with
+	// transparent DNS. Cached responses are returned locally, without a
+	// tunnel round trip, until their TTL expires.
+	UdpgwDNSCacheSize int
+
+	// UdpgwServerAddress is the udpgw port forward destination for which the
+	// UdpgwDNSCacheSize cache applies. The default is "127.0.0.1:7300".
+	UdpgwServerAddress string
+
 	// LocalHttpProxyPort specifies a port number for the local HTTP proxy
 	// running at 127.0.0.1. For the default value, 0, the system selects a
 	// free port (a notice reporting the selected port is emitted).
@@ -580,6 +601,13 @@ type Config struct {
 	dynamicConfigMutex sync.Mutex
 	sponsorID          string
 	authorizations     []string
+	egressRegion       string
+
+	suspendedMutex sync.Mutex
+	resumeSignal   chan struct{}
+
+	establishmentThrottledMutex sync.Mutex
+	unthrottleSignal            chan struct{}
 
 	deviceBinder    DeviceBinder
 	networkIDGetter NetworkIDGetter
@@ -783,6 +811,7 @@ func (config *Config) Commit() error {
 	// Set defaults for dynamic config fields.
 
 	config.SetDynamicConfig(config.SponsorId, config.Authorizations)
+	config.SetEgressRegion(config.EgressRegion)
 
 	// Initialize config.deviceBinder and config.config.networkIDGetter. These
 	// wrap config.DeviceBinder and config.NetworkIDGetter/NetworkID with
@@ -893,6 +922,89 @@ func (config *Config) GetAuthorizations() []string {
 	return config.authorizations
 }
 
+// SetEgressRegion sets the current egress region, overriding the EgressRegion
+// config field. The new region applies to subsequent establishment; any
+// active tunnel is not affected. An empty region selects any region.
+func (config *Config) SetEgressRegion(egressRegion string) {
+	config.dynamicConfigMutex.Lock()
+	defer config.dynamicConfigMutex.Unlock()
+	config.egressRegion = egressRegion
+}
+
+// GetEgressRegion returns the current egress region.
+func (config *Config) GetEgressRegion() string {
+	config.dynamicConfigMutex.Lock()
+	defer config.dynamicConfigMutex.Unlock()
+	return config.egressRegion
+}
+
+// SetSuspended sets whether the client is suspended. While suspended,
+// establishment does not dial new candidates and periodic SSH keep alives
+// are not sent, so that an established tunnel is kept with minimal activity.
+func (config *Config) SetSuspended(suspended bool) {
+	config.suspendedMutex.Lock()
+	defer config.suspendedMutex.Unlock()
+	if suspended == (config.resumeSignal != nil) {
+		return
+	}
+	if suspended {
+		config.resumeSignal = make(chan struct{})
+	} else {
+		close(config.resumeSignal)
+		config.resumeSignal = nil
+	}
+}
+
+// IsSuspended indicates whether the client is suspended.
+func (config *Config) IsSuspended() bool {
+	return config.getResumeSignal() != nil
+}
+
+// getResumeSignal returns a channel that is closed when the client is
+// resumed, or nil when the client is not suspended.
+func (config *Config) getResumeSignal() <-chan struct{} {
+	config.suspendedMutex.Lock()
+	defer config.suspendedMutex.Unlock()
+	if config.resumeSignal == nil {
+		return nil
+	}
+	return config.resumeSignal
+}
+
+// SetEstablishmentThrottled sets whether establishment is throttled. While
+// throttled, for example when the device is idle or in battery saver mode,
+// establishment dials are spaced out and pauses between establishment rounds
+// are lengthened, reducing wakeups and CPU use.
+func (config *Config) SetEstablishmentThrottled(throttled bool) {
+	config.establishmentThrottledMutex.Lock()
+	defer config.establishmentThrottledMutex.Unlock()
+	if throttled == (config.unthrottleSignal != nil) {
+		return
+	}
+	if throttled {
+		config.unthrottleSignal = make(chan struct{})
+	} else {
+		close(config.unthrottleSignal)
+		config.unthrottleSignal = nil
+	}
+}
+
+// IsEstablishmentThrottled indicates whether establishment is throttled.
+func (config *Config) IsEstablishmentThrottled() bool {
+	return config.getUnthrottleSignal() != nil
+}
+
+// getUnthrottleSignal returns a channel that is closed when establishment is
+// no longer throttled, or nil when establishment is not throttled.
+func (config *Config) getUnthrottleSignal() <-chan struct{} {
+	config.establishmentThrottledMutex.Lock()
+	defer config.establishmentThrottledMutex.Unlock()
+	if config.unthrottleSignal == nil {
+		return nil
+	}
+	return config.unthrottleSignal
+}
+
 // UseUpstreamProxy indicates if an upstream proxy has been
 // configured.
 func (config *Config) UseUpstreamProxy() bool {
@@ -41,6 +41,11 @@ import (
 	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon/common/tun"
 )
 
+const (
+	THROTTLED_STAGGER_CONNECTION_WORKERS_PERIOD = 5 * time.Second
+	THROTTLED_ESTABLISH_TUNNEL_PAUSE_PERIOD     = 60 * time.Second
+)
+
 // Controller is a tunnel lifecycle coordinator. It manages lists of servers to
 // connect to; establishes and monitors tunnels; and runs local proxies which
 // route traffic through the tunnels.
@@ -79,6 +84,7 @@ type Controller struct {
 	packetTunnelClient                      *tun.Client
 	packetTunnelTransport                   *PacketTunnelTransport
 	staggerMutex                            sync.Mutex
+	udpgwDNSCache                           *DNSCache
 }
 
 // NewController initializes a new controller.
@@ -131,6 +137,14 @@ func NewController(config *Config) (controller *Controller, err error) {
 
 	controller.splitTunnelClassifier = NewSplitTunnelClassifier(config, controller)
 
+	if config.UdpgwDNSCacheSize > 0 {
+
+		// The DNS cache lifetime is the lifetime of the Controller, so cached
+		// responses remain available across tunnel reestablishments.
+
+		controller.udpgwDNSCache = NewDNSCache(config.UdpgwDNSCacheSize)
+	}
+
 	if config.PacketTunnelTunFileDescriptor > 0 {
 
 		// Run a packet tunnel client. The lifetime of the tun.Client is the
@@ -195,7 +209,8 @@ func (controller *Controller) Run(ctx context.Context) {
 	}
 
 	if !controller.config.DisableLocalSocksProxy {
-		socksProxy, err := NewSocksProxy(controller.config, controller, listenIP)
+		socksProxy, err := NewSocksProxy(
+			controller.config, controller, listenIP, controller.udpgwDNSCache)
 		if err != nil {
 			NoticeAlert("error initializing local SOCKS proxy: %s", err)
 			return
@@ -286,6 +301,39 @@ func (controller *Controller) SetDynamicConfig(sponsorID string, authorizations
 	controller.config.SetDynamicConfig(sponsorID, authorizations)
 }
 
+// SetSuspended suspends or resumes the Controller. While suspended, any
+// established tunnel is kept but periodic SSH keep alives are skipped and
+// establishment, if in progress, is paused. See Config.SetSuspended.
+func (controller *Controller) SetSuspended(suspended bool) {
+	controller.config.SetSuspended(suspended)
+	if suspended {
+		NoticeInfo("suspended")
+	} else {
+		NoticeInfo("resumed")
+	}
+}
+
+// SetEstablishmentThrottled throttles or restores establishment pacing. The
+// change applies to in-progress establishment without a restart. See
+// Config.SetEstablishmentThrottled.
+func (controller *Controller) SetEstablishmentThrottled(throttled bool) {
+	controller.config.SetEstablishmentThrottled(throttled)
+	NoticeInfo("establishment throttled: %v", throttled)
+}
+
+// SetEgressRegion changes the egress region without restarting the
+// Controller. When the region differs from the current region, the active
+// tunnel, if any, is terminated and establishment restarts with candidates
+// from the new region. The local proxies remain listening throughout.
+func (controller *Controller) SetEgressRegion(egressRegion string) {
+	if controller.config.GetEgressRegion() == egressRegion {
+		return
+	}
+	controller.config.SetEgressRegion(egressRegion)
+	NoticeInfo("egress region: %s", egressRegion)
+	controller.TerminateNextActiveTunnel()
+}
+
 // TerminateNextActiveTunnel terminates the active tunnel, which will initiate
 // establishment of a new tunnel.
 func (controller *Controller) TerminateNextActiveTunnel() {
@@ -296,6 +344,15 @@ func (controller *Controller) TerminateNextActiveTunnel() {
 	}
 }
 
+// GetDNSCacheStats returns the udpgw DNS cache counters. ok is false when the
+// cache is not enabled.
+func (controller *Controller) GetDNSCacheStats() (stats DNSCacheStats, ok bool) {
+	if controller.udpgwDNSCache == nil {
+		return DNSCacheStats{}, false
+	}
+	return controller.udpgwDNSCache.GetStats(), true
+}
+
 // ExportExchangePayload creates a payload for client-to-client server
 // connection info exchange. See the comment for psiphon.ExportExchangePayload
 // for more details.
@@ -736,6 +793,11 @@ loop:
 				connectedTunnel.dialParams.TunnelProtocol,
 				connectedTunnel.dialParams.ServerEntry.SupportsSSHAPIRequests())
 
+			NoticeActiveTunnelProperties(
+				connectedTunnel.dialParams.TunnelProtocol,
+				connectedTunnel.dialParams.ServerEntry.SupportsSSHAPIRequests(),
+				connectedTunnel.dialParams.ServerEntry.Region)
+
 			if isFirstTunnel {
 
 				// The split tunnel classifier is started once the first tunnel is
@@ -1663,13 +1725,15 @@ loop:
 		// Counts may change during establishment due to remote server
 		// list fetches, etc.
 
+		egressRegion := controller.config.GetEgressRegion()
+
 		initialCount, count := CountServerEntriesWithConstraints(
 			controller.config.UseUpstreamProxy(),
-			controller.config.EgressRegion,
+			egressRegion,
 			controller.protocolSelectionConstraints)
 
 		NoticeCandidateServers(
-			controller.config.EgressRegion,
+			egressRegion,
 			controller.protocolSelectionConstraints,
 			initialCount,
 			count)
@@ -1685,10 +1749,18 @@ loop:
 
 		roundStartTime := time.Now()
 		var roundNetworkWaitDuration time.Duration
+		egressRegionChanged := false
 
 		// Send each iterator server entry to the establish workers
 		for {
 
+			// When the egress region is changed, end this round and start
+			// over, without pausing, with candidates from the new region.
+			if controller.config.GetEgressRegion() != egressRegion {
+				egressRegionChanged = true
+				break
+			}
+
 			networkWaitStartTime := time.Now()
 			if !WaitForNetworkConnectivity(
 				controller.establishCtx,
@@ -1786,15 +1858,29 @@ loop:
 		// be more rounds if required).
 
 		p := controller.config.GetClientParameters().Get()
+		pausePeriod := p.Duration(parameters.EstablishTunnelPausePeriod)
 		timeout := prng.JitterDuration(
-			p.Duration(parameters.EstablishTunnelPausePeriod),
+			pausePeriod,
 			p.Float(parameters.EstablishTunnelPausePeriodJitter))
 		p.Close()
 
+		// When throttled, pause for longer, but resume iterating as soon as
+		// the throttle is lifted.
+		unthrottleSignal := controller.config.getUnthrottleSignal()
+		if unthrottleSignal != nil && timeout < THROTTLED_ESTABLISH_TUNNEL_PAUSE_PERIOD {
+			timeout = THROTTLED_ESTABLISH_TUNNEL_PAUSE_PERIOD
+		}
+
+		if egressRegionChanged {
+			timeout = 0
+		}
+
 		timer := time.NewTimer(timeout)
 		select {
 		case <-timer.C:
 			// Retry iterating
+		case <-unthrottleSignal:
+			// Retry iterating
 		case <-controller.establishCtx.Done():
 			timer.Stop()
 			break loop
@@ -1817,11 +1903,28 @@ loop:
 			break loop
 		}
 
+		// While suspended, wait to dial until resumed or stopped.
+		resumeSignal := controller.config.getResumeSignal()
+		if resumeSignal != nil {
+			select {
+			case <-resumeSignal:
+			case <-controller.establishCtx.Done():
+				break loop
+			}
+		}
+
 		// There may already be a tunnel to this candidate. If so, skip it.
 		if controller.isActiveTunnelServerEntry(candidateServerEntry.serverEntry) {
 			continue
 		}
 
+		// Skip candidates queued before a change of egress region.
+		egressRegion := controller.config.GetEgressRegion()
+		if egressRegion != "" &&
+			candidateServerEntry.serverEntry.Region != egressRegion {
+			continue
+		}
+
 		// Select the tunnel protocol. The selection will be made at random
 		// from protocols supported by the server entry, optionally limited by
 		// LimitTunnelProtocols.
@@ -1949,11 +2052,20 @@ loop:
 		staggerJitter := p.Float(parameters.StaggerConnectionWorkersJitter)
 		p.Close()
 
+		// When throttled, dials are staggered by at least
+		// THROTTLED_STAGGER_CONNECTION_WORKERS_PERIOD, which limits the number
+		// of concurrent candidates. Lifting the throttle ends the wait.
+		unthrottleSignal := controller.config.getUnthrottleSignal()
+		if unthrottleSignal != nil && staggerPeriod < THROTTLED_STAGGER_CONNECTION_WORKERS_PERIOD {
+			staggerPeriod = THROTTLED_STAGGER_CONNECTION_WORKERS_PERIOD
+		}
+
 		if establishConnectTunnelCount > 0 && staggerPeriod != 0 {
 			controller.staggerMutex.Lock()
 			timer := time.NewTimer(prng.JitterDuration(staggerPeriod, staggerJitter))
 			select {
 			case <-timer.C:
+			case <-unthrottleSignal:
 			case <-controller.establishCtx.Done():
 			}
 			timer.Stop()
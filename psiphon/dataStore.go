@@ -22,6 +22,8 @@ package psiphon
 import (
 	"bytes"
 	"encoding/json"
+	"os"
+	"path/filepath"
 	"sync"
 	"time"
 
@@ -102,6 +104,93 @@ func CloseDataStore() {
 	activeDatastoreDB = nil
 }
 
+// DataStoreBackend returns the name of the data store backend, which is
+// selected at build time: "bolt" by default, or "badger" or "files" with the
+// BADGER_DB or FILES_DB build tags.
+func DataStoreBackend() string {
+	return datastoreBackend
+}
+
+// DataStoreMaintenanceResult reports the data store size, in bytes, before
+// and after MaintainDataStore, and the time taken by each operation.
+type DataStoreMaintenanceResult struct {
+	Backend             string
+	SizeBefore          int64
+	SizeAfter           int64
+	CheckMilliseconds   int64
+	CompactMilliseconds int64
+}
+
+// MaintainDataStore checks the integrity of the data store in
+// rootDataDirectory, resetting a corrupt data store just as OpenDataStore
+// does, and, when compact is set, compacts the data store to reclaim unused
+// space.
+//
+// This I/O is otherwise incurred by OpenDataStore, or never, so
+// MaintainDataStore is intended to be run when no tunnel is starting, such as
+// while the device is idle. MaintainDataStore fails when the data store is
+// open, and blocks OpenDataStore until it's done.
+func MaintainDataStore(
+	rootDataDirectory string, compact bool) (*DataStoreMaintenanceResult, error) {
+
+	datastoreMutex.Lock()
+	defer datastoreMutex.Unlock()
+
+	if activeDatastoreDB != nil {
+		return nil, errors.TraceNew("db already open")
+	}
+
+	result := &DataStoreMaintenanceResult{
+		Backend:    datastoreBackend,
+		SizeBefore: datastoreSize(rootDataDirectory),
+	}
+
+	// datastoreOpenDB runs the backend's consistency checks and recovery.
+
+	startTime := time.Now()
+
+	db, err := datastoreOpenDB(rootDataDirectory)
+	if err != nil {
+		return nil, errors.Trace(err)
+	}
+	err = db.close()
+	if err != nil {
+		return nil, errors.Trace(err)
+	}
+
+	result.CheckMilliseconds = int64(time.Since(startTime) / time.Millisecond)
+
+	if compact {
+
+		startTime = time.Now()
+
+		err = datastoreCompactDB(rootDataDirectory)
+		if err != nil {
+			return nil, errors.Trace(err)
+		}
+
+		result.CompactMilliseconds = int64(time.Since(startTime) / time.Millisecond)
+	}
+
+	result.SizeAfter = datastoreSize(rootDataDirectory)
+
+	return result, nil
+}
+
+// datastoreSize returns the total size of the data store file or directory.
+func datastoreSize(rootDataDirectory string) int64 {
+	var size int64
+	_ = filepath.Walk(
+		filepath.Join(rootDataDirectory, datastoreFilename),
+		func(_ string, info os.FileInfo, err error) error {
+			if err == nil && !info.IsDir() {
+				size += info.Size()
+			}
+			return nil
+		})
+	return size
+}
+
 func datastoreView(fn func(tx *datastoreTx) error) error {
 
 	datastoreMutex.RLock()
@@ -352,7 +441,7 @@ func makeServerEntryFilterValue(config *Config) ([]byte, error) {
 	// If the tunnel protocol filter changes, any existing affinity server
 	// either passes the new filter, or it will be skipped anyway.
 
-	return []byte(config.EgressRegion), nil
+	return []byte(config.GetEgressRegion()), nil
 }
 
 func hasServerEntryFilterChanged(config *Config) (bool, error) {
@@ -394,6 +483,7 @@ type ServerEntryIterator struct {
 	isTargetServerEntryIterator  bool
 	hasNextTargetServerEntry     bool
 	targetServerEntry            *protocol.ServerEntry
+	egressRegion                 string
 }
 
 // NewServerEntryIterator creates a new ServerEntryIterator.
@@ -478,7 +568,8 @@ func newTargetServerEntryIterator(config *Config, isTactics bool) (bool, *Server
 
 	} else {
 
-		if config.EgressRegion != "" && serverEntry.Region != config.EgressRegion {
+		egressRegion := config.GetEgressRegion()
+		if egressRegion != "" && serverEntry.Region != egressRegion {
 			return false, nil, errors.TraceNew("TargetServerEntry does not support EgressRegion")
 		}
 
@@ -519,6 +610,10 @@ func (iterator *ServerEntryIterator) reset(isInitialRound bool) error {
 		return nil
 	}
 
+	// The egress region may be changed dynamically. Each round filters on the
+	// region in effect when the round starts.
+	iterator.egressRegion = iterator.config.GetEgressRegion()
+
 	// BoltDB implementation note:
 	// We don't keep a transaction open for the duration of the iterator
 	// because this would expose the following semantics to consumer code:
@@ -794,8 +889,8 @@ func (iterator *ServerEntryIterator) Next() (*protocol.ServerEntry, error) {
 
 		} else {
 
-			if iterator.config.EgressRegion == "" ||
-				serverEntry.Region == iterator.config.EgressRegion {
+			if iterator.egressRegion == "" ||
+				serverEntry.Region == iterator.egressRegion {
 				break
 			}
 		}
@@ -0,0 +1,123 @@
+// +build !BADGER_DB,!FILES_DB
+
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package psiphon
+
+import (
+	"fmt"
+	"io/ioutil"
+	"os"
+	"strings"
+	"testing"
+)
+
+func TestBoltMaintenance(t *testing.T) {
+
+	testDataDirName, err := ioutil.TempDir("", "psiphon-bolt-maintenance-test")
+	if err != nil {
+		t.Fatalf("TempDir failed: %s", err)
+	}
+	defer os.RemoveAll(testDataDirName)
+
+	clientConfigJSON := fmt.Sprintf(`
+    {
+        "DataStoreDirectory" : "%s",
+        "ClientPlatform" : "",
+        "ClientVersion" : "0",
+        "SponsorId" : "0",
+        "PropagationChannelId" : "0"
+    }`, testDataDirName)
+
+	clientConfig, err := LoadConfig([]byte(clientConfigJSON))
+	if err != nil {
+		t.Fatalf("LoadConfig failed: %s", err)
+	}
+	err = clientConfig.Commit()
+	if err != nil {
+		t.Fatalf("Commit failed: %s", err)
+	}
+
+	err = OpenDataStore(clientConfig)
+	if err != nil {
+		t.Fatalf("OpenDataStore failed: %s", err)
+	}
+
+	_, err = MaintainDataStore(testDataDirName, true)
+	if err == nil {
+		CloseDataStore()
+		t.Fatalf("MaintainDataStore unexpectedly succeeded with open data store")
+	}
+
+	// Grow the data store and then overwrite most values, leaving free pages
+	// which only compaction returns to the filesystem.
+
+	keyCount := 1000
+	largeValue := strings.Repeat("x", 4096)
+
+	for i := 0; i < keyCount; i++ {
+		err = SetKeyValue(fmt.Sprintf("key-%d", i), largeValue)
+		if err != nil {
+			CloseDataStore()
+			t.Fatalf("SetKeyValue failed: %s", err)
+		}
+	}
+
+	for i := 1; i < keyCount; i++ {
+		err = SetKeyValue(fmt.Sprintf("key-%d", i), "")
+		if err != nil {
+			CloseDataStore()
+			t.Fatalf("SetKeyValue failed: %s", err)
+		}
+	}
+
+	CloseDataStore()
+
+	result, err := MaintainDataStore(testDataDirName, true)
+	if err != nil {
+		t.Fatalf("MaintainDataStore failed: %s", err)
+	}
+
+	if result.Backend != "bolt" {
+		t.Fatalf("unexpected backend: %s", result.Backend)
+	}
+
+	if result.SizeBefore <= 0 || result.SizeAfter >= result.SizeBefore {
+		t.Fatalf("unexpected sizes: %d, %d", result.SizeBefore, result.SizeAfter)
+	}
+
+	t.Logf("maintenance result: %+v", result)
+
+	err = OpenDataStore(clientConfig)
+	if err != nil {
+		t.Fatalf("OpenDataStore failed: %s", err)
+	}
+	defer CloseDataStore()
+
+	value, err := GetKeyValue("key-0")
+	if err != nil || value != largeValue {
+		t.Fatalf("unexpected key-0 value after compaction: %s", err)
+	}
+
+	value, err = GetKeyValue(fmt.Sprintf("key-%d", keyCount-1))
+	if err != nil || value != "" {
+		t.Fatalf("unexpected key-%d value after compaction: %s", keyCount-1, err)
+	}
+}
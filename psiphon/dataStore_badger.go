@@ -32,6 +32,8 @@ import (
 
 const (
 	DATA_STORE_DIRECTORY = "psiphon.badgerdb"
+	datastoreBackend     = "badger"
+	datastoreFilename    = DATA_STORE_DIRECTORY
 )
 
 type datastoreDB struct {
@@ -89,6 +91,24 @@ func datastoreOpenDB(rootDataDirectory string) (*datastoreDB, error) {
 	return &datastoreDB{badgerDB: db}, nil
 }
 
+// datastoreCompactDB runs value log garbage collection on the closed
+// datastore.
+func datastoreCompactDB(rootDataDirectory string) error {
+
+	// datastoreOpenDB runs the value log garbage collection.
+	db, err := datastoreOpenDB(rootDataDirectory)
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	err = db.close()
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	return nil
+}
+
 func (db *datastoreDB) close() error {
 	return db.badgerDB.Close()
 }
@@ -33,6 +33,11 @@ import (
 	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon/common/errors"
 )
 
+const (
+	datastoreBackend  = "bolt"
+	datastoreFilename = "psiphon.boltdb"
+)
+
 type datastoreDB struct {
 	boltDB   *bolt.DB
 	isFailed int32
@@ -96,7 +101,7 @@ func tryDatastoreOpenDB(rootDataDirectory string, reset bool) (retdb *datastoreD
 	}()
 	// End recovery preamble
 
-	filename := filepath.Join(rootDataDirectory, "psiphon.boltdb")
+	filename := filepath.Join(rootDataDirectory, datastoreFilename)
 
 	if reset {
 		NoticeAlert("tryDatastoreOpenDB: reset")
@@ -171,6 +176,91 @@ func tryDatastoreOpenDB(rootDataDirectory string, reset bool) (retdb *datastoreD
 	return &datastoreDB{boltDB: newDB}, nil
 }
 
+// datastoreCompactDB rewrites the closed datastore, copying each bucket into a
+// new file, and replaces the original file with the copy. Bolt reuses freed
+// pages but never shrinks its file, so a datastore which was once large, for
+// example before server entries were pruned, stays large until compacted.
+//
+// The original file is opened and locked as usual, so datastoreCompactDB
+// fails if the datastore is in use by another process.
+func datastoreCompactDB(rootDataDirectory string) (reterr error) {
+
+	// Begin recovery preamble
+	panicOnFault := debug.SetPanicOnFault(true)
+	defer debug.SetPanicOnFault(panicOnFault)
+
+	defer func() {
+		if r := recover(); r != nil {
+			reterr = errors.Tracef("panic: %v", r)
+		}
+	}()
+	// End recovery preamble
+
+	filename := filepath.Join(rootDataDirectory, datastoreFilename)
+	compactFilename := filename + ".compact"
+
+	os.Remove(compactFilename)
+
+	srcDB, err := bolt.Open(filename, 0600, &bolt.Options{Timeout: 1 * time.Second})
+	if err != nil {
+		return errors.Trace(err)
+	}
+	defer srcDB.Close()
+
+	dstDB, err := bolt.Open(compactFilename, 0600, &bolt.Options{Timeout: 1 * time.Second})
+	if err != nil {
+		return errors.Trace(err)
+	}
+	defer func() {
+		if dstDB != nil {
+			dstDB.Close()
+			os.Remove(compactFilename)
+		}
+	}()
+
+	// Each bucket is copied in its own update transaction, which bounds the
+	// memory used for dirty pages to the size of the largest bucket.
+
+	err = srcDB.View(func(srcTx *bolt.Tx) error {
+		return srcTx.ForEach(func(name []byte, srcBucket *bolt.Bucket) error {
+			return dstDB.Update(func(dstTx *bolt.Tx) error {
+				dstBucket, err := dstTx.CreateBucket(name)
+				if err != nil {
+					return err
+				}
+				return srcBucket.ForEach(func(key, value []byte) error {
+					if value == nil && srcBucket.Bucket(key) != nil {
+						return errors.Tracef("unexpected nested bucket in %s", name)
+					}
+					return dstBucket.Put(key, value)
+				})
+			})
+		})
+	})
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	err = dstDB.Close()
+	dstDB = nil
+	if err != nil {
+		os.Remove(compactFilename)
+		return errors.Trace(err)
+	}
+
+	// Renaming while srcDB is still open and locked ensures no other process
+	// opens the original file in the meantime. The rename is atomic, so a
+	// failure leaves either the original or the compacted datastore in place.
+
+	err = os.Rename(compactFilename, filename)
+	if err != nil {
+		os.Remove(compactFilename)
+		return errors.Trace(err)
+	}
+
+	return nil
+}
+
 var errDatastoreFailed = std_errors.New("datastore has failed")
 
 func (db *datastoreDB) isDatastoreFailed() bool {
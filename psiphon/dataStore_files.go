@@ -34,6 +34,11 @@ import (
 	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon/common/errors"
 )
 
+const (
+	datastoreBackend  = "files"
+	datastoreFilename = "psiphon.filesdb"
+)
+
 // datastoreDB is a simple filesystem-backed key/value store that implements
 // the datastore interface.
 //
@@ -77,7 +82,7 @@ type datastoreCursor struct {
 
 func datastoreOpenDB(rootDataDirectory string) (*datastoreDB, error) {
 
-	dataDirectory := filepath.Join(rootDataDirectory, "psiphon.filesdb")
+	dataDirectory := filepath.Join(rootDataDirectory, datastoreFilename)
 	err := os.MkdirAll(dataDirectory, 0700)
 	if err != nil {
 		return nil, errors.Trace(err)
@@ -93,6 +98,12 @@ func datastoreOpenDB(rootDataDirectory string) (*datastoreDB, error) {
 	}, nil
 }
 
+// datastoreCompactDB is a no-op, as each key/value pair is stored in its own
+// file and the space used by deleted values is freed by the filesystem.
+func datastoreCompactDB(_ string) error {
+	return nil
+}
+
 func (db *datastoreDB) getBuffer() *bytes.Buffer {
 	return db.bufferPool.Get().(*bytes.Buffer)
 }
@@ -0,0 +1,570 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package psiphon
+
+import (
+	"bytes"
+	"container/list"
+	"encoding/binary"
+	"io"
+	"net"
+	"sync"
+	"time"
+
+	"github.com/Psiphon-Labs/psiphon-tunnel-core/psiphon/common/errors"
+)
+
+const (
+	DNS_CACHE_MAX_TTL          = 1 * time.Hour
+	DNS_CACHE_MAX_NEGATIVE_TTL = 5 * time.Minute
+	DNS_CACHE_PREFETCH_HITS    = 3
+
+	// DNS_CACHE_PREFETCH_THRESHOLD is the fraction of the original TTL that
+	// remains when a popular entry is refreshed ahead of expiry.
+	DNS_CACHE_PREFETCH_THRESHOLD = 0.1
+)
+
+// DNSCache is a bounded, TTL-respecting cache of DNS responses, keyed by
+// question, with LRU eviction. Negative responses (NXDOMAIN and NODATA) are
+// cached for the SOA TTL, as per RFC 2308. DNSCache is safe for concurrent
+// use.
+type DNSCache struct {
+	mutex        sync.Mutex
+	maxEntries   int
+	entries      map[string]*list.Element
+	lru          *list.List
+	hits         int64
+	negativeHits int64
+	misses       int64
+	prefetches   int64
+	evictions    int64
+}
+
+type dnsCacheEntry struct {
+	key         string
+	response    []byte
+	ttlOffsets  []int
+	ttls        []uint32
+	stored      time.Time
+	ttl         time.Duration
+	negative    bool
+	hits        int
+	prefetching bool
+}
+
+// DNSCacheStats is a snapshot of DNSCache counters.
+type DNSCacheStats struct {
+	Entries      int   `json:"entries"`
+	Hits         int64 `json:"hits"`
+	NegativeHits int64 `json:"negativeHits"`
+	Misses       int64 `json:"misses"`
+	Prefetches   int64 `json:"prefetches"`
+	Evictions    int64 `json:"evictions"`
+}
+
+// NewDNSCache creates a DNSCache holding at most maxEntries responses.
+func NewDNSCache(maxEntries int) *DNSCache {
+	return &DNSCache{
+		maxEntries: maxEntries,
+		entries:    make(map[string]*list.Element),
+		lru:        list.New(),
+	}
+}
+
+// GetStats returns a snapshot of the cache counters.
+func (cache *DNSCache) GetStats() DNSCacheStats {
+	cache.mutex.Lock()
+	defer cache.mutex.Unlock()
+
+	return DNSCacheStats{
+		Entries:      cache.lru.Len(),
+		Hits:         cache.hits,
+		NegativeHits: cache.negativeHits,
+		Misses:       cache.misses,
+		Prefetches:   cache.prefetches,
+		Evictions:    cache.evictions,
+	}
+}
+
+// lookup returns a cached response for the query, with the query's ID and
+// TTLs reduced by the time spent in the cache, or nil on a miss. When
+// prefetch is true, the entry is popular and near expiry, and the caller
+// should also send the query upstream to refresh the entry.
+func (cache *DNSCache) lookup(
+	key string, queryID uint16, now time.Time) (response []byte, prefetch bool) {
+
+	cache.mutex.Lock()
+	defer cache.mutex.Unlock()
+
+	element, ok := cache.entries[key]
+	if !ok {
+		cache.misses += 1
+		return nil, false
+	}
+	entry := element.Value.(*dnsCacheEntry)
+
+	age := now.Sub(entry.stored)
+	if age < 0 || age >= entry.ttl {
+		cache.lru.Remove(element)
+		delete(cache.entries, key)
+		cache.misses += 1
+		return nil, false
+	}
+
+	cache.lru.MoveToFront(element)
+	entry.hits += 1
+	cache.hits += 1
+	if entry.negative {
+		cache.negativeHits += 1
+	}
+
+	response = make([]byte, len(entry.response))
+	copy(response, entry.response)
+	binary.BigEndian.PutUint16(response[0:2], queryID)
+	ageSeconds := uint32(age / time.Second)
+	for i, offset := range entry.ttlOffsets {
+		ttl := uint32(0)
+		if entry.ttls[i] > ageSeconds {
+			ttl = entry.ttls[i] - ageSeconds
+		}
+		binary.BigEndian.PutUint32(response[offset:offset+4], ttl)
+	}
+
+	remaining := entry.ttl - age
+	if !entry.prefetching &&
+		entry.hits >= DNS_CACHE_PREFETCH_HITS &&
+		float64(remaining) < float64(entry.ttl)*DNS_CACHE_PREFETCH_THRESHOLD {
+
+		entry.prefetching = true
+		cache.prefetches += 1
+		prefetch = true
+	}
+
+	return response, prefetch
+}
+
+// store adds a DNS response to the cache. Responses which are truncated,
+// report an error other than NXDOMAIN, or have no usable TTL, are ignored.
+func (cache *DNSCache) store(response []byte, now time.Time) {
+
+	key, ok := dnsQuestionKey(response, true)
+	if !ok {
+		return
+	}
+
+	flags := binary.BigEndian.Uint16(response[2:4])
+	truncated := flags&0x0200 != 0
+	rcode := flags & 0x000F
+	if truncated || (rcode != dnsRcodeNoError && rcode != dnsRcodeNameError) {
+		return
+	}
+
+	answerCount := int(binary.BigEndian.Uint16(response[6:8]))
+	authorityCount := int(binary.BigEndian.Uint16(response[8:10]))
+	additionalCount := int(binary.BigEndian.Uint16(response[10:12]))
+
+	offset, err := dnsSkipQuestion(response)
+	if err != nil {
+		return
+	}
+
+	negative := rcode == dnsRcodeNameError || answerCount == 0
+
+	var ttlOffsets []int
+	var ttls []uint32
+	minTTL := uint32(0)
+	haveTTL := false
+
+	for i := 0; i < answerCount+authorityCount+additionalCount; i++ {
+
+		offset, err = dnsSkipName(response, offset)
+		if err != nil || offset+10 > len(response) {
+			return
+		}
+		recordType := binary.BigEndian.Uint16(response[offset : offset+2])
+		ttl := binary.BigEndian.Uint32(response[offset+4 : offset+8])
+		dataLength := int(binary.BigEndian.Uint16(response[offset+8 : offset+10]))
+
+		// The TTL field of an EDNS OPT record is not a TTL.
+		if recordType != dnsTypeOPT {
+			ttlOffsets = append(ttlOffsets, offset+4)
+			ttls = append(ttls, ttl)
+
+			// Positive responses expire with their shortest answer; negative
+			// responses with the SOA in the authority section.
+			isAnswer := i < answerCount
+			isAuthoritySOA := i >= answerCount &&
+				i < answerCount+authorityCount &&
+				recordType == dnsTypeSOA
+			if (!negative && isAnswer) || (negative && isAuthoritySOA) {
+				if !haveTTL || ttl < minTTL {
+					minTTL = ttl
+					haveTTL = true
+				}
+			}
+		}
+
+		offset += 10 + dataLength
+		if offset > len(response) {
+			return
+		}
+	}
+
+	if !haveTTL || minTTL == 0 {
+		return
+	}
+
+	ttl := time.Duration(minTTL) * time.Second
+	maxTTL := DNS_CACHE_MAX_TTL
+	if negative {
+		maxTTL = DNS_CACHE_MAX_NEGATIVE_TTL
+	}
+	if ttl > maxTTL {
+		ttl = maxTTL
+	}
+
+	entry := &dnsCacheEntry{
+		key:        key,
+		response:   append([]byte(nil), response...),
+		ttlOffsets: ttlOffsets,
+		ttls:       ttls,
+		stored:     now,
+		ttl:        ttl,
+		negative:   negative,
+	}
+
+	cache.mutex.Lock()
+	defer cache.mutex.Unlock()
+
+	if element, ok := cache.entries[key]; ok {
+		// A refreshed entry keeps its popularity, so it remains eligible for
+		// prefetch.
+		entry.hits = element.Value.(*dnsCacheEntry).hits
+		element.Value = entry
+		cache.lru.MoveToFront(element)
+		return
+	}
+
+	cache.entries[key] = cache.lru.PushFront(entry)
+
+	for cache.lru.Len() > cache.maxEntries {
+		oldest := cache.lru.Back()
+		cache.lru.Remove(oldest)
+		delete(cache.entries, oldest.Value.(*dnsCacheEntry).key)
+		cache.evictions += 1
+	}
+}
+
+const (
+	dnsHeaderSize     = 12
+	dnsTypeSOA        = 6
+	dnsTypeOPT        = 41
+	dnsRcodeNoError   = 0
+	dnsRcodeNameError = 3
+)
+
+// dnsQuestionKey returns a cache key for a DNS message with a single
+// standard query question: the question section, with the name lowercased.
+func dnsQuestionKey(message []byte, isResponse bool) (string, bool) {
+
+	if len(message) < dnsHeaderSize {
+		return "", false
+	}
+	flags := binary.BigEndian.Uint16(message[2:4])
+	opcode := (flags >> 11) & 0x000F
+	if (flags&0x8000 != 0) != isResponse || opcode != 0 {
+		return "", false
+	}
+	if binary.BigEndian.Uint16(message[4:6]) != 1 {
+		return "", false
+	}
+
+	end, err := dnsSkipQuestion(message)
+	if err != nil {
+		return "", false
+	}
+
+	// Only the name is case-insensitive; QTYPE and QCLASS are binary.
+	return string(bytes.ToLower(message[dnsHeaderSize:end-4])) +
+		string(message[end-4:end]), true
+}
+
+func dnsSkipQuestion(message []byte) (int, error) {
+	offset, err := dnsSkipName(message, dnsHeaderSize)
+	if err != nil {
+		return 0, errors.Trace(err)
+	}
+	// QTYPE and QCLASS
+	offset += 4
+	if offset > len(message) {
+		return 0, errors.TraceNew("invalid DNS question")
+	}
+	return offset, nil
+}
+
+func dnsSkipName(message []byte, offset int) (int, error) {
+	for {
+		if offset >= len(message) {
+			return 0, errors.TraceNew("invalid DNS name")
+		}
+		length := int(message[offset])
+		if length == 0 {
+			return offset + 1, nil
+		}
+		if length&0xC0 == 0xC0 {
+			// A compression pointer ends the name.
+			if offset+2 > len(message) {
+				return 0, errors.TraceNew("invalid DNS name")
+			}
+			return offset + 2, nil
+		}
+		if length&0xC0 != 0 {
+			return 0, errors.TraceNew("invalid DNS label")
+		}
+		offset += 1 + length
+	}
+}
+
+// udpgw protocol framing, as implemented in psiphon/server/udp.go.
+const (
+	udpgwProtocolFlagKeepalive  = 1 << 0
+	udpgwProtocolFlagDNS        = 1 << 2
+	udpgwProtocolFlagIPv6       = 1 << 3
+	udpgwProtocolMaxMessageSize = 23 + 32768
+
+	udpgwDNSCacheMaxPendingPrefetches = 1024
+)
+
+// udpgwDNSCacheConn wraps the local side of a udpgw port forward, the
+// connection from tun2socks, and answers DNS queries from a DNSCache where
+// possible, instead of relaying them through the tunnel. DNS responses
+// relayed back from the tunnel are added to the cache.
+//
+// udpgwDNSCacheConn is used with LocalProxyRelay: Read is called by the
+// upstream relay and returns only the udpgw messages to be sent through the
+// tunnel; Write is called by the downstream relay.
+type udpgwDNSCacheConn struct {
+	net.Conn
+	cache         *DNSCache
+	writeMutex    sync.Mutex
+	readMessage   []byte
+	readPending   []byte
+	writeBuffer   []byte
+	pendingMutex  sync.Mutex
+	dnsConnIDs    map[uint16]int
+	prefetchConns map[uint32]bool
+}
+
+func newUdpgwDNSCacheConn(conn net.Conn, cache *DNSCache) *udpgwDNSCacheConn {
+	return &udpgwDNSCacheConn{
+		Conn:          conn,
+		cache:         cache,
+		readMessage:   make([]byte, udpgwProtocolMaxMessageSize),
+		dnsConnIDs:    make(map[uint16]int),
+		prefetchConns: make(map[uint32]bool),
+	}
+}
+
+func (conn *udpgwDNSCacheConn) Read(buffer []byte) (int, error) {
+
+	for len(conn.readPending) == 0 {
+
+		_, err := io.ReadFull(conn.Conn, conn.readMessage[0:2])
+		if err != nil {
+			return 0, err
+		}
+		size := int(binary.LittleEndian.Uint16(conn.readMessage[0:2]))
+		if size < 3 || size > len(conn.readMessage)-2 {
+			return 0, errors.TraceNew("invalid udpgw message size")
+		}
+		_, err = io.ReadFull(conn.Conn, conn.readMessage[2:2+size])
+		if err != nil {
+			return 0, err
+		}
+		message := conn.readMessage[0 : 2+size]
+
+		forward, err := conn.handleQuery(message)
+		if err != nil {
+			return 0, errors.Trace(err)
+		}
+		if forward {
+			conn.readPending = message
+		}
+	}
+
+	n := copy(buffer, conn.readPending)
+	conn.readPending = conn.readPending[n:]
+	return n, nil
+}
+
+// handleQuery answers the udpgw message from the cache when possible, and
+// returns true when the message must be sent through the tunnel.
+func (conn *udpgwDNSCacheConn) handleQuery(message []byte) (bool, error) {
+
+	flags, connID, ok := parseUdpgwMessageHeader(message)
+	if !ok || flags&udpgwProtocolFlagKeepalive != 0 {
+		return true, nil
+	}
+
+	addressSize := 6
+	if flags&udpgwProtocolFlagIPv6 != 0 {
+		addressSize = 18
+	}
+	if len(message) < 5+addressSize {
+		return true, nil
+	}
+
+	port := binary.BigEndian.Uint16(message[5+addressSize-2 : 5+addressSize])
+	isDNS := flags&udpgwProtocolFlagDNS != 0 || port == 53
+
+	// The server sends responses with no flags, so the address size of each
+	// DNS connID is recorded from its queries. tun2socks reuses connIDs, so a
+	// connID used for other traffic is cleared, and its responses are relayed
+	// as is.
+	conn.pendingMutex.Lock()
+	if isDNS {
+		conn.dnsConnIDs[connID] = addressSize
+	} else {
+		delete(conn.dnsConnIDs, connID)
+	}
+	conn.pendingMutex.Unlock()
+
+	if !isDNS {
+		return true, nil
+	}
+
+	query := message[5+addressSize:]
+	key, ok := dnsQuestionKey(query, false)
+	if !ok {
+		return true, nil
+	}
+	queryID := binary.BigEndian.Uint16(query[0:2])
+
+	response, prefetch := conn.cache.lookup(key, queryID, time.Now())
+	if response == nil {
+		return true, nil
+	}
+
+	// Reply as the server does: with the same udpgw address and no flags.
+	reply := make([]byte, 5+addressSize+len(response))
+	binary.LittleEndian.PutUint16(reply[0:2], uint16(len(reply)-2))
+	reply[2] = 0
+	copy(reply[3:5+addressSize], message[3:5+addressSize])
+	copy(reply[5+addressSize:], response)
+
+	conn.writeMutex.Lock()
+	_, err := conn.Conn.Write(reply)
+	conn.writeMutex.Unlock()
+	if err != nil {
+		return false, errors.Trace(err)
+	}
+
+	if prefetch {
+		// The query is also sent through the tunnel to refresh the entry. The
+		// client already has its answer, so the response is consumed by Write.
+		conn.pendingMutex.Lock()
+		if len(conn.prefetchConns) >= udpgwDNSCacheMaxPendingPrefetches {
+			// Drop stale records of prefetches which received no response.
+			conn.prefetchConns = make(map[uint32]bool)
+		}
+		conn.prefetchConns[uint32(connID)<<16|uint32(queryID)] = true
+		conn.pendingMutex.Unlock()
+		return true, nil
+	}
+
+	return false, nil
+}
+
+func (conn *udpgwDNSCacheConn) Write(buffer []byte) (int, error) {
+
+	conn.writeBuffer = append(conn.writeBuffer, buffer...)
+
+	for len(conn.writeBuffer) >= 2 {
+		size := int(binary.LittleEndian.Uint16(conn.writeBuffer[0:2]))
+		if size < 3 || size > udpgwProtocolMaxMessageSize-2 {
+			return 0, errors.TraceNew("invalid udpgw message size")
+		}
+		if len(conn.writeBuffer) < 2+size {
+			break
+		}
+		message := conn.writeBuffer[0 : 2+size]
+
+		if conn.handleResponse(message) {
+			conn.writeMutex.Lock()
+			_, err := conn.Conn.Write(message)
+			conn.writeMutex.Unlock()
+			if err != nil {
+				return 0, errors.Trace(err)
+			}
+		}
+
+		conn.writeBuffer = conn.writeBuffer[2+size:]
+	}
+
+	// Release the consumed prefix, retaining any partial message.
+	conn.writeBuffer = append([]byte(nil), conn.writeBuffer...)
+
+	return len(buffer), nil
+}
+
+// handleResponse caches DNS responses and returns true when the udpgw
+// message is to be relayed to the client.
+func (conn *udpgwDNSCacheConn) handleResponse(message []byte) bool {
+
+	flags, connID, ok := parseUdpgwMessageHeader(message)
+	if !ok || flags&udpgwProtocolFlagKeepalive != 0 {
+		return true
+	}
+
+	conn.pendingMutex.Lock()
+	addressSize, isDNS := conn.dnsConnIDs[connID]
+	conn.pendingMutex.Unlock()
+	if !isDNS || len(message) < 5+addressSize+dnsHeaderSize {
+		return true
+	}
+
+	response := message[5+addressSize:]
+
+	conn.cache.store(response, time.Now())
+
+	prefetchConn := uint32(connID)<<16 | uint32(binary.BigEndian.Uint16(response[0:2]))
+	conn.pendingMutex.Lock()
+	isPrefetch := conn.prefetchConns[prefetchConn]
+	delete(conn.prefetchConns, prefetchConn)
+	conn.pendingMutex.Unlock()
+
+	return !isPrefetch
+}
+
+// parseUdpgwMessageHeader returns the flags and connID of a udpgw message.
+// The size of the address that follows, 6 or 18 bytes, is indicated by the
+// IPv6 flag only in messages sent to the server.
+func parseUdpgwMessageHeader(
+	message []byte) (flags uint8, connID uint16, ok bool) {
+
+	// udpgw message layout:
+	//
+	// | 2 byte size | 3 byte header | 6 or 18 byte address | variable length packet |
+
+	if len(message) < 5 {
+		return 0, 0, false
+	}
+	return message[2], binary.LittleEndian.Uint16(message[3:5]), true
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package psiphon
+
+import (
+	"bytes"
+	"encoding/binary"
+	"io"
+	"net"
+	"strings"
+	"testing"
+	"time"
+)
+
+func TestDNSCache(t *testing.T) {
+
+	now := time.Now()
+
+	cache := NewDNSCache(2)
+
+	// Miss, then hit with the query ID and a reduced TTL.
+
+	query := makeTestDNSQuery(1, "Example.COM")
+	key, ok := dnsQuestionKey(query, false)
+	if !ok {
+		t.Fatalf("dnsQuestionKey failed")
+	}
+
+	response, _ := cache.lookup(key, 1, now)
+	if response != nil {
+		t.Fatalf("unexpected hit")
+	}
+
+	cache.store(makeTestDNSResponse(1, "example.com", 0, 300), now)
+
+	response, _ = cache.lookup(key, 2, now.Add(100*time.Second))
+	if response == nil {
+		t.Fatalf("unexpected miss")
+	}
+	if binary.BigEndian.Uint16(response[0:2]) != 2 {
+		t.Fatalf("unexpected response ID")
+	}
+	ttlOffset := len(response) - 10
+	if binary.BigEndian.Uint32(response[ttlOffset:ttlOffset+4]) != 200 {
+		t.Fatalf("unexpected response TTL")
+	}
+
+	// Expiry.
+
+	response, _ = cache.lookup(key, 3, now.Add(300*time.Second))
+	if response != nil {
+		t.Fatalf("unexpected hit after expiry")
+	}
+
+	// Negative caching uses the SOA TTL.
+
+	cache.store(makeTestDNSResponse(4, "missing.example.com", dnsRcodeNameError, 60), now)
+	negativeKey, _ := dnsQuestionKey(makeTestDNSQuery(5, "missing.example.com"), false)
+
+	response, _ = cache.lookup(negativeKey, 5, now.Add(30*time.Second))
+	if response == nil {
+		t.Fatalf("unexpected negative miss")
+	}
+	response, _ = cache.lookup(negativeKey, 6, now.Add(60*time.Second))
+	if response != nil {
+		t.Fatalf("unexpected negative hit after expiry")
+	}
+
+	// Popular entries are prefetched once near expiry.
+
+	cache.store(makeTestDNSResponse(7, "example.com", 0, 100), now)
+	for i := 0; i < DNS_CACHE_PREFETCH_HITS; i++ {
+		_, prefetch := cache.lookup(key, 8, now)
+		if prefetch {
+			t.Fatalf("unexpected prefetch")
+		}
+	}
+	_, prefetch := cache.lookup(key, 9, now.Add(95*time.Second))
+	if !prefetch {
+		t.Fatalf("expected prefetch")
+	}
+	_, prefetch = cache.lookup(key, 10, now.Add(96*time.Second))
+	if prefetch {
+		t.Fatalf("unexpected repeat prefetch")
+	}
+
+	// LRU eviction.
+
+	cache.store(makeTestDNSResponse(11, "a.example.com", 0, 300), now)
+	cache.store(makeTestDNSResponse(12, "b.example.com", 0, 300), now)
+
+	response, _ = cache.lookup(key, 13, now)
+	if response != nil {
+		t.Fatalf("unexpected hit after eviction")
+	}
+
+	stats := cache.GetStats()
+	if stats.Entries != 2 || stats.Evictions != 1 || stats.Prefetches != 1 || stats.NegativeHits != 1 {
+		t.Fatalf("unexpected stats: %+v", stats)
+	}
+}
+
+func TestUdpgwDNSCacheConn(t *testing.T) {
+
+	cache := NewDNSCache(10)
+
+	ipv6Address := net.ParseIP("2001:db8::1").To16()
+	ipv4Address := net.ParseIP("192.0.2.1").To4()
+
+	// An IPv6 DNS query on connID 1 is a miss, and is sent through the tunnel.
+
+	query := makeTestDNSQuery(1, "example.com")
+	queryMessage := makeTestUdpgwMessage(udpgwProtocolFlagIPv6, 1, ipv6Address, 53, query)
+
+	client := &testUdpgwClientConn{}
+	client.reads.Write(queryMessage)
+	conn := newUdpgwDNSCacheConn(client, cache)
+
+	forwarded, err := readTestUdpgwMessage(conn)
+	if err != nil {
+		t.Fatalf("Read failed: %s", err)
+	}
+	if !bytes.Equal(forwarded, queryMessage) {
+		t.Fatalf("unexpected forwarded message")
+	}
+
+	// The server response has no flags, even for IPv6, and is relayed and
+	// cached.
+
+	responseMessage := makeTestUdpgwMessage(
+		0, 1, ipv6Address, 53, makeTestDNSResponse(1, "example.com", 0, 300))
+
+	_, err = conn.Write(responseMessage)
+	if err != nil {
+		t.Fatalf("Write failed: %s", err)
+	}
+	if !bytes.Equal(client.writes.Bytes(), responseMessage) {
+		t.Fatalf("unexpected relayed response")
+	}
+	if cache.GetStats().Entries != 1 {
+		t.Fatalf("IPv6 response not cached")
+	}
+
+	// A repeat query is answered from the cache, with the IPv6 address, and
+	// isn't sent through the tunnel.
+
+	client.writes.Reset()
+	client.reads.Write(makeTestUdpgwMessage(
+		udpgwProtocolFlagIPv6, 1, ipv6Address, 53, makeTestDNSQuery(2, "example.com")))
+
+	_, err = readTestUdpgwMessage(conn)
+	if err != io.EOF {
+		t.Fatalf("unexpected forwarded message: %v", err)
+	}
+	reply := client.writes.Bytes()
+	if len(reply) < 5+18+dnsHeaderSize ||
+		!bytes.Equal(reply[5:5+16], ipv6Address) ||
+		binary.BigEndian.Uint16(reply[5+18:5+18+2]) != 2 {
+		t.Fatalf("unexpected cached reply")
+	}
+
+	// connID 1 is reused for non-DNS IPv4 traffic. Its responses are relayed
+	// as is, and not cached, even when they resemble DNS responses.
+
+	otherMessage := makeTestUdpgwMessage(0, 1, ipv4Address, 443, []byte("payload"))
+	client.reads.Write(otherMessage)
+
+	forwarded, err = readTestUdpgwMessage(conn)
+	if err != nil {
+		t.Fatalf("Read failed: %s", err)
+	}
+	if !bytes.Equal(forwarded, otherMessage) {
+		t.Fatalf("unexpected forwarded message")
+	}
+
+	client.writes.Reset()
+	otherResponseMessage := makeTestUdpgwMessage(
+		0, 1, ipv4Address, 443, makeTestDNSResponse(3, "other.example.com", 0, 300))
+
+	_, err = conn.Write(otherResponseMessage)
+	if err != nil {
+		t.Fatalf("Write failed: %s", err)
+	}
+	if !bytes.Equal(client.writes.Bytes(), otherResponseMessage) {
+		t.Fatalf("unexpected relayed response")
+	}
+	if cache.GetStats().Entries != 1 {
+		t.Fatalf("unexpected cached response for reused connID")
+	}
+}
+
+// testUdpgwClientConn stands in for the tun2socks side of a udpgw port
+// forward. Reads return the messages written to reads, followed by io.EOF.
+type testUdpgwClientConn struct {
+	net.Conn
+	reads  bytes.Buffer
+	writes bytes.Buffer
+}
+
+func (conn *testUdpgwClientConn) Read(buffer []byte) (int, error) {
+	return conn.reads.Read(buffer)
+}
+
+func (conn *testUdpgwClientConn) Write(buffer []byte) (int, error) {
+	return conn.writes.Write(buffer)
+}
+
+func readTestUdpgwMessage(conn *udpgwDNSCacheConn) ([]byte, error) {
+	buffer := make([]byte, udpgwProtocolMaxMessageSize)
+	n, err := conn.Read(buffer)
+	if err != nil {
+		return nil, err
+	}
+	return buffer[:n], nil
+}
+
+func makeTestUdpgwMessage(
+	flags uint8, connID uint16, address net.IP, port uint16, packet []byte) []byte {
+
+	message := make([]byte, 5+len(address)+2)
+	binary.LittleEndian.PutUint16(message[0:2], uint16(len(message)-2+len(packet)))
+	message[2] = flags
+	binary.LittleEndian.PutUint16(message[3:5], connID)
+	copy(message[5:5+len(address)], address)
+	binary.BigEndian.PutUint16(message[5+len(address):], port)
+	return append(message, packet...)
+}
+
+func makeTestDNSQuery(ID uint16, name string) []byte {
+	message := make([]byte, dnsHeaderSize)
+	binary.BigEndian.PutUint16(message[0:2], ID)
+	binary.BigEndian.PutUint16(message[2:4], 0x0100)
+	binary.BigEndian.PutUint16(message[4:6], 1)
+	return appendTestDNSQuestion(message, name)
+}
+
+// makeTestDNSResponse returns a response with, for NOERROR, one A record
+// answer with the given TTL or, for NXDOMAIN, one SOA record in the
+// authority section with the given TTL. The record's TTL field starts 10
+// bytes from the end of the message.
+func makeTestDNSResponse(ID uint16, name string, rcode uint16, ttl uint32) []byte {
+	message := make([]byte, dnsHeaderSize)
+	binary.BigEndian.PutUint16(message[0:2], ID)
+	binary.BigEndian.PutUint16(message[2:4], 0x8180|rcode)
+	binary.BigEndian.PutUint16(message[4:6], 1)
+	recordType := uint16(1)
+	if rcode == dnsRcodeNameError {
+		binary.BigEndian.PutUint16(message[8:10], 1)
+		recordType = dnsTypeSOA
+	} else {
+		binary.BigEndian.PutUint16(message[6:8], 1)
+	}
+	message = appendTestDNSQuestion(message, name)
+
+	// Name compression pointer to the question name.
+	record := make([]byte, 16)
+	binary.BigEndian.PutUint16(record[0:2], 0xC000|dnsHeaderSize)
+	binary.BigEndian.PutUint16(record[2:4], recordType)
+	binary.BigEndian.PutUint16(record[4:6], 1)
+	binary.BigEndian.PutUint32(record[6:10], ttl)
+	binary.BigEndian.PutUint16(record[10:12], 4)
+	copy(record[12:16], []byte{192, 0, 2, 1})
+
+	return append(message, record...)
+}
+
+func appendTestDNSQuestion(message []byte, name string) []byte {
+	for _, label := range strings.Split(name, ".") {
+		message = append(message, byte(len(label)))
+		message = append(message, []byte(label)...)
+	}
+	message = append(message, 0)
+	question := make([]byte, 4)
+	binary.BigEndian.PutUint16(question[0:2], 1)
+	binary.BigEndian.PutUint16(question[2:4], 1)
+	return append(message, question...)
+}
@@ -32,6 +32,7 @@ import (
 	"crypto/x509"
 	"encoding/base64"
 	"encoding/json"
+	"io"
 	"net/http"
 	"strings"
 	"time"
@@ -45,10 +46,16 @@ const (
 	FEEDBACK_UPLOAD_MAX_RETRIES         = 5
 	FEEDBACK_UPLOAD_RETRY_DELAY_SECONDS = 300
 	FEEDBACK_UPLOAD_TIMEOUT_SECONDS     = 30
+	FEEDBACK_ENCRYPT_BUFFER_SIZE        = 32768
 )
 
 // Conforms to the format expected by the feedback decryptor.
 // https://bitbucket.org/psiphon/psiphon-circumvention-system/src/default/EmailResponder/FeedbackDecryptor/decryptor.py
+//
+// feedbackEncrypter streams the fields of this structure in the order
+// secureFeedbackHeader, contentCiphertext, contentMac, as the MAC isn't known
+// until all of the ciphertext is written. The decryptor doesn't depend on the
+// field order.
 type secureFeedback struct {
 	IV                   string `json:"iv"`
 	ContentCipherText    string `json:"contentCiphertext"`
@@ -57,21 +64,44 @@ type secureFeedback struct {
 	WrappedMacKey        string `json:"wrappedMacKey"`
 }
 
-// Encrypt and marshal feedback into secure json structure utilizing the
-// Encrypt-then-MAC paradigm (https://tools.ietf.org/html/rfc7366#section-3).
-func encryptFeedback(diagnosticsJson, b64EncodedPublicKey string) ([]byte, error) {
+type secureFeedbackHeader struct {
+	IV                   string `json:"iv"`
+	WrappedEncryptionKey string `json:"wrappedEncryptionKey"`
+	WrappedMacKey        string `json:"wrappedMacKey"`
+}
+
+// feedbackEncrypter encrypts and marshals feedback into the secure json
+// structure utilizing the Encrypt-then-MAC paradigm
+// (https://tools.ietf.org/html/rfc7366#section-3). The diagnostics are
+// encrypted, MACed and base64 encoded as they're read, so the complete
+// diagnostics need not be held in memory.
+//
+// The keys are generated once, so each upload attempt of the same diagnostics
+// produces the same output.
+type feedbackEncrypter struct {
+	iv            []byte
+	encryptionKey []byte
+	macKey        []byte
+	header        []byte
+}
+
+func newFeedbackEncrypter(b64EncodedPublicKey string) (*feedbackEncrypter, error) {
 	publicKey, err := base64.StdEncoding.DecodeString(b64EncodedPublicKey)
 	if err != nil {
 		return nil, errors.Trace(err)
 	}
 
-	iv, encryptionKey, diagnosticsCiphertext, err := encryptAESCBC([]byte(diagnosticsJson))
+	iv, err := common.MakeSecureRandomBytes(aes.BlockSize)
 	if err != nil {
-		return nil, err
+		return nil, errors.Trace(err)
 	}
-	digest, macKey, err := generateHMAC(iv, diagnosticsCiphertext)
+	encryptionKey, err := common.MakeSecureRandomBytes(aes.BlockSize)
 	if err != nil {
-		return nil, err
+		return nil, errors.Trace(err)
+	}
+	macKey, err := common.MakeSecureRandomBytes(16)
+	if err != nil {
+		return nil, errors.Trace(err)
 	}
 
 	wrappedMacKey, err := encryptWithPublicKey(macKey, publicKey)
@@ -83,25 +113,141 @@ func encryptFeedback(diagnosticsJson, b64EncodedPublicKey string) ([]byte, error
 		return nil, err
 	}
 
-	var securedFeedback = secureFeedback{
+	header, err := json.Marshal(secureFeedbackHeader{
 		IV:                   base64.StdEncoding.EncodeToString(iv),
-		ContentCipherText:    base64.StdEncoding.EncodeToString(diagnosticsCiphertext),
 		WrappedEncryptionKey: base64.StdEncoding.EncodeToString(wrappedEncryptionKey),
-		ContentMac:           base64.StdEncoding.EncodeToString(digest),
 		WrappedMacKey:        base64.StdEncoding.EncodeToString(wrappedMacKey),
+	})
+	if err != nil {
+		return nil, errors.Trace(err)
+	}
+
+	// Reopen the object for the streamed fields.
+	header = append(header[:len(header)-1], []byte(`,"contentCiphertext":"`)...)
+
+	return &feedbackEncrypter{
+		iv:            iv,
+		encryptionKey: encryptionKey,
+		macKey:        macKey,
+		header:        header,
+	}, nil
+}
+
+const feedbackContentMacPrefix = `","contentMac":"`
+const feedbackTrailer = `"}`
+
+// length returns the length of the secure feedback for diagnostics of
+// diagnosticsLength bytes.
+func (encrypter *feedbackEncrypter) length(diagnosticsLength int64) int64 {
+	// PKCS7 padding always adds at least one byte.
+	ciphertextLength := (diagnosticsLength/aes.BlockSize + 1) * aes.BlockSize
+	return int64(len(encrypter.header)) +
+		int64(base64.StdEncoding.EncodedLen(int(ciphertextLength))) +
+		int64(len(feedbackContentMacPrefix)) +
+		int64(base64.StdEncoding.EncodedLen(sha256.Size)) +
+		int64(len(feedbackTrailer))
+}
+
+// encrypt reads diagnostics, which must be exactly diagnosticsLength bytes,
+// and writes the secure feedback to w.
+func (encrypter *feedbackEncrypter) encrypt(
+	w io.Writer, diagnostics io.Reader, diagnosticsLength int64) error {
+
+	block, err := aes.NewCipher(encrypter.encryptionKey)
+	if err != nil {
+		return errors.Trace(err)
 	}
+	mode := cipher.NewCBCEncrypter(block, encrypter.iv)
+
+	mac := hmac.New(sha256.New, encrypter.macKey)
+	mac.Write(encrypter.iv)
 
-	encryptedFeedback, err := json.Marshal(securedFeedback)
+	_, err = w.Write(encrypter.header)
 	if err != nil {
-		return nil, errors.Trace(err)
+		return errors.Trace(err)
 	}
 
-	return encryptedFeedback, nil
+	encoder := base64.NewEncoder(base64.StdEncoding, w)
+
+	// CBC mode works on blocks, so input that doesn't fill a block is carried
+	// over to the next read. FEEDBACK_ENCRYPT_BUFFER_SIZE is a multiple of the
+	// block size, so a full buffer is always consumed.
+	buffer := make([]byte, FEEDBACK_ENCRYPT_BUFFER_SIZE)
+	pending := 0
+	readLength := int64(0)
+	for {
+		n, readErr := diagnostics.Read(buffer[pending:])
+		pending += n
+		readLength += int64(n)
+		blocksLength := pending - pending%aes.BlockSize
+		if blocksLength > 0 {
+			mode.CryptBlocks(buffer[:blocksLength], buffer[:blocksLength])
+			mac.Write(buffer[:blocksLength])
+			_, err = encoder.Write(buffer[:blocksLength])
+			if err != nil {
+				return errors.Trace(err)
+			}
+			pending = copy(buffer, buffer[blocksLength:pending])
+		}
+		if readErr == io.EOF {
+			break
+		}
+		if readErr != nil {
+			return errors.Trace(readErr)
+		}
+	}
+
+	if readLength != diagnosticsLength {
+		return errors.Tracef(
+			"expected %d diagnostics bytes, read %d", diagnosticsLength, readLength)
+	}
+
+	// Pad the final block with PKCS7 padding
+	// (https://tools.ietf.org/html/rfc5246#section-6.2.3.2).
+	final := addPKCS7Padding(append([]byte(nil), buffer[:pending]...), aes.BlockSize)
+	mode.CryptBlocks(final, final)
+	mac.Write(final)
+	_, err = encoder.Write(final)
+	if err == nil {
+		err = encoder.Close()
+	}
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	_, err = io.WriteString(w,
+		feedbackContentMacPrefix+
+			base64.StdEncoding.EncodeToString(mac.Sum(nil))+
+			feedbackTrailer)
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	return nil
 }
 
 // Encrypt feedback and upload to server. If upload fails
 // the feedback thread will sleep and retry multiple times.
 func SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer, uploadPath, uploadServerHeaders string) error {
+	return SendFeedbackStream(
+		configJson,
+		func() (io.Reader, int64, error) {
+			return strings.NewReader(diagnosticsJson), int64(len(diagnosticsJson)), nil
+		},
+		b64EncodedPublicKey,
+		uploadServer,
+		uploadPath,
+		uploadServerHeaders)
+}
+
+// SendFeedbackStream is SendFeedback with the diagnostics JSON read from
+// openDiagnostics, which is called before each upload attempt and returns a
+// reader positioned at the start of the diagnostics and their length in
+// bytes. The diagnostics are encrypted and uploaded as they're read.
+func SendFeedbackStream(
+	configJson string,
+	openDiagnostics func() (io.Reader, int64, error),
+	b64EncodedPublicKey, uploadServer, uploadPath, uploadServerHeaders string) error {
 
 	config, err := LoadConfig([]byte(configJson))
 	if err != nil {
@@ -121,7 +267,7 @@ func SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer
 		TrustedCACertificatesFilename: config.TrustedCACertificatesFilename,
 	}
 
-	secureFeedback, err := encryptFeedback(diagnosticsJson, b64EncodedPublicKey)
+	encrypter, err := newFeedbackEncrypter(b64EncodedPublicKey)
 	if err != nil {
 		return err
 	}
@@ -139,7 +285,8 @@ func SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer
 		err = uploadFeedback(
 			config,
 			untunneledDialConfig,
-			secureFeedback,
+			encrypter,
+			openDiagnostics,
 			url,
 			MakePsiphonUserAgent(config),
 			headerPieces)
@@ -155,7 +302,12 @@ func SendFeedback(configJson, diagnosticsJson, b64EncodedPublicKey, uploadServer
 
 // Attempt to upload feedback data to server.
 func uploadFeedback(
-	config *Config, dialConfig *DialConfig, feedbackData []byte, url, userAgent string, headerPieces []string) error {
+	config *Config,
+	dialConfig *DialConfig,
+	encrypter *feedbackEncrypter,
+	openDiagnostics func() (io.Reader, int64, error),
+	url, userAgent string,
+	headerPieces []string) error {
 
 	ctx, cancelFunc := context.WithTimeout(
 		context.Background(),
@@ -172,10 +324,41 @@ func uploadFeedback(
 		return err
 	}
 
-	req, err := http.NewRequest("PUT", url, bytes.NewBuffer(feedbackData))
+	return putFeedback(
+		ctx, client, encrypter, openDiagnostics, url, userAgent, headerPieces)
+}
+
+// putFeedback encrypts the diagnostics into the request body as the request
+// is sent. The body length is computed up front, so the request isn't sent
+// with chunked transfer encoding.
+func putFeedback(
+	ctx context.Context,
+	client *http.Client,
+	encrypter *feedbackEncrypter,
+	openDiagnostics func() (io.Reader, int64, error),
+	url, userAgent string,
+	headerPieces []string) error {
+
+	diagnostics, diagnosticsLength, err := openDiagnostics()
+	if err != nil {
+		return errors.Trace(err)
+	}
+
+	bodyReader, bodyWriter := io.Pipe()
+	go func() {
+		bodyWriter.CloseWithError(
+			encrypter.encrypt(bodyWriter, diagnostics, diagnosticsLength))
+	}()
+	// Closing the reader unblocks the encrypter when the request ends before
+	// the body is fully sent.
+	defer bodyReader.Close()
+
+	req, err := http.NewRequest("PUT", url, bodyReader)
 	if err != nil {
 		return errors.Trace(err)
 	}
+	req = req.WithContext(ctx)
+	req.ContentLength = encrypter.length(diagnosticsLength)
 
 	req.Header.Set("User-Agent", userAgent)
 
@@ -202,34 +385,6 @@ func addPKCS7Padding(src []byte, blockSize int) []byte {
 	return append(src, padding...)
 }
 
-// Encrypt plaintext with AES in CBC mode.
-func encryptAESCBC(plaintext []byte) ([]byte, []byte, []byte, error) {
-	// CBC mode works on blocks so plaintexts need to be padded to the
-	// next whole block (https://tools.ietf.org/html/rfc5246#section-6.2.3.2).
-	plaintext = addPKCS7Padding(plaintext, aes.BlockSize)
-
-	ciphertext := make([]byte, len(plaintext))
-	iv, err := common.MakeSecureRandomBytes(aes.BlockSize)
-	if err != nil {
-		return nil, nil, nil, err
-	}
-
-	key, err := common.MakeSecureRandomBytes(aes.BlockSize)
-	if err != nil {
-		return nil, nil, nil, errors.Trace(err)
-	}
-
-	block, err := aes.NewCipher(key)
-	if err != nil {
-		return nil, nil, nil, errors.Trace(err)
-	}
-
-	mode := cipher.NewCBCEncrypter(block, iv)
-	mode.CryptBlocks(ciphertext, plaintext)
-
-	return iv, key, ciphertext, nil
-}
-
 // Encrypt plaintext with RSA public key.
 func encryptWithPublicKey(plaintext, publicKey []byte) ([]byte, error) {
 	parsedKey, err := x509.ParsePKIXPublicKey(publicKey)
@@ -245,20 +400,3 @@ func encryptWithPublicKey(plaintext, publicKey []byte) ([]byte, error) {
 	}
 	return nil, errors.TraceNew("feedback key is not an RSA public key")
 }
-
-// Generate HMAC for Encrypt-then-MAC paradigm.
-func generateHMAC(iv, plaintext []byte) ([]byte, []byte, error) {
-	key, err := common.MakeSecureRandomBytes(16)
-	if err != nil {
-		return nil, nil, err
-	}
-
-	mac := hmac.New(sha256.New, key)
-
-	mac.Write(iv)
-	mac.Write(plaintext)
-
-	digest := mac.Sum(nil)
-
-	return digest, key, nil
-}
@@ -20,9 +20,27 @@
 package psiphon
 
 import (
+	"bytes"
+	"context"
+	"crypto/aes"
+	"crypto/cipher"
+	"crypto/hmac"
+	"crypto/rand"
+	"crypto/rsa"
+	"crypto/sha1"
+	"crypto/sha256"
+	"crypto/x509"
+	"encoding/base64"
 	"encoding/json"
+	"fmt"
+	"io"
 	"io/ioutil"
+	"net/http"
+	"net/http/httptest"
+	"strings"
 	"testing"
+	"testing/iotest"
+	"time"
 )
 
 type Diagnostics struct {
@@ -79,3 +97,153 @@ func TestFeedbackUpload(t *testing.T) {
 		t.FailNow()
 	}
 }
+
+// TestFeedbackUploadStream uploads streamed feedback to a local stand-in for
+// the upload server, which decrypts and verifies the feedback.
+func TestFeedbackUploadStream(t *testing.T) {
+
+	privateKey, err := rsa.GenerateKey(rand.Reader, 2048)
+	if err != nil {
+		t.Fatalf("GenerateKey failed: %s", err)
+	}
+	publicKey, err := x509.MarshalPKIXPublicKey(&privateKey.PublicKey)
+	if err != nil {
+		t.Fatalf("MarshalPKIXPublicKey failed: %s", err)
+	}
+	b64EncodedPublicKey := base64.StdEncoding.EncodeToString(publicKey)
+
+	var diagnosticsBuffer bytes.Buffer
+	diagnosticsBuffer.WriteString(`{"DiagnosticInfo":{"DiagnosticHistory":[`)
+	for i := 0; i < 2000; i++ {
+		if i > 0 {
+			diagnosticsBuffer.WriteString(",")
+		}
+		fmt.Fprintf(&diagnosticsBuffer, `{"noticeType":"Info","data":{"message":"notice %d"}}`, i)
+	}
+	diagnosticsBuffer.WriteString(`]}}`)
+	diagnostics := diagnosticsBuffer.String()
+
+	uploads := make(chan []byte, 1)
+
+	server := httptest.NewServer(http.HandlerFunc(
+		func(w http.ResponseWriter, r *http.Request) {
+			if r.Header.Get("X-Feedback-Test") != "1" {
+				w.WriteHeader(http.StatusForbidden)
+				return
+			}
+			if len(r.TransferEncoding) > 0 {
+				w.WriteHeader(http.StatusLengthRequired)
+				return
+			}
+			body, err := ioutil.ReadAll(r.Body)
+			if err != nil || int64(len(body)) != r.ContentLength {
+				w.WriteHeader(http.StatusBadRequest)
+				return
+			}
+			uploads <- body
+		}))
+	defer server.Close()
+
+	encrypter, err := newFeedbackEncrypter(b64EncodedPublicKey)
+	if err != nil {
+		t.Fatalf("newFeedbackEncrypter failed: %s", err)
+	}
+
+	ctx, cancelFunc := context.WithTimeout(context.Background(), 10*time.Second)
+	defer cancelFunc()
+
+	// HalfReader splits the diagnostics into reads that don't align with the
+	// cipher block size.
+	err = putFeedback(
+		ctx,
+		server.Client(),
+		encrypter,
+		func() (io.Reader, int64, error) {
+			return iotest.HalfReader(strings.NewReader(diagnostics)), int64(len(diagnostics)), nil
+		},
+		server.URL+"/upload/0000000000000000",
+		"test",
+		[]string{"X-Feedback-Test", "1"})
+	if err != nil {
+		t.Fatalf("putFeedback failed: %s", err)
+	}
+
+	decrypted, err := decryptFeedback(<-uploads, privateKey)
+	if err != nil {
+		t.Fatalf("decryptFeedback failed: %s", err)
+	}
+	if decrypted != diagnostics {
+		t.Fatalf("unexpected decrypted feedback")
+	}
+
+	// Diagnostics shorter than their stated length must not be uploaded.
+	err = putFeedback(
+		ctx,
+		server.Client(),
+		encrypter,
+		func() (io.Reader, int64, error) {
+			return strings.NewReader(diagnostics[1:]), int64(len(diagnostics)), nil
+		},
+		server.URL+"/upload/0000000000000001",
+		"test",
+		[]string{"X-Feedback-Test", "1"})
+	if err == nil {
+		t.Fatalf("putFeedback unexpectedly succeeded")
+	}
+}
+
+func decryptFeedback(feedbackJSON []byte, privateKey *rsa.PrivateKey) (string, error) {
+
+	var feedback secureFeedback
+	err := json.Unmarshal(feedbackJSON, &feedback)
+	if err != nil {
+		return "", err
+	}
+
+	decode := func(field string) []byte {
+		value, decodeErr := base64.StdEncoding.DecodeString(field)
+		if decodeErr != nil && err == nil {
+			err = decodeErr
+		}
+		return value
+	}
+	iv := decode(feedback.IV)
+	ciphertext := decode(feedback.ContentCipherText)
+	wrappedEncryptionKey := decode(feedback.WrappedEncryptionKey)
+	contentMac := decode(feedback.ContentMac)
+	wrappedMacKey := decode(feedback.WrappedMacKey)
+	if err != nil {
+		return "", err
+	}
+
+	macKey, err := rsa.DecryptOAEP(sha1.New(), rand.Reader, privateKey, wrappedMacKey, nil)
+	if err != nil {
+		return "", err
+	}
+	mac := hmac.New(sha256.New, macKey)
+	mac.Write(iv)
+	mac.Write(ciphertext)
+	if !hmac.Equal(mac.Sum(nil), contentMac) {
+		return "", fmt.Errorf("invalid MAC")
+	}
+
+	encryptionKey, err := rsa.DecryptOAEP(sha1.New(), rand.Reader, privateKey, wrappedEncryptionKey, nil)
+	if err != nil {
+		return "", err
+	}
+	block, err := aes.NewCipher(encryptionKey)
+	if err != nil {
+		return "", err
+	}
+	if len(ciphertext) == 0 || len(ciphertext)%aes.BlockSize != 0 {
+		return "", fmt.Errorf("invalid ciphertext length")
+	}
+	plaintext := make([]byte, len(ciphertext))
+	cipher.NewCBCDecrypter(block, iv).CryptBlocks(plaintext, ciphertext)
+	paddingLen := int(plaintext[len(plaintext)-1])
+	if paddingLen < 1 || paddingLen > aes.BlockSize {
+		return "", fmt.Errorf("invalid padding")
+	}
+
+	return string(plaintext[:len(plaintext)-paddingLen]), nil
+}
@@ -52,6 +52,7 @@ type noticeLogger struct {
 	rotatingCurrentFileSize    int64
 	rotatingSyncFrequency      int
 	rotatingCurrentNoticeCount int
+	rotatingWriterNoticeTypes  map[string]bool
 }
 
 var singletonNoticeLogger = noticeLogger{
@@ -200,6 +201,22 @@ func SetNoticeFiles(
 	return nil
 }
 
+// SetRotatingNoticesWriterTypes specifies diagnostic notice types which are
+// still written to the writer when a rotating notices file is configured. This
+// is for diagnostic notices which the outer client acts on, and not only logs.
+// The specified types replace any previously specified types.
+func SetRotatingNoticesWriterTypes(noticeTypes []string) {
+
+	singletonNoticeLogger.mutex.Lock()
+	defer singletonNoticeLogger.mutex.Unlock()
+
+	writerNoticeTypes := make(map[string]bool)
+	for _, noticeType := range noticeTypes {
+		writerNoticeTypes[noticeType] = true
+	}
+	singletonNoticeLogger.rotatingWriterNoticeTypes = writerNoticeTypes
+}
+
 const (
 	noticeShowUser       = 1
 	noticeIsDiagnostic   = 2
@@ -268,7 +285,8 @@ func (nl *noticeLogger) outputNotice(noticeType string, noticeFlags uint32, args
 	if nl.rotatingFile != nil {
 
 		if !skipWriter {
-			skipWriter = (noticeFlags&noticeIsDiagnostic != 0)
+			skipWriter = (noticeFlags&noticeIsDiagnostic != 0) &&
+				!nl.rotatingWriterNoticeTypes[noticeType]
 		}
 
 		err := nl.outputNoticeToRotatingFile(output)
@@ -553,6 +571,19 @@ func NoticeActiveTunnel(diagnosticID, protocol string, isTCS bool) {
 		"isTCS", isTCS)
 }
 
+// NoticeActiveTunnelProperties reports the tunnel protocol, whether the
+// server supports SSH API requests, and the server region of a new active
+// tunnel. Unlike ActiveTunnel, this notice contains no server identifier and
+// is not a diagnostic notice, so it's always emitted for clients that adapt to
+// the active tunnel.
+func NoticeActiveTunnelProperties(protocol string, isTCS bool, region string) {
+	singletonNoticeLogger.outputNotice(
+		"ActiveTunnelProperties", 0,
+		"protocol", protocol,
+		"isTCS", isTCS,
+		"region", region)
+}
+
 // NoticeSocksProxyPortInUse is a failure to use the configured LocalSocksProxyPort
 func NoticeSocksProxyPortInUse(port int) {
 	singletonNoticeLogger.outputNotice(
@@ -567,6 +598,15 @@ func NoticeListeningSocksProxyPort(port int) {
 		"port", port)
 }
 
+// NoticeListeningSocksProxyUnixSocket is the abstract-namespace Unix domain
+// socket name the SOCKS proxy is listening on, when configured with
+// LocalSocksProxyUnixSocketName.
+func NoticeListeningSocksProxyUnixSocket(name string) {
+	singletonNoticeLogger.outputNotice(
+		"ListeningSocksProxyUnixSocket", 0,
+		"name", name)
+}
+
 // NoticeHttpProxyPortInUse is a failure to use the configured LocalHttpProxyPort
 func NoticeHttpProxyPortInUse(port int) {
 	singletonNoticeLogger.outputNotice(
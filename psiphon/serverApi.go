@@ -881,8 +881,9 @@ func getBaseAPIParameters(
 	}
 	params["is_replay"] = isReplay
 
-	if config.EgressRegion != "" {
-		params["egress_region"] = config.EgressRegion
+	egressRegion := config.GetEgressRegion()
+	if egressRegion != "" {
+		params["egress_region"] = egressRegion
 	}
 
 	// dialParams.DialDuration is nanoseconds; divide to get to milliseconds
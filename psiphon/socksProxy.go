@@ -37,6 +37,9 @@ import (
 type SocksProxy struct {
 	tunneler               Tunneler
 	listener               *socks.SocksListener
+	unixListener           *socks.SocksListener
+	udpgwServerAddress     string
+	udpgwDNSCache          *DNSCache
 	serveWaitGroup         *sync.WaitGroup
 	openConns              *common.Conns
 	stopListeningBroadcast chan struct{}
@@ -44,13 +47,16 @@ type SocksProxy struct {
 
 var _SOCKS_PROXY_TYPE = "SOCKS"
 
+const DEFAULT_UDPGW_SERVER_ADDRESS = "127.0.0.1:7300"
+
 // NewSocksProxy initializes a new SOCKS server. It begins listening for
 // connections, starts a goroutine that runs an accept loop, and returns
 // leaving the accept loop running.
 func NewSocksProxy(
 	config *Config,
 	tunneler Tunneler,
-	listenIP string) (proxy *SocksProxy, err error) {
+	listenIP string,
+	udpgwDNSCache *DNSCache) (proxy *SocksProxy, err error) {
 
 	listener, err := socks.ListenSocks(
 		"tcp", fmt.Sprintf("%s:%d", listenIP, config.LocalSocksProxyPort))
@@ -60,16 +66,48 @@ func NewSocksProxy(
 		}
 		return nil, errors.Trace(err)
 	}
+
+	var unixListener *socks.SocksListener
+	if config.LocalSocksProxyUnixSocketName != "" {
+		// The "@" prefix selects the Linux abstract namespace, so there's no
+		// socket file to create or clean up.
+		//
+		// The Unix socket is optional. Any local app may bind a name in the
+		// abstract namespace, so failing to listen must not prevent the
+		// tunnel from starting. Clients continue to use the TCP port.
+		unixListener, err = socks.ListenSocks(
+			"unix", "@"+config.LocalSocksProxyUnixSocketName)
+		if err != nil {
+			NoticeAlert("failed to listen on SOCKS proxy Unix socket: %s", errors.Trace(err))
+			unixListener = nil
+		}
+	}
+
+	udpgwServerAddress := config.UdpgwServerAddress
+	if udpgwServerAddress == "" {
+		udpgwServerAddress = DEFAULT_UDPGW_SERVER_ADDRESS
+	}
+
 	proxy = &SocksProxy{
 		tunneler:               tunneler,
 		listener:               listener,
+		unixListener:           unixListener,
+		udpgwServerAddress:     udpgwServerAddress,
+		udpgwDNSCache:          udpgwDNSCache,
 		serveWaitGroup:         new(sync.WaitGroup),
 		openConns:              common.NewConns(),
 		stopListeningBroadcast: make(chan struct{}),
 	}
 	proxy.serveWaitGroup.Add(1)
-	go proxy.serve()
+	go proxy.serve(proxy.listener)
+	if proxy.unixListener != nil {
+		proxy.serveWaitGroup.Add(1)
+		go proxy.serve(proxy.unixListener)
+	}
 	NoticeListeningSocksProxyPort(proxy.listener.Addr().(*net.TCPAddr).Port)
+	if proxy.unixListener != nil {
+		NoticeListeningSocksProxyUnixSocket(config.LocalSocksProxyUnixSocketName)
+	}
 	return proxy, nil
 }
 
@@ -78,15 +116,15 @@ func NewSocksProxy(
 func (proxy *SocksProxy) Close() {
 	close(proxy.stopListeningBroadcast)
 	proxy.listener.Close()
+	if proxy.unixListener != nil {
+		proxy.unixListener.Close()
+	}
 	proxy.serveWaitGroup.Wait()
 	proxy.openConns.CloseAll()
 }
 
 func (proxy *SocksProxy) socksConnectionHandler(localConn *socks.SocksConn) (err error) {
 	defer localConn.Close()
-	defer proxy.openConns.Remove(localConn)
-
-	proxy.openConns.Add(localConn)
 
 	// Using downstreamConn so localConn.Close() will be called when remoteConn.Close() is called.
 	// This ensures that the downstream client (e.g., web browser) doesn't keep waiting on the
@@ -113,18 +151,28 @@ func (proxy *SocksProxy) socksConnectionHandler(localConn *socks.SocksConn) (err
 		return errors.Trace(err)
 	}
 
-	LocalProxyRelay(_SOCKS_PROXY_TYPE, localConn, remoteConn)
+	var relayConn net.Conn = localConn
+	if proxy.udpgwDNSCache != nil && localConn.Req.Target == proxy.udpgwServerAddress {
+		relayConn = newUdpgwDNSCacheConn(localConn, proxy.udpgwDNSCache)
+	}
+
+	LocalProxyRelay(_SOCKS_PROXY_TYPE, relayConn, remoteConn)
 
 	return nil
 }
 
-func (proxy *SocksProxy) serve() {
-	defer proxy.listener.Close()
+func (proxy *SocksProxy) serve(listener *socks.SocksListener) {
+	defer listener.Close()
 	defer proxy.serveWaitGroup.Done()
 loop:
 	for {
 		// Note: will be interrupted by listener.Close() call made by proxy.Close()
-		socksConnection, err := proxy.listener.AcceptSocks()
+		//
+		// The SOCKS handshake is performed in the connection goroutine, not
+		// here, so that a client which connects and then delays its request,
+		// such as a pre-warmed connection pool, doesn't block accepting other
+		// connections.
+		conn, err := listener.Listener.Accept()
 		// Can't check for the exact error that Close() will cause in Accept(),
 		// (see: https://code.google.com/p/go/issues/detail?id=4373). So using an
 		// explicit stop signal to stop gracefully.
@@ -144,7 +192,20 @@ loop:
 			break loop
 		}
 		go func() {
-			err := proxy.socksConnectionHandler(socksConnection)
+			if !proxy.openConns.Add(conn) {
+				conn.Close()
+				return
+			}
+			// conn stays in openConns until its SOCKS connection is done,
+			// so Close() also closes connections between the handshake and
+			// the relay.
+			defer proxy.openConns.Remove(conn)
+			socksConnection, err := socksHandshake(conn)
+			if err != nil {
+				NoticeLocalProxyError(_SOCKS_PROXY_TYPE, errors.Trace(err))
+				return
+			}
+			err = proxy.socksConnectionHandler(socksConnection)
 			if err != nil {
 				NoticeLocalProxyError(_SOCKS_PROXY_TYPE, errors.Trace(err))
 			}
@@ -152,3 +213,39 @@ loop:
 	}
 	NoticeInfo("SOCKS proxy stopped")
 }
+
+// socksHandshake performs the SOCKS handshake on an accepted conn. On error,
+// the conn is closed. Any bytes the client sent following its SOCKS request
+// are buffered by the returned SocksConn and are read first.
+func socksHandshake(conn net.Conn) (*socks.SocksConn, error) {
+	socksConnection, err := socks.NewSocksListener(
+		&singleConnListener{conn: conn}).AcceptSocks()
+	if err != nil {
+		return nil, errors.Trace(err)
+	}
+	return socksConnection, nil
+}
+
+// singleConnListener is a net.Listener which returns one, already accepted,
+// conn. It's used to run the goptlib SOCKS handshake outside of the accept
+// loop.
+type singleConnListener struct {
+	conn net.Conn
+}
+
+func (listener *singleConnListener) Accept() (net.Conn, error) {
+	if listener.conn == nil {
+		return nil, errors.TraceNew("already accepted")
+	}
+	conn := listener.conn
+	listener.conn = nil
+	return conn, nil
+}
+
+func (listener *singleConnListener) Close() error {
+	return nil
+}
+
+func (listener *singleConnListener) Addr() net.Addr {
+	return nil
+}
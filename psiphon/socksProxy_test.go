@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package psiphon
+
+import (
+	"bytes"
+	"fmt"
+	"io"
+	"io/ioutil"
+	"net"
+	"os"
+	"runtime"
+	"testing"
+	"time"
+
+	socks "github.com/Psiphon-Labs/goptlib"
+)
+
+// BenchmarkSocksProxyTransport compares the local SOCKS proxy listener
+// transports, loopback TCP and abstract-namespace Unix domain socket, for
+// SOCKS connection setup and bulk throughput. The stand-in server performs
+// the same SOCKS handshake as SocksProxy and then discards payload, so only
+// the Go listener side of the local transport is measured, with a Go client.
+// This does not measure the tun2socks to SOCKS proxy path, which requires a
+// tun2socks build that supports Unix socket SOCKS server addresses.
+func BenchmarkSocksProxyTransport(b *testing.B) {
+
+	if runtime.GOOS != "linux" && runtime.GOOS != "android" {
+		b.Skip("abstract-namespace Unix domain sockets require Linux")
+	}
+
+	transports := []struct {
+		network string
+		address string
+	}{
+		{"tcp", "127.0.0.1:0"},
+		{"unix", fmt.Sprintf("@psiphon-socks-benchmark-%d", os.Getpid())},
+	}
+
+	for _, transport := range transports {
+
+		listener, err := socks.ListenSocks(transport.network, transport.address)
+		if err != nil {
+			b.Fatalf("ListenSocks failed: %s", err)
+		}
+		go runBenchmarkSocksServer(listener)
+
+		network := transport.network
+		address := listener.Addr().String()
+
+		b.Run(network+"/connect", func(b *testing.B) {
+			for i := 0; i < b.N; i++ {
+				conn, err := dialBenchmarkSocksServer(network, address)
+				if err != nil {
+					b.Fatalf("dial failed: %s", err)
+				}
+				conn.Close()
+			}
+		})
+
+		b.Run(network+"/throughput", func(b *testing.B) {
+			conn, err := dialBenchmarkSocksServer(network, address)
+			if err != nil {
+				b.Fatalf("dial failed: %s", err)
+			}
+			defer conn.Close()
+			payload := make([]byte, 32*1024)
+			b.SetBytes(int64(len(payload)))
+			b.ResetTimer()
+			for i := 0; i < b.N; i++ {
+				_, err := conn.Write(payload)
+				if err != nil {
+					b.Fatalf("write failed: %s", err)
+				}
+			}
+		})
+
+		listener.Close()
+	}
+}
+
+func runBenchmarkSocksServer(listener *socks.SocksListener) {
+	for {
+		conn, err := listener.AcceptSocks()
+		if err != nil {
+			if e, ok := err.(net.Error); ok && e.Temporary() {
+				continue
+			}
+			return
+		}
+		go func() {
+			defer conn.Close()
+			err := conn.Grant(&net.TCPAddr{IP: net.ParseIP("0.0.0.0"), Port: 0})
+			if err != nil {
+				return
+			}
+			io.Copy(ioutil.Discard, conn)
+		}()
+	}
+}
+
+func dialBenchmarkSocksServer(network, address string) (net.Conn, error) {
+
+	conn, err := net.Dial(network, address)
+	if err != nil {
+		return nil, err
+	}
+
+	// SOCKS5, no authentication, followed by a CONNECT request for
+	// 127.0.0.1:80. The stand-in server ignores the target.
+
+	_, err = conn.Write([]byte{0x05, 0x01, 0x00})
+	if err == nil {
+		_, err = io.ReadFull(conn, make([]byte, 2))
+	}
+	if err == nil {
+		_, err = conn.Write([]byte{0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0, 80})
+	}
+	if err == nil {
+		_, err = io.ReadFull(conn, make([]byte, 10))
+	}
+	if err != nil {
+		conn.Close()
+		return nil, err
+	}
+
+	return conn, nil
+}
+
+// TestSocksHandshakePipelining checks that a delayed SOCKS client doesn't
+// block other clients, and that payload pipelined with the SOCKS request is
+// not lost.
+func TestSocksHandshakePipelining(t *testing.T) {
+
+	listener, err := net.Listen("tcp", "127.0.0.1:0")
+	if err != nil {
+		t.Fatalf("Listen failed: %s", err)
+	}
+	defer listener.Close()
+
+	go func() {
+		for {
+			conn, err := listener.Accept()
+			if err != nil {
+				return
+			}
+			go func() {
+				socksConn, err := socksHandshake(conn)
+				if err != nil {
+					return
+				}
+				defer socksConn.Close()
+				err = socksConn.Grant(&net.TCPAddr{IP: net.ParseIP("0.0.0.0"), Port: 0})
+				if err != nil {
+					return
+				}
+				io.Copy(socksConn, socksConn)
+			}()
+		}
+	}()
+
+	// A pre-warmed client, which has negotiated the authentication method
+	// but not yet sent its request.
+
+	delayedConn, err := net.Dial("tcp", listener.Addr().String())
+	if err != nil {
+		t.Fatalf("Dial failed: %s", err)
+	}
+	defer delayedConn.Close()
+	_, err = delayedConn.Write([]byte{0x05, 0x01, 0x00})
+	if err == nil {
+		_, err = io.ReadFull(delayedConn, make([]byte, 2))
+	}
+	if err != nil {
+		t.Fatalf("negotiation failed: %s", err)
+	}
+
+	// A second client sends the negotiation, request, and payload in a single
+	// write, and expects the echoed payload.
+
+	conn, err := net.Dial("tcp", listener.Addr().String())
+	if err != nil {
+		t.Fatalf("Dial failed: %s", err)
+	}
+	defer conn.Close()
+	conn.SetDeadline(time.Now().Add(2 * time.Second))
+
+	payload := []byte("pipelined payload")
+	message := []byte{0x05, 0x01, 0x00, 0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1, 0, 80}
+	message = append(message, payload...)
+	_, err = conn.Write(message)
+	if err != nil {
+		t.Fatalf("Write failed: %s", err)
+	}
+
+	response := make([]byte, 2+10+len(payload))
+	_, err = io.ReadFull(conn, response)
+	if err != nil {
+		t.Fatalf("ReadFull failed: %s", err)
+	}
+	if !bytes.Equal(response[12:], payload) {
+		t.Fatalf("unexpected payload: %x", response[12:])
+	}
+}